@@ -1,7 +1,9 @@
 package com.zitego.filemanager;
 
+import com.zitego.filemanager.util.FileFilter;
 import java.util.Date;
 import java.io.*;
+import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -16,7 +18,14 @@ import java.util.Vector;
  * the number of seconds that have passed since 01/01/1970.
  *
  * If the System property use_creation_date is set to the value of "0" then any method
- * called will do nothing.
+ * called will do nothing.<br><br>
+ *
+ * Operations that touch many objects at once can call beginBatch() first. Until
+ * commitBatch() is called on the same thread, the creation date files are read
+ * once, changed in memory, and then written out a single time on commit. The changes
+ * made in the batch are kept as well, and on commit each file is read again and they
+ * are made to what is there now, so what other threads wrote in the meantime is not lost.
+ * Every change to a file is made while holding a lock for that file.
  *
  * @author John Glorioso
  * @version $Id: CreationDateFile.java,v 1.1.1.1 2008/02/20 15:05:39 jglorioso Exp $
@@ -24,7 +33,75 @@ import java.util.Vector;
 public class CreationDateFile
 {
     /** The name of the creation date file. */
-    public static final String NAME = ".creation";
+    public static final String NAME = FileFilter.CREATION_NAME;
+    /** The pending batch for the current thread (creation file path to lines). */
+    private static ThreadLocal _batch = new ThreadLocal();
+    /** The changes made in the current batch (creation file path to changes). */
+    private static ThreadLocal _changes = new ThreadLocal();
+    /** The creation date files that have been changed in the current batch. */
+    private static ThreadLocal _dirty = new ThreadLocal();
+    /** The locks for each creation date file keyed by its absolute path. */
+    private static Hashtable _locks = new Hashtable();
+
+    /**
+     * Starts a batch on the current thread. Changes to creation date files are held
+     * in memory until commitBatch is called. Calling this while a batch is already
+     * open does nothing.
+     */
+    public static void beginBatch()
+    {
+        if (_batch.get() != null) return;
+        _batch.set( new Hashtable() );
+        _changes.set( new Hashtable() );
+        _dirty.set( new Vector() );
+    }
+
+    /**
+     * Writes out every creation date file that changed during the current batch and
+     * closes the batch. Each file is read again and the batch's changes are made to it,
+     * so entries written by other threads since the batch read it are kept. If there is
+     * no batch open, then nothing happens.
+     *
+     * @throws IOException if a problem occurs writing one of the files.
+     */
+    public static void commitBatch() throws IOException
+    {
+        Hashtable batch = (Hashtable)_batch.get();
+        Hashtable changes = (Hashtable)_changes.get();
+        Vector dirty = (Vector)_dirty.get();
+        _batch.set(null);
+        _changes.set(null);
+        _dirty.set(null);
+        if (batch == null) return;
+
+        int size = dirty.size();
+        for (int i=0; i<size; i++)
+        {
+            String path = (String)dirty.get(i);
+            java.io.File f = new java.io.File(path);
+            Vector made = (Vector)changes.get(path);
+            synchronized ( getLock(f) )
+            {
+                Vector contents = readCreationDateFile(f);
+                for (int j=0; j<made.size(); j++)
+                {
+                    String[] change = (String[])made.get(j);
+                    contents = change(contents, change[0], change[1]);
+                }
+                writeCreationDateFile(f, contents);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a batch is open on the current thread.
+     *
+     * @return boolean
+     */
+    public static boolean inBatch()
+    {
+        return (_batch.get() != null);
+    }
 
     /**
      * Retrieves the creation date of the specified FileSystemObject. If the
@@ -43,16 +120,16 @@ public class CreationDateFile
         java.io.File f = getCreationDateFile(obj, false);
         if (f == null) return null;
 
-        BufferedReader in = new BufferedReader( new FileReader(f) );
-        String line = null;
-        while ( (line=in.readLine()) != null )
+        Vector contents = readCreationDateFile(f);
+        int size = contents.size();
+        for (int i=0; i<size; i++)
         {
+            String line = (String)contents.get(i);
             if ( line.substring(0, line.lastIndexOf("=")).equals(rootPath) )
             {
                 return new Date( Long.parseLong(line.substring(line.indexOf("=")+1))*1000L );
             }
         }
-        in.close();
         return null;
     }
 
@@ -60,8 +137,8 @@ public class CreationDateFile
      * Sets the creation date of the specified FileSystemObject. If the
      * creation file does not exist then it is created. If the object's root
      * path and creation date are already in the file, then it is changed. Otherwise,
-     * it is appended to the end of the file. This method synchronizes on the root
-     * path so that two methods do not write the current time out at the same time.
+     * it is appended to the end of the file. This method holds the creation date file's
+     * lock so that two methods do not write the current time out at the same time.
      *
      * @param FileSystemObject The object to get the creation date for.
      * @throws IOException if a problem occurs re-writing the file.
@@ -70,30 +147,18 @@ public class CreationDateFile
     {
         String cdate = System.getProperty("use_creation_date");
         if ( "0".equals(cdate) ) return;
-        String absolutePath = obj.getAbsolutePath();
-        synchronized (absolutePath)
+        java.io.File f = getCreationDateFile(obj, true);
+        synchronized ( getLock(f) )
         {
-            java.io.File f = getCreationDateFile(obj, true);
             String rootPath = obj.getRootPath();
-            Vector contents = new Vector();
-            if ( f.exists() )
-            {
-                BufferedReader in = new BufferedReader( new FileReader(f) );
-                String line = null;
-                while ( (line=in.readLine()) != null )
-                {
-                    if ( !line.substring(0, line.lastIndexOf("=")).equals(rootPath) ) contents.add(line);
-                }
-                in.close();
-            }
             //Make sure the creation date is not after the last modified date
             long seconds = System.currentTimeMillis();
             long modified = obj.getLastModifiedDate().getTime();
             if (seconds > modified) seconds = modified;
             seconds = seconds / 1000;
-            contents.add(rootPath + "=" + seconds);
+            String entry = rootPath + "=" + seconds;
 
-            writeCreationDateFile(f, contents);
+            storeCreationDateFile( f, change(readCreationDateFile(f), rootPath, entry), new String[] { rootPath, entry } );
 
             //Set the object's creation date
             obj.setCreationDate(seconds);
@@ -104,8 +169,8 @@ public class CreationDateFile
      * Removes the creation date of the specified FileSystemObject. If the
      * creation file does not exist then we do nothing. If the object's root
      * path and creation date are not in the file, then we do nothing. Otherwise,
-     * it is removed from the file. This method synchronizes on the root
-     * path so that two methods do not write the current time out at the same time.
+     * it is removed from the file. This method holds the creation date file's lock
+     * so that two methods do not write the file out at the same time.
      *
      * @param FileSystemObject The object to get the creation date for.
      * @throws IOException if a problem occurs re-writing the file.
@@ -114,36 +179,55 @@ public class CreationDateFile
     {
         String cdate = System.getProperty("use_creation_date");
         if ( "0".equals(cdate) ) return;
-        String absolutePath = obj.getAbsolutePath();
-        synchronized (absolutePath)
+        java.io.File f = getCreationDateFile(obj, false);
+        if (f == null) return;
+        synchronized ( getLock(f) )
         {
-            java.io.File f = getCreationDateFile(obj, false);
-            if (f == null) return;
-
             String rootPath = obj.getRootPath();
-            Vector contents = new Vector();
+            Vector lines = readCreationDateFile(f);
+            Vector contents = change(lines, rootPath, null);
+            if ( contents.size() == lines.size() ) return;
 
-            BufferedReader in = new BufferedReader( new FileReader(f) );
-            String line = null;
-            boolean inThere = false;
-            while ( (line=in.readLine()) != null )
+            storeCreationDateFile( f, contents, new String[] { rootPath, null } );
+        }
+    }
+
+    /**
+     * Returns the given lines with one change made. If the entry is given then it replaces
+     * the root path's entry. If it is null then the root path's entry is removed along with
+     * the entries of everything under it.
+     *
+     * @param Vector The lines of the creation date file.
+     * @param String The root path.
+     * @param String The new entry or null to remove it.
+     * @return Vector
+     */
+    private static Vector change(Vector lines, String rootPath, String entry)
+    {
+        Vector ret = new Vector();
+        int size = lines.size();
+        for (int i=0; i<size; i++)
+        {
+            String line = (String)lines.get(i);
+            if (entry != null)
             {
-                //indexOf cause we are removing all subfiles too for delete this is great
-                //for rename, the sub file creation dates are lost. no way to know right here
-                //TO DO - address this with a way to change the subfolder entries somehow
-                if (line.indexOf(rootPath) == 0) inThere = true;
-                else contents.add(line);
+                if ( !line.substring(0, line.lastIndexOf("=")).equals(rootPath) ) ret.add(line);
+            }
+            //indexOf cause we are removing all subfiles too for delete this is great
+            //for rename, the sub file creation dates are lost. no way to know right here
+            //TO DO - address this with a way to change the subfolder entries somehow
+            else if (line.indexOf(rootPath) != 0)
+            {
+                ret.add(line);
             }
-            in.close();
-            if (!inThere) return;
-
-            writeCreationDateFile(f, contents);
         }
+        if (entry != null) ret.add(entry);
+        return ret;
     }
 
     /**
-     * Writes out the contents of the creation date file. This method is synchronized on
-     * the absolute path of the given file.
+     * Writes out the contents of the creation date file. This method holds the lock for
+     * the given file.
      *
      * @param java.io.File The creation date file.
      * @param Vector A vector containing the lines to write out.
@@ -153,8 +237,7 @@ public class CreationDateFile
     {
         String cdate = System.getProperty("use_creation_date");
         if ( "0".equals(cdate) ) return;
-        String absolutePath = f.getAbsolutePath();
-        synchronized (absolutePath)
+        synchronized ( getLock(f) )
         {
             int size = contents.size();
             PrintWriter out = new PrintWriter( new BufferedWriter(new FileWriter(f)) );
@@ -167,6 +250,96 @@ public class CreationDateFile
         }
     }
 
+    /**
+     * Returns the lines of the given creation date file. If a batch is open then the
+     * lines are read from disk only the first time and kept in memory after that. A
+     * file that does not exist yet returns an empty Vector.
+     *
+     * @param java.io.File The creation date file.
+     * @return Vector
+     * @throws IOException if an error occurred reading the file.
+     */
+    private static Vector readCreationDateFile(java.io.File f) throws IOException
+    {
+        Hashtable batch = (Hashtable)_batch.get();
+        String absolutePath = f.getAbsolutePath();
+        if (batch != null && batch.get(absolutePath) != null) return (Vector)batch.get(absolutePath);
+
+        Vector ret = new Vector();
+        if ( f.exists() )
+        {
+            BufferedReader in = new BufferedReader( new FileReader(f) );
+            try
+            {
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    ret.add(line);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        if (batch != null) batch.put(absolutePath, ret);
+        return ret;
+    }
+
+    /**
+     * Returns the lock for the given creation date file. Everything that changes the file
+     * holds it from when the file is read until it is written.
+     *
+     * @param java.io.File The creation date file.
+     * @return Object
+     */
+    private static Object getLock(java.io.File f)
+    {
+        String absolutePath = f.getAbsolutePath();
+        synchronized (_locks)
+        {
+            Object ret = _locks.get(absolutePath);
+            if (ret == null)
+            {
+                ret = new Object();
+                _locks.put(absolutePath, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Stores the new contents of the given creation date file. If a batch is open then
+     * the contents are kept in memory, the change is kept to be made again on commit, and
+     * the file is marked to be written on commit. Otherwise the file is written immediately.
+     *
+     * @param java.io.File The creation date file.
+     * @param Vector A vector containing the lines to write out.
+     * @param String[] The change that was made as the root path and the new entry or null.
+     * @throws IOException if an error occurred writing the file.
+     */
+    private static void storeCreationDateFile(java.io.File f, Vector contents, String[] change) throws IOException
+    {
+        Hashtable batch = (Hashtable)_batch.get();
+        if (batch == null)
+        {
+            writeCreationDateFile(f, contents);
+            return;
+        }
+        String absolutePath = f.getAbsolutePath();
+        batch.put(absolutePath, contents);
+        Hashtable changes = (Hashtable)_changes.get();
+        Vector made = (Vector)changes.get(absolutePath);
+        if (made == null)
+        {
+            made = new Vector();
+            changes.put(absolutePath, made);
+        }
+        made.add(change);
+        Vector dirty = (Vector)_dirty.get();
+        if ( !dirty.contains(absolutePath) ) dirty.add(absolutePath);
+    }
+
     /**
      * Returns the creation file given the SystemFileObject. If create flag is set to true,
      * then it creates the file if it doesn't exist. If the flag is false then it returns
@@ -185,4 +358,4 @@ public class CreationDateFile
         if (!f.exists() && !create) return null;
         else return f;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -92,6 +92,16 @@ public class Directory extends FileSystemObject implements Sortable
         return dir;
     }
 
+    /**
+     * Returns whether this is the user's home directory.
+     *
+     * @return boolean
+     */
+    public boolean isHomeDirectory()
+    {
+        return "/".equals( getRootPath() );
+    }
+
     /**
      * Returns a FileListing for all Files and Directories in this Directory. If the directory
      * is empty, then an empty FileListing object is returned.
@@ -139,6 +149,7 @@ public class Directory extends FileSystemObject implements Sortable
         }
         else
         {
+            filter.setHomeDirectory( isHomeDirectory() );
             String[] results = getInternalFile().list(filter);
             if (results == null) results = new String[0];
             FileListing listing = new FileListing(this, results.length);
@@ -171,7 +182,9 @@ public class Directory extends FileSystemObject implements Sortable
         }
         else
         {
-            String[] results = getInternalFile().list( new DirectoryFilter() );
+            DirectoryFilter filter = new DirectoryFilter();
+            filter.setHomeDirectory( isHomeDirectory() );
+            String[] results = getInternalFile().list(filter);
             if (results == null) results = new String[0];
             DirectoryTree tree = new DirectoryTree(this, results.length);
             String absolutePath = getAbsolutePath();
@@ -281,11 +294,18 @@ public class Directory extends FileSystemObject implements Sortable
 
     /**
      * This overrides the parent delete to make sure that we delete all of the contents too.
+     * If the trash is enabled then the whole directory is moved into the trash at once.
      *
      * @throws IOException if an error occurs deleting the file.
      */
     public void delete() throws IOException
     {
+        if ( Trash.isEnabled() )
+        {
+            super.delete(true);
+            return;
+        }
+
         //Go through each child and delete them. Reset the directory first to make sure we get everything
         _fileListing = getFileListing();
         int size = _fileListing.size();
@@ -324,8 +344,8 @@ public class Directory extends FileSystemObject implements Sortable
             ( (FileSystemObject)_fileListing.get(i) ).moveTo(newDir);
         }
 
-        //Delete this directory
-        super.delete();
+        //Delete this directory. It is empty now so there is no reason to trash it
+        super.delete(false);
 
         //Create a new internal file object
         setInternalFile( new java.io.File(newDir.getAbsolutePath()) );
@@ -1,5 +1,10 @@
 package com.zitego.filemanager;
 
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.BulkCopy;
+import com.zitego.filemanager.io.PartialFile;
+import com.zitego.filemanager.io.Preallocator;
+import com.zitego.filemanager.io.ResumableCopy;
 import com.zitego.util.Sortable;
 import java.io.*;
 import java.util.Date;
@@ -249,13 +254,33 @@ public abstract class FileSystemObject implements Comparable
     }
 
     /**
-     * Deletes the file.
+     * Deletes the file. If the trash is enabled then the file is moved into the
+     * user's trash instead of being removed from disk. Either way the space it gave
+     * back is taken off the user's Quota.
      *
      * @throws IOException if an error occurs deleting the file.
+     * @see Trash
      */
     public void delete() throws IOException
     {
-        if ( !_file.delete() ) throw new IOException( "Could not delete file: "+getRootPath() );
+        delete( Trash.isEnabled() );
+    }
+
+    /**
+     * Deletes the file either by moving it into the user's trash or by removing
+     * it from disk.
+     *
+     * @param boolean Whether to move the file into the trash.
+     * @throws IOException if an error occurs deleting the file.
+     */
+    void delete(boolean useTrash) throws IOException
+    {
+        //Only what no other hard link still holds is given back
+        Quota quota = Quota.get( getRootDirectory() );
+        long bytes = ( quota != null ? Quota.getSpaceFreed(new java.io.File(getRootDirectory()), _file) : 0L );
+        if (useTrash) Trash.getTrash(this).add(this);
+        else if ( !_file.delete() ) throw new IOException( "Could not delete file: "+getRootPath() );
+        if (quota != null) quota.adjust(-bytes);
         //Remove from .creation file
         CreationDateFile.removeCreationDate(this);
     }
@@ -279,7 +304,14 @@ public abstract class FileSystemObject implements Comparable
 
     /**
      * This method copies this FileSystemObject to the given directory. This copies the actual
-     * file contents to the new directory and sets a creations date.
+     * file contents to the new directory and sets a creations date. Files that are at least
+     * ResumableCopy.getThreshold() bytes are copied with a ResumableCopy so that a copy that
+     * is cut short picks up where it left off the next time it is run. Files that are at least
+     * BulkCopy.getThreshold() bytes, including those, are copied with direct I/O to keep them
+     * out of the page cache.
+     * The new file is preallocated to the size of this one (see Preallocator) and is written
+     * to a partial file that is renamed over the target (see PartialFile), so a target that
+     * is a hard link does not change the other files it is linked to.
      *
      * @param Directory The directory to move to.
      * @return FileSystemObject The new copied file.
@@ -287,7 +319,28 @@ public abstract class FileSystemObject implements Comparable
      */
     public FileSystemObject copyTo(Directory to) throws IOException
     {
-        writeToOutputStream( this, new FileOutputStream(new java.io.File(to.getAbsolutePath(), getName())) );
+        java.io.File target = new java.io.File( to.getAbsolutePath(), getName() );
+        if ( _size.getBytes() >= ResumableCopy.getThreshold() )
+        {
+            //Keeps its own partial file so that it can pick up where it left off
+            new ResumableCopy(_file, target).copy();
+        }
+        else
+        {
+            java.io.File partial = PartialFile.create(target, "copy");
+            boolean done = false;
+            try
+            {
+                if ( _size.getBytes() >= BulkCopy.getThreshold() ) BulkCopy.copy(_file, partial);
+                else copy(_file, partial);
+                PartialFile.replace(partial, target);
+                done = true;
+            }
+            finally
+            {
+                if (!done) partial.delete();
+            }
+        }
         FileSystemObject copiedFile = FileSystemObjectFactory.createObject( to.getAbsolutePath()+"/"+getName(), to.getRootDirectory() );
 
         //Set the creation date
@@ -295,6 +348,36 @@ public abstract class FileSystemObject implements Comparable
         return copiedFile;
     }
 
+    /**
+     * Copies the source file to the target file through their channels. The target is
+     * preallocated to the size of the source.
+     *
+     * @param source The file to copy.
+     * @param target The file to copy to.
+     * @throws IOException if an error occurs copying the file.
+     */
+    private static void copy(java.io.File source, java.io.File target) throws IOException
+    {
+        FileInputStream in = new FileInputStream(source);
+        try
+        {
+            RandomAccessFile out = Preallocator.open( target, in.getChannel().size() );
+            try
+            {
+                long written = BufferPool.getDefault().copy( in.getChannel(), out.getChannel() );
+                Preallocator.finish(out, written);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
     /**
      * Sets the sort direction. Greater than 0 is ascending, and less than or equal to 0 is descending.
      *
@@ -458,7 +541,9 @@ public abstract class FileSystemObject implements Comparable
     }
 
     /**
-     * Writes the given FileSystemObject to the given output stream and returns it.
+     * Writes the given FileSystemObject to the given output stream and returns it. Objects
+     * that are at least BulkCopy.getThreshold() bytes are read with a BulkCopy so that they
+     * do not push other files out of the page cache.
      *
      * @param FileSystemObject The file to write.
      * @param OutputStream The output stream to write to.
@@ -467,6 +552,18 @@ public abstract class FileSystemObject implements Comparable
      */
     public static OutputStream writeToOutputStream(FileSystemObject obj, OutputStream out) throws IOException
     {
+        if ( obj.getSize().getBytes() >= BulkCopy.getThreshold() )
+        {
+            try
+            {
+                BulkCopy.write(obj.getInternalFile(), out);
+            }
+            finally
+            {
+                out.close();
+            }
+            return out;
+        }
         return writeToOutputStream(new FileInputStream( obj.getAbsolutePath() ), out);
     }
 
@@ -487,12 +584,7 @@ public abstract class FileSystemObject implements Comparable
     {
         try
         {
-            byte[] buffer = new byte[4096];
-            int bytes_read;
-            while ( (bytes_read=in.read(buffer)) != -1 )
-            {
-                out.write(buffer, 0, bytes_read);
-            }
+            BufferPool.getDefault().copy(in, out);
         }
         finally
         {
@@ -511,18 +603,46 @@ public abstract class FileSystemObject implements Comparable
      */
     public String getContentAsString() throws IOException
     {
-        return writeToOutputStream( this, new ByteArrayOutputStream() ).toString();
+        //Size it up front so the array is not copied over and over as it grows
+        long size = _file.length();
+        int initial = (int)Math.min( Math.max(size, 32L), (long)Integer.MAX_VALUE-8 );
+        return writeToOutputStream( this, new ByteArrayOutputStream(initial) ).toString();
     }
 
     /**
-     * Saves the given contents for this file to disk.
+     * Saves the given contents for this file to disk. The contents are written to a new file
+     * that replaces this one (see PartialFile), so if the file is a hard link (see HashIndex)
+     * the other files it is linked to are not changed. Returns how many more bytes of disk
+     * space are used than before (negative if fewer), which the caller should charge to the
+     * user's Quota (see Explorer.writeContents).
      *
      * @param String The contents.
+     * @return long
      * @throws IOException if an error occurs writing the file.
      */
-    public void writeContents(String contents) throws IOException
+    public long writeContents(String contents) throws IOException
     {
         if (contents == null) throw new IllegalArgumentException("contents cannot be null");
-        writeToOutputStream( new ByteArrayInputStream(contents.getBytes()), new FileOutputStream(getInternalFile()) );
+        java.io.File f = getInternalFile();
+        java.io.File temp = PartialFile.create(f, "write");
+        try
+        {
+            OutputStream out = new FileOutputStream(temp);
+            try
+            {
+                out.write( contents.getBytes() );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            temp.delete();
+            throw ioe;
+        }
+        long written = temp.length();
+        return written - PartialFile.replace(temp, f);
     }
 }
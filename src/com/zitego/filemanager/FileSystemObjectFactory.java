@@ -88,6 +88,24 @@ public class FileSystemObjectFactory
         return ret;
     }
 
+    /**
+     * Creates a File given the absolute path of a regular file and the viewable root
+     * directory. Unlike createObject, this only checks the file system once and returns
+     * null if the path is not a regular file (it does not exist or is a directory).
+     *
+     * @param String The absolute path of the file.
+     * @param String The root directory.
+     * @return File
+     * @throws IllegalArgumentException if the root directory is invalid or either argument is null.
+     */
+    public static File createFile(String absolutePath, String rootDir) throws IllegalArgumentException
+    {
+        String rootPath = getRootPath(absolutePath, rootDir);
+        absolutePath = cleanTrailingSlash(absolutePath);
+        if ( !new java.io.File(absolutePath).isFile() ) return null;
+        return new File(absolutePath, rootPath);
+    }
+
     /**
      * Returns a root path suitable for passing into the constructor of a FileSystemObject
      * given an absolute path and the viewable root directory.
@@ -136,4 +154,4 @@ public class FileSystemObjectFactory
         if (len > 1 && path.charAt(len-1) == '/') return path.substring(0, len-1);
         else return path;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
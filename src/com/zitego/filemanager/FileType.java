@@ -16,6 +16,10 @@ package com.zitego.filemanager;
  */
 public class FileType implements Comparable
 {
+    /** Extensions of formats that are already compressed. */
+    private static final String COMPRESSED_EXTENSIONS =
+        ",zip,gz,tgz,bz2,xz,7z,rar,jar,war,z,lz,lzma,zst,cab,jpg,jpeg,png,gif,webp,heic,mp3,mp4,m4a,m4v,aac,ogg,oga,ogv," +
+        "flac,wma,wmv,mov,avi,mkv,webm,flv,docx,xlsx,pptx,odt,ods,odp,epub,";
     /** The extension. */
     private String _extension;
     /** The description. */
@@ -28,6 +32,8 @@ public class FileType implements Comparable
     private boolean _isTextFile = false;
     /** If this is a binary file. */
     private boolean _isBinaryFile = false;
+    /** How many seconds clients may cache this type for, or -1 if not specified. */
+    private int _maxAge = -1;
 
     /**
      * Creates a new FileType with the extension, description, icon name,
@@ -40,6 +46,23 @@ public class FileType implements Comparable
      */
     FileType(String ext, String desc, String icon, String mime)
     {
+        this(ext, desc, icon, mime, -1);
+    }
+
+    /**
+     * Creates a new FileType with the extension, description, icon name,
+     * mime type, and the number of seconds clients may cache files of this
+     * type for (-1 if not specified).
+     *
+     * @param String The extension.
+     * @param String The description.
+     * @param String The icon name.
+     * @param String The mime type.
+     * @param int The max age in seconds.
+     */
+    FileType(String ext, String desc, String icon, String mime, int maxAge)
+    {
+        _maxAge = maxAge;
         _extension = (ext == null ? "" : ext);
         _description = ("".equals(desc) ? null : desc);
         _iconName = ("".equals(icon) ? null : icon);;
@@ -111,6 +134,32 @@ public class FileType implements Comparable
         return _isBinaryFile;
     }
 
+    /**
+     * Returns whether files of this type are already compressed, such as images, audio,
+     * video, and archives. Compressing these again wastes time for no gain.
+     *
+     * @return boolean
+     */
+    public boolean isCompressed()
+    {
+        if (_extension.length() > 0 && COMPRESSED_EXTENSIONS.indexOf(","+_extension.toLowerCase()+",") > -1) return true;
+        if (_mimeType == null) return false;
+        return ( _mimeType.startsWith("video/") || _mimeType.startsWith("audio/") || _mimeType.indexOf("zip") > -1 ||
+                 _mimeType.indexOf("compressed") > -1 || "image/jpeg".equals(_mimeType) || "image/png".equals(_mimeType) ||
+                 "image/gif".equals(_mimeType) );
+    }
+
+    /**
+     * Returns the number of seconds clients may cache files of this type for
+     * without checking back, or -1 if it was not specified.
+     *
+     * @return int
+     */
+    public int getMaxAge()
+    {
+        return _maxAge;
+    }
+
     /**
      * Compares this FileType to another based on the extension.
      *
@@ -129,4 +178,4 @@ public class FileType implements Comparable
         FileType type = (FileType)obj;
         return _extension.compareTo( type.getExtension() );
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -14,8 +14,10 @@ import java.util.*;
  *
  * It retrieves the information through it's load method by parsing a
  * properties file in the format of:<br>
- * <code>extension=description,icon name,mime type</code><br>
- * If the description has a comma in it, then surround it by quotes.
+ * <code>extension=description,icon name,mime type[,max age]</code><br>
+ * If the description has a comma in it, then surround it by quotes. The
+ * optional max age is the number of seconds a browser or cache may keep
+ * files of that type before checking for a new copy.
  * This file, by default, is located at Meta-Inf/filetypes.props. This
  * file path can be changed by using the setPropertiesFilePath(String)
  * method.<br><br>
@@ -43,6 +45,7 @@ public final class FileTypes
         System.out.println("desc="+type.getDescription());
         System.out.println("icon="+type.getIconName());
         System.out.println("mime="+type.getMimeType());
+        System.out.println("max age="+type.getMaxAge());
     }
 
      /**
@@ -124,8 +127,20 @@ public final class FileTypes
             String line = props.getProperty(ext);
             ext = ext.toLowerCase();
             String[] tokens = TextUtils.split(line, ',', '"');
-            if (tokens.length != 3) throw new ParseException("Invalid format: "+ext+"="+line, 0);
-            _types.put( ext, new FileType(ext, tokens[0], tokens[1], tokens[2]) );
+            if (tokens.length != 3 && tokens.length != 4) throw new ParseException("Invalid format: "+ext+"="+line, 0);
+            int maxAge = -1;
+            if (tokens.length == 4 && tokens[3].trim().length() > 0)
+            {
+                try
+                {
+                    maxAge = Integer.parseInt( tokens[3].trim() );
+                }
+                catch (NumberFormatException nfe)
+                {
+                    throw new ParseException("Invalid max age: "+ext+"="+line, 0);
+                }
+            }
+            _types.put( ext, new FileType(ext, tokens[0], tokens[1], tokens[2], maxAge) );
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
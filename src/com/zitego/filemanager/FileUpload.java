@@ -1,23 +1,44 @@
 package com.zitego.filemanager;
 
+import com.zitego.filemanager.archive.Expander;
+import com.zitego.filemanager.archive.Expanders;
+import com.zitego.filemanager.archive.Expansion;
+import com.zitego.filemanager.archive.ExpansionLimitException;
+import com.zitego.filemanager.archive.ZipExtractor;
+import com.zitego.filemanager.archive.ZipStreamExtractor;
 import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.io.Bandwidth;
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.HardLinks;
+import com.zitego.filemanager.io.PartialFile;
+import com.zitego.filemanager.io.Preallocator;
+import com.zitego.filemanager.io.Throttle;
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.Hex;
 import com.zitego.util.NonFatalException;
 import java.util.Vector;
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipException;
 import java.io.InputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.security.MessageDigest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpServlet;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.DiskFileUpload;
 import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.ProgressListener;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 
 /**
  * This is a class used to handle uploading files.
@@ -33,11 +54,17 @@ public class FileUpload
     protected Vector _uploadedFiles = new Vector();
     /** The other request parameters passed in. */
     protected Hashtable _params = new Hashtable();
+    /** The space set aside for the upload or null if there is no limit. */
+    private Quota.Reservation _reservation;
+    /** The length of the request or -1 if it is not known. */
+    private long _contentLength = -1L;
+    /** The progress of the upload. */
+    private UploadProgress _progress;
 
     public static void main(String[] args) throws Exception
     {
         FileUpload f = new FileUpload( new Explorer(args[0]) );
-        Vector ret = f.getZippedFiles(new ZipFile(args[1]), null);
+        Vector ret = f.getZippedFiles( new ZipFile(args[1]) );
         for (int i=0; i<ret.size(); i++)
         {
             System.out.println(ret.get(i));
@@ -55,7 +82,25 @@ public class FileUpload
     }
 
     /**
-     * Uploads the files in the given request.
+     * Uploads the files in the given request. Unless streaming uploads have been turned off
+     * (see isStreaming()) each file is written straight to its directory as it is read. When
+     * the expand_files field comes before an archive in the request (any type that has an
+     * expander in Expanders, such as zip, tar, or tar.gz) the archive is expanded as it is
+     * read and never stored. Setting the System property stream_expand to "0" saves the
+     * archive and expands it afterwards instead.<br><br>
+     *
+     * A zip can store a file with its size after its data, which cannot be read front to
+     * back, so a zip like that is refused when it is expanded as it is read. Setting the
+     * System property stream_expand_zip to "0" saves zips and extracts them from their
+     * central directory afterwards (see getZippedFiles) while other archives are still
+     * expanded as they are read.<br><br>
+     *
+     * The progress of the upload can be followed with UploadProgress under the upload_id
+     * given in the query string.<br><br>
+     *
+     * The content length of the request is reserved from the user's Quota before anything
+     * is read, so uploads running at the same time cannot go over it together. The bytes
+     * that are kept are committed when the upload is done and the rest is handed back.
      *
      * @param request The request object.
      * @throws IOException if an error occurs uploading the file(s).
@@ -65,22 +110,137 @@ public class FileUpload
     public void upload(HttpServletRequest request) throws IOException, ZipException, FileUploadException, NonFatalException
     {
         Vector files = new Vector();
+        Vector expanded = new Vector();
         boolean expand = false;
         String rootPath = _explorer.getFileListing().getParentDirectory().getAbsolutePath();
-        //Figure out how much total space we have
-        FileSize freeSpace = _explorer.getFreeDiskSpace();
+        HttpSession session = request.getSession();
+        Quota quota = _explorer.getQuota();
+        long sizeMax = (quota != null ? quota.getFree() : -1L);
 
-        DiskFileUpload upload = new DiskFileUpload();
+        //Progress is kept by the upload_id in the query string so several uploads can be followed
+        UploadProgress progress = UploadProgress.create( request.getParameter("upload_id"), _explorer );
+        //Pages written for the single session listener still get updates
+        progress.setListener( (ProgressListener)session.getAttribute("UPLOAD_LISTENER") );
+        _progress = progress;
+        _contentLength = getContentLength(request);
+        try
+        {
+            if (quota != null)
+            {
+                //Set aside what the request says it will need, it grows if that is not enough
+                _reservation = quota.reserve( Math.max(0L, _contentLength) );
+                if (_reservation == null) throw new NonFatalException("Not Enough Space left to upload");
+            }
 
-        //Setup an upload listener
-        HttpSession session = request.getSession();
-        FileUploadListener listener = (FileUploadListener)session.getAttribute("UPLOAD_LISTENER");
-        if (listener != null) upload.setProgressListener(listener);
+            if ( isStreaming() )
+            {
+                ServletFileUpload upload = new ServletFileUpload();
+                setup(upload, session, sizeMax, progress);
+                String encoding = request.getCharacterEncoding();
+                expand = streamFiles
+                (
+                    upload.getItemIterator(request), rootPath, (encoding != null ? encoding : "ISO-8859-1"), files, expanded
+                );
+            }
+            else
+            {
+                DiskFileUpload upload = new DiskFileUpload();
+                setup(upload, session, sizeMax, progress);
+                //Always write to disk
+                expand = writeFiles( upload.parseRequest(request), rootPath, files );
+            }
 
-        //Always write to disk
-        if (freeSpace != null) upload.setSizeMax( freeSpace.getBytes() );
-        List requestParams = upload.parseRequest(request);
+            int size = files.size();
+            //Go through the files and add them
+            for (int i=0; i<size; i++)
+            {
+                java.io.File f = (java.io.File)files.get(i);
+                //If we are expanding and this is an archive, then expand it
+                if (expand)
+                {
+                    Expander expander = Expanders.getExpander( f.getName() );
+                    //Zip files can be extracted in parallel once they are saved
+                    if (expander instanceof ZipStreamExtractor) addFiles( getZippedFiles(new ZipFile(f)) );
+                    else if (expander != null) addFiles( getExpandedFiles(f, expander) );
+                }
+                else
+                {
+                    addFile(f);
+                }
+            }
+            //These were expanded as they were uploaded
+            addFiles(expanded);
+        }
+        finally
+        {
+            //Keep what was written and hand the rest back
+            if (_reservation != null) _reservation.commit();
+            progress.finish();
+            session.removeAttribute("UPLOAD_LISTENER");
+        }
+    }
+
+    /**
+     * Returns the length of the request body or -1 if it is not known. The header is read
+     * as a long, since getContentLength gives -1 for uploads of 2gb or more.
+     *
+     * @param request The request.
+     * @return long
+     */
+    private static long getContentLength(HttpServletRequest request)
+    {
+        try
+        {
+            String val = request.getHeader("Content-Length");
+            if (val != null) return Long.parseLong( val.trim() );
+        }
+        catch (NumberFormatException nfe) { }
+        return request.getContentLength();
+    }
+
+    /**
+     * Returns whether uploads are streamed straight to their directory. The parts of a
+     * streamed upload are never spooled to a temporary file first, so each byte is written
+     * to disk once. Setting the System property streaming_upload to "0" goes back to parsing
+     * the whole request to disk before anything is written.
+     *
+     * @return boolean
+     */
+    public static boolean isStreaming()
+    {
+        return !"0".equals( System.getProperty("streaming_upload") );
+    }
+
+    /**
+     * Sets up the upload listener and size limit.
+     *
+     * @param upload The upload parser.
+     * @param session The session.
+     * @param sizeMax The most the request may be or -1 if there is no limit.
+     * @param progress The upload's progress.
+     */
+    private void setup(FileUploadBase upload, HttpSession session, long sizeMax, UploadProgress progress)
+    {
+        //If uploads are limited then the listener holds the reading back
+        Throttle throttle = Bandwidth.getThrottle( _explorer.getAbsolutePath(), session.getId() );
+        if (throttle != null) upload.setProgressListener( new ThrottledUploadListener(throttle, progress) );
+        else upload.setProgressListener(progress);
+        upload.setSizeMax(sizeMax);
+    }
 
+    /**
+     * Writes the files that have already been parsed from the request and returns whether
+     * they should be expanded.
+     *
+     * @param requestParams The FileItems from the request.
+     * @param rootPath The directory to write the files to.
+     * @param files The Vector to add the written files to.
+     * @return boolean
+     * @throws NonFatalException if there is not enough space for a file.
+     */
+    private boolean writeFiles(List requestParams, String rootPath, Vector files) throws NonFatalException
+    {
+        boolean expand = false;
         int size = requestParams.size();
         String name = null;
         for (int i=0; i<size; i++)
@@ -96,33 +256,27 @@ public class FileUpload
             else
             {
                 long fileSize = param.getSize();
+                String fname = getFileName( param.getName() );
                 //If we are out of space, then error
-                if (freeSpace != null && freeSpace.getBytes()-fileSize < 0)
+                if ( fileSize > 0 && !use(fileSize) )
                 {
                     throw new NonFatalException("Not Enough Space left to upload "+param.getName());
                 }
-                else if (fileSize > 0)
+                else if (fileSize > 0 && fname != null)
                 {
-                    String fname = param.getName();
-                    //Parse out the name if necessary
-                    int index = fname.lastIndexOf("/");
-                    if (index > -1)
-                    {
-                        fname = fname.substring(index+1);
-                    }
-                    else
-                    {
-                        //Check for a \
-                        index = fname.lastIndexOf("\\");
-                        if (index > -1) fname = fname.substring(index+1);
-                    }
                     java.io.File f = new java.io.File(rootPath + "/" + fname);
+                    java.io.File temp = null;
                     try
                     {
-                        param.write(f);
+                        //Renamed over the target so that a hard link to it is not changed
+                        temp = PartialFile.create(f, "upload");
+                        param.write(temp);
+                        replaced( PartialFile.replace(temp, f) );
                     }
                     catch (Exception e)
                     {
+                        if (temp != null) temp.delete();
+                        free(fileSize);
                         throw new RuntimeException("Could not upload file "+fname, e);
                     }
                     files.add(f);
@@ -130,32 +284,235 @@ public class FileUpload
                 }
                 else
                 {
+                    free(fileSize);
                     param.delete();
                 }
             }
         }
+        return expand;
+    }
 
-        size = files.size();
-        //Go through the files and add them
-        for (int i=0; i<size; i++)
+    /**
+     * Reads the request one part at a time, writing each file straight to the given
+     * directory, and returns whether the files should be expanded. The free space is
+     * checked as the bytes are written rather than after the whole file has arrived.
+     *
+     * @param items The parts of the request.
+     * @param rootPath The directory to write the files to.
+     * @param encoding The character encoding of the form fields.
+     * @param files The Vector to add the written files to.
+     * @param expanded The Vector to add the files expanded from archives to.
+     * @return boolean
+     * @throws IOException if an error occurs reading the request or writing a file.
+     * @throws FileUploadException if the request cannot be parsed.
+     * @throws NonFatalException if there is not enough space for a file.
+     */
+    private boolean streamFiles(FileItemIterator items, String rootPath, String encoding, Vector files, Vector expanded)
+    throws IOException, FileUploadException, NonFatalException
+    {
+        boolean expand = false;
+        while ( items.hasNext() )
         {
-            java.io.File f = (java.io.File)files.get(i);
-            //If we are expanding and this is a zip file, then expand it
-            if (expand)
+            FileItemStream item = items.next();
+            String name = item.getFieldName();
+            InputStream in = item.openStream();
+            try
             {
-                FileType type = FileTypes.getFileTypeByName( f.getName() );
-                String mimeType = type.getMimeType();
-                if (mimeType != null && mimeType.indexOf("zip") > -1)
+                if ( item.isFormField() )
+                {
+                    String value = Streams.asString(in, encoding);
+                    if ( name.equals("expand_files") ) expand = "1".equals(value);
+                    else _params.put(name, value);
+                }
+                else
                 {
-                    addFiles( getZippedFiles(new ZipFile(f), freeSpace) );
+                    String fname = getFileName( item.getName() );
+                    if (fname == null) continue;
+                    Expander expander = null;
+                    if ( expand && !"0".equals(System.getProperty("stream_expand")) ) expander = Expanders.getExpander(fname);
+                    //Saved and extracted with the others
+                    if ( expander instanceof ZipStreamExtractor && "0".equals(System.getProperty("stream_expand_zip")) ) expander = null;
+                    if (expander != null)
+                    {
+                        expand(expander, in, rootPath, fname, expanded);
+                        _params.put(name, fname);
+                        continue;
+                    }
+                    java.io.File f = new java.io.File(rootPath + "/" + fname);
+                    if ( streamFile(in, f) >= 0 )
+                    {
+                        files.add(f);
+                        _params.put(name, fname);
+                    }
                 }
             }
-            else
+            finally
             {
-                addFile(f);
+                in.close();
             }
         }
-        session.removeAttribute("UPLOAD_LISTENER");
+        return expand;
+    }
+
+    /**
+     * Expands the archive in the stream to the given directory without storing it and
+     * returns the number of bytes written. If it cannot be expanded, everything expanded
+     * from it is removed.
+     *
+     * @param expander The expander for the archive's type.
+     * @param in The archive.
+     * @param rootPath The directory to expand to.
+     * @param fname The name of the archive.
+     * @param expanded The Vector to add the expanded files to.
+     * @return long
+     * @throws IOException if an error occurs reading the archive or writing a file.
+     * @throws NonFatalException if there is not enough space, the archive is a decompression
+     *                           bomb, or it is a zip that cannot be read front to back.
+     */
+    private long expand(Expander expander, InputStream in, String rootPath, String fname, Vector expanded)
+    throws IOException, NonFatalException
+    {
+        Expansion expansion = new Expansion( new java.io.File(rootPath), fname, _reservation );
+        expansion.setHomeDirectory( isHomeDirectory() );
+        try
+        {
+            expander.expand(in, expansion);
+        }
+        catch (ExpansionLimitException ele)
+        {
+            expansion.abort();
+            throw new NonFatalException( ele.getMessage() );
+        }
+        catch (ZipException ze)
+        {
+            expansion.abort();
+            //Some zips can only be read from their central directory
+            throw new NonFatalException( "-"+fname+" could not be expanded as it was uploaded: "+ze.getMessage() );
+        }
+        catch (IOException ioe)
+        {
+            expansion.abort();
+            throw ioe;
+        }
+        finally
+        {
+            replaced( expansion.getBytesReplaced() );
+        }
+        expanded.addAll( expansion.getFiles() );
+        return expansion.getBytesWritten();
+    }
+
+    /**
+     * Writes the stream to a partial file in the target's directory and renames it to the
+     * target when it is complete, so a file is never seen half uploaded. Returns the number
+     * of bytes of new space used, or -1 if the file was empty and was not kept.<br><br>
+     *
+     * The partial file is preallocated to the rest of the request (see Preallocator) since
+     * that is the most the file can be, and is cut to its real size when it is complete.<br><br>
+     *
+     * The file's digest is worked out as it is written. If the same bytes are already in a
+     * file in the user's home directory (see HashIndex) the target is made a hard link to
+     * that file and the bytes written are thrown away, so no new space is used.
+     *
+     * @param in The stream.
+     * @param f The file to write.
+     * @return long
+     * @throws IOException if an error occurs writing the file.
+     * @throws NonFatalException if the file is larger than the space available.
+     */
+    private long streamFile(InputStream in, java.io.File f) throws IOException, NonFatalException
+    {
+        java.io.File temp = PartialFile.create(f, "upload");
+        MessageDigest digest = ( HashIndex.isEnabled() ? HashIndex.createDigest() : null );
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        long written = 0L;
+        long used = 0L;
+        boolean done = false;
+        try
+        {
+            RandomAccessFile out = Preallocator.open( temp, (_contentLength > 0 ? _contentLength-_progress.getBytesRead() : -1L) );
+            try
+            {
+                int count;
+                while ( (count=in.read(buffer)) != -1 )
+                {
+                    if ( !use(count) ) throw new NonFatalException("Not Enough Space left to upload "+f.getName());
+                    written += count;
+                    out.write(buffer, 0, count);
+                    if (digest != null) digest.update(buffer, 0, count);
+                }
+                Preallocator.finish(out, written);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (written == 0) return -1L;
+
+            used = written;
+            String hex = null;
+            HashIndex index = null;
+            if (digest != null)
+            {
+                hex = Hex.toHex( digest.digest() );
+                index = HashIndex.getInstance( _explorer.getAbsolutePath() );
+                java.io.File copy = index.find(hex, written);
+                if ( copy != null && copy.getAbsoluteFile().equals(f.getAbsoluteFile()) )
+                {
+                    //The same file uploaded over itself
+                    done = true;
+                    used = 0L;
+                    return 0L;
+                }
+                java.io.File link = new java.io.File( temp.getPath()+"-link" );
+                if ( copy != null && HardLinks.createLink(link, copy) )
+                {
+                    temp.delete();
+                    temp = link;
+                    used = 0L;
+                }
+            }
+
+            replaced( PartialFile.replace(temp, f) );
+            done = true;
+            if (index != null && used > 0) index.add(f, hex);
+        }
+        finally
+        {
+            pool.release(buffer);
+            pool.moved(written);
+            if (!done || temp.exists()) temp.delete();
+            //Whatever was not kept does not count
+            free(done ? written-used : written);
+        }
+        return used;
+    }
+
+    /**
+     * Returns the name of an uploaded file without any path the browser sent with it, or
+     * null if there is no name or it is not one that can be written.
+     *
+     * @param fname The name from the request.
+     * @return String
+     */
+    private String getFileName(String fname)
+    {
+        if (fname == null) return null;
+        //Parse out the name if necessary
+        int index = fname.lastIndexOf("/");
+        if (index > -1)
+        {
+            fname = fname.substring(index+1);
+        }
+        else
+        {
+            //Check for a \
+            index = fname.lastIndexOf("\\");
+            if (index > -1) fname = fname.substring(index+1);
+        }
+        if ( fname.length() == 0 || ".".equals(fname) || "..".equals(fname) || FileFilter.isReserved(fname, isHomeDirectory()) ) return null;
+        return fname;
     }
 
     /**
@@ -185,83 +542,132 @@ public class FileUpload
     }
 
     /**
-     * Returns a Vector of java.io.File objects from the given ZipFile.
+     * Returns a Vector of java.io.File objects from the given ZipFile. The files are
+     * extracted in parallel (see ZipExtractor) after checking that they all fit in the
+     * free space. The zip file is closed and deleted.
      *
      * @param zipFile The ZipFile.
-     * @param freeSpace The amount of freespace.
      * @throws IOException if an error occurs unzipping the file.
      * @throws NonFatalException if there is not enough space to expand the file.
      */
-    public Vector getZippedFiles(ZipFile zipFile, FileSize freeSpace) throws IOException, NonFatalException
+    public Vector getZippedFiles(ZipFile zipFile) throws IOException, NonFatalException
     {
-        Vector ret = new Vector();
-        long freeSpaceBytes = (freeSpace != null ? freeSpace.getBytes() : 0L);
+        java.io.File f = new java.io.File( zipFile.getName() );
+        long length = getSpaceFreed(f);
         try
         {
             String rootPath = _explorer.getFileListing().getParentDirectory().getAbsolutePath();
-            //Go through each entry
-            for (Enumeration e=zipFile.entries(); e.hasMoreElements();)
+            ZipExtractor extractor = new ZipExtractor( zipFile, new java.io.File(rootPath), isHomeDirectory() );
+            //Check for available space before anything is written
+            if ( !use(extractor.getSize()) )
             {
-                ZipEntry entry = (ZipEntry)e.nextElement();
-                String name = entry.getName();
-                //Strip off the leading slash if there is one
-                if (name.charAt(0) == '/') name = name.substring(1);
-
-                //Create the file object
-                java.io.File f = new java.io.File(rootPath + "/" + name);
-
-                //Check to see if this is a directory and it already exists
-                if ( entry.isDirectory() && f.exists() ) continue;
-
-                //See if the directories in this path exist. If not, then create them
-                int index = -1;
-                int lastIndex = 0;
-                while ( (index=name.indexOf("/", lastIndex)) != -1 )
-                {
-                    java.io.File dir = new java.io.File( rootPath + "/" + name.substring(0, index) );
-                    if ( !dir.exists() )
-                    {
-                        dir.mkdir();
-                        ret.add(dir);
-                    }
-                    lastIndex = index+1;
-                }
-                ret.add(f);
-
-                //Write the new files
-                if ( !entry.isDirectory() )
-                {
-                    if (freeSpace != null)
-                    {
-                        //Check for available space
-                        freeSpaceBytes -= entry.getSize();
-                        if (freeSpaceBytes < 0) throw new NonFatalException("Not enough space left to expand "+zipFile.getName());
-                    }
-
-                    //Extract the file
-                    InputStream in = zipFile.getInputStream(entry);
-                    FileOutputStream out = new FileOutputStream(f);
-                    byte[] buffer = new byte[4096];
-                    int bytes_read;
-                    while ( (bytes_read=in.read(buffer)) != -1 )
-                    {
-                        out.write(buffer, 0, bytes_read);
-                    }
-                    in.close();
-                    out.close();
-                }
+                throw new NonFatalException("Not enough space left to expand "+zipFile.getName());
+            }
+            try
+            {
+                return extractor.extract();
+            }
+            catch (IOException ioe)
+            {
+                //The new files have been removed but the ones written over others are kept
+                free( Math.max(0L, extractor.getSize()-extractor.getBytesExtracted()) );
+                throw ioe;
+            }
+            finally
+            {
+                replaced( extractor.getBytesReplaced() );
             }
         }
         finally
         {
             //Close and delete the zip file
             zipFile.close();
-            new java.io.File( zipFile.getName() ).delete();
+            if ( f.delete() ) free(length);
         }
+    }
 
+    /**
+     * Returns a Vector of java.io.File objects expanded from the given archive with the
+     * given expander. The archive is read once from start to end and is deleted afterwards.
+     *
+     * @param f The archive.
+     * @param expander The expander for the archive's type.
+     * @throws IOException if an error occurs expanding the archive.
+     * @throws NonFatalException if there is not enough space to expand the archive.
+     */
+    public Vector getExpandedFiles(java.io.File f, Expander expander) throws IOException, NonFatalException
+    {
+        Vector ret = new Vector();
+        long length = getSpaceFreed(f);
+        InputStream in = new BufferedInputStream( new FileInputStream(f) );
+        try
+        {
+            expand( expander, in, f.getParent(), f.getName(), ret );
+        }
+        finally
+        {
+            in.close();
+            if ( f.delete() ) free(length);
+        }
         return ret;
     }
 
+    /**
+     * Returns whether the files are being uploaded to the user's home directory.
+     *
+     * @return boolean
+     */
+    private boolean isHomeDirectory()
+    {
+        return _explorer.getFileListing().getParentDirectory().isHomeDirectory();
+    }
+
+    /**
+     * Returns the bytes that deleting the given uploaded file gives back. An archive that was
+     * saved as a hard link to a file that was already there (see HashIndex) was never
+     * counted, so it gives nothing back.
+     *
+     * @param f The file.
+     * @return long
+     */
+    private long getSpaceFreed(java.io.File f)
+    {
+        return Quota.getSpaceFreed( new java.io.File(_explorer.getAbsolutePath()), f );
+    }
+
+    /**
+     * Gives back the space held by files that the upload replaced.
+     *
+     * @param bytes The number of bytes.
+     */
+    private void replaced(long bytes)
+    {
+        Quota quota = _explorer.getQuota();
+        if (quota != null && bytes > 0) quota.adjust(-bytes);
+    }
+
+    /**
+     * Counts the given number of bytes against the upload's reservation and returns whether
+     * they fit. If there is no limit they always fit.
+     *
+     * @param bytes The number of bytes.
+     * @return boolean
+     */
+    private boolean use(long bytes)
+    {
+        return (_reservation == null || _reservation.use(bytes));
+    }
+
+    /**
+     * Takes back bytes counted with use that were not kept.
+     *
+     * @param bytes The number of bytes.
+     */
+    private void free(long bytes)
+    {
+        if (_reservation != null && bytes > 0) _reservation.free(bytes);
+    }
+
     /**
      * Returns the files uploaded as an array of FileSystemObjects.
      *
@@ -0,0 +1,251 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.io.HardLinks;
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.Hex;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * This class keeps the sha-256 digest of the files uploaded to a user's home directory so
+ * that a file that is uploaded again can be stored as a hard link to the copy that is
+ * already there instead of a second copy of the bytes (see FileUpload). The index is kept
+ * in the .hashes file in the user's root directory (the same place as the .creation file)
+ * with one line per file in the format of "digest size lastModified rootPath".<br><br>
+ *
+ * The index is only a hint. A file found through it is used only if it still has the size
+ * and modification time it had when it was indexed, and entries for files that have since
+ * been changed, moved, or deleted are dropped when they are found. New entries are appended
+ * to the file and the file is rewritten without the dropped entries once they make up most
+ * of it.<br><br>
+ *
+ * Deduplication is on unless the System property dedup_uploads is set to "0" and needs
+ * hard links (see HardLinks).
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class HashIndex
+{
+    /** The name of the index file. */
+    public static final String NAME = FileFilter.HASHES_NAME;
+    /** The loaded indexes keyed by home directory. */
+    private static Hashtable _indexes = new Hashtable();
+    /** The user's home directory. */
+    private java.io.File _home;
+    /** The index file. */
+    private java.io.File _file;
+    /** The entries keyed by "digest size". The value is { rootPath, Long lastModified }. */
+    private Hashtable _entries;
+    /** The number of lines in the index file. */
+    private int _lines = 0;
+
+    /**
+     * Usage: java HashIndex &lt;home dir&gt; &lt;file&gt;<br>
+     * Prints the digest of the file and the indexed file it is a copy of if there is one.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File f = new java.io.File(args[1]);
+        MessageDigest digest = createDigest();
+        InputStream in = new FileInputStream(f);
+        try
+        {
+            byte[] buffer = new byte[65536];
+            int count;
+            while ( (count=in.read(buffer)) != -1 )
+            {
+                digest.update(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        String hex = Hex.toHex( digest.digest() );
+        java.io.File copy = getInstance(args[0]).find( hex, f.length() );
+        System.out.println( hex + " " + (copy != null ? copy.getPath() : "(no copy)") );
+    }
+
+    /**
+     * Returns the index for the given home directory.
+     *
+     * @param home The absolute path of the home directory.
+     * @return HashIndex
+     */
+    public static HashIndex getInstance(String home)
+    {
+        synchronized (_indexes)
+        {
+            HashIndex ret = (HashIndex)_indexes.get(home);
+            if (ret == null)
+            {
+                ret = new HashIndex(home);
+                _indexes.put(home, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Returns whether uploads are deduplicated. This is true unless the System property
+     * dedup_uploads is set to "0" or hard links cannot be made.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return ( !"0".equals(System.getProperty("dedup_uploads")) && HardLinks.isAvailable() );
+    }
+
+    /**
+     * Returns a new digest of the kind the index uses.
+     *
+     * @return MessageDigest
+     */
+    public static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            //Every jvm has sha-256
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    /**
+     * Creates the index for the given home directory.
+     *
+     * @param home The absolute path of the home directory.
+     */
+    private HashIndex(String home)
+    {
+        _home = new java.io.File(home);
+        _file = new java.io.File(_home, NAME);
+    }
+
+    /**
+     * Returns the file in the home directory with the given digest and size or null if
+     * there is none.
+     *
+     * @param digest The digest in hex.
+     * @param size The size.
+     * @return java.io.File
+     * @throws IOException if the index cannot be read.
+     */
+    public synchronized java.io.File find(String digest, long size) throws IOException
+    {
+        load();
+        String key = digest + " " + size;
+        Object[] entry = (Object[])_entries.get(key);
+        if (entry == null) return null;
+        java.io.File ret = new java.io.File( _home, (String)entry[0] );
+        if ( ret.isFile() && ret.length() == size && ret.lastModified() == ((Long)entry[1]).longValue() ) return ret;
+        //It has changed since it was indexed
+        _entries.remove(key);
+        return null;
+    }
+
+    /**
+     * Adds the given file in the home directory to the index.
+     *
+     * @param f The file.
+     * @param digest The digest of its contents in hex.
+     * @throws IOException if the index cannot be written.
+     */
+    public synchronized void add(java.io.File f, String digest) throws IOException
+    {
+        String home = _home.getAbsolutePath();
+        String path = f.getAbsolutePath();
+        if ( !path.startsWith(home+java.io.File.separator) ) return;
+        String rootPath = path.substring( home.length() ).replace(java.io.File.separatorChar, '/');
+
+        load();
+        Long modified = new Long( f.lastModified() );
+        String key = digest + " " + f.length();
+        _entries.put( key, new Object[] { rootPath, modified } );
+        if ( _lines > _entries.size()*2 + 64 )
+        {
+            store();
+        }
+        else
+        {
+            PrintWriter out = new PrintWriter( new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file, true), "UTF-8")) );
+            out.println(key + " " + modified + " " + rootPath);
+            out.flush();
+            out.close();
+            _lines++;
+        }
+    }
+
+    /**
+     * Reads the index file the first time it is needed. Later lines replace earlier ones
+     * for the same digest and size.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private void load() throws IOException
+    {
+        if (_entries != null) return;
+        Hashtable entries = new Hashtable();
+        int lines = 0;
+        if ( _file.exists() )
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader(new FileInputStream(_file), "UTF-8") );
+            try
+            {
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    lines++;
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length < 4) continue;
+                    try
+                    {
+                        entries.put( fields[0] + " " + fields[1], new Object[] { fields[3], new Long(fields[2]) } );
+                    }
+                    catch (NumberFormatException nfe) { }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        _entries = entries;
+        _lines = lines;
+    }
+
+    /**
+     * Rewrites the index file with only the current entries. It is written to a partial
+     * file and renamed so that the index is never seen half written.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void store() throws IOException
+    {
+        java.io.File temp = new java.io.File(_home, FileFilter.PARTIAL_PREFIX+NAME);
+        PrintWriter out = new PrintWriter( new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")) );
+        for (Enumeration e=_entries.keys(); e.hasMoreElements();)
+        {
+            String key = (String)e.nextElement();
+            Object[] entry = (Object[])_entries.get(key);
+            out.println(key + " " + entry[1] + " " + entry[0]);
+        }
+        out.flush();
+        out.close();
+        //Windows will not rename over an existing file
+        if ( !temp.renameTo(_file) && !(_file.delete() && temp.renameTo(_file)) )
+        {
+            temp.delete();
+            throw new IOException("Could not write "+_file.getPath());
+        }
+        _lines = _entries.size();
+    }
+}
@@ -0,0 +1,450 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.io.HardLinks;
+import com.zitego.filemanager.util.SystemProperties;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the disk space of one user's home directory. Every explorer for the same home
+ * shares it, so uploads running at the same time in different requests or sessions all
+ * count against the same space. The space used is counted when the quota is first needed
+ * and is kept up to date from then on by the operations that write and delete files instead
+ * of walking the home directory for every request. So that what they miss (files changed
+ * outside of the file manager) does not build up, the space is counted again when a user
+ * logs in and the last count is older than the System property quota_recount (seconds,
+ * default 600, 0 to never count again).<br><br>
+ *
+ * An operation that is going to write reserves the space it expects to need first (an
+ * upload reserves its content length). Bytes written are then counted against the
+ * reservation, which grows if there is room when it runs out. When the operation is done it
+ * commits the reservation, which keeps the bytes that were used and hands the rest back,
+ * or releases it if nothing was kept. The space allocated (used plus reserved) is one
+ * counter changed with compare and set, so two reservations can never both take the last
+ * of the space and no thread ever waits on another.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class Quota
+{
+    /** The quotas keyed by home directory. */
+    private static Hashtable _quotas = new Hashtable();
+    /** The home directory. */
+    private java.io.File _home;
+    /** The total space allowed. */
+    private volatile long _total;
+    /** The space used plus the space reserved or -1 before it is counted. */
+    private AtomicLong _allocated = new AtomicLong(-1L);
+    /** The space reserved. */
+    private AtomicLong _reserved = new AtomicLong();
+    /** When the space used was last counted. */
+    private volatile long _counted = 0L;
+
+    /**
+     * Usage: java Quota &lt;home dir&gt; &lt;total bytes&gt;<br>
+     * Counts the space used in the home directory and prints the quota.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Quota quota = getInstance( args[0], Long.parseLong(args[1]) );
+        System.out.println( "Used: "+quota.getUsed()+", free: "+quota.getFree()+" of "+quota.getTotal() );
+    }
+
+    /**
+     * Returns the quota for the given home directory, setting its total. This is called
+     * when a user logs in, so the space used is counted again here if it is due.
+     *
+     * @param home The absolute path of the home directory.
+     * @param total The total space allowed in bytes.
+     * @return Quota
+     */
+    public static Quota getInstance(String home, long total)
+    {
+        Quota ret = null;
+        synchronized (_quotas)
+        {
+            ret = (Quota)_quotas.get(home);
+            if (ret == null)
+            {
+                ret = new Quota(home);
+                _quotas.put(home, ret);
+            }
+        }
+        ret._total = total;
+        //Outside of the lock above so one big home does not hold up the others
+        ret.count();
+        return ret;
+    }
+
+    /**
+     * Returns the quota for the given home directory if it has been made, or null. Nothing
+     * is counted here.
+     *
+     * @param home The absolute path of the home directory.
+     * @return Quota
+     */
+    static Quota get(String home)
+    {
+        return (Quota)_quotas.get(home);
+    }
+
+    /**
+     * Creates the quota for the given home directory.
+     *
+     * @param home The absolute path of the home directory.
+     */
+    private Quota(String home)
+    {
+        _home = new java.io.File(home);
+    }
+
+    /**
+     * Counts the space used the first time the quota is needed and again when the last
+     * count is older than the recount interval.
+     */
+    private void count()
+    {
+        if ( _allocated.get() >= 0 && !isRecountDue() ) return;
+        synchronized (this)
+        {
+            if ( _allocated.get() < 0 )
+            {
+                _allocated.set( getSpaceUsed(_home, _home) + _reserved.get() );
+                _counted = System.currentTimeMillis();
+            }
+            else if ( isRecountDue() )
+            {
+                recount();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the last count is older than the System property quota_recount.
+     *
+     * @return boolean
+     */
+    private boolean isRecountDue()
+    {
+        long interval = SystemProperties.getLong("quota_recount", 600L);
+        return ( interval > 0 && System.currentTimeMillis()-_counted >= interval*1000L );
+    }
+
+    /**
+     * Counts the space used again from the file system and returns whether the count was
+     * kept. This is for when files have been changed outside of the file manager. It is
+     * not kept while anything is reserved, since the bytes being written would be counted
+     * both on disk and in their reservation, or if the space changed while it was counting,
+     * since the change may or may not be in the count. Either way the next recount tries again.
+     *
+     * @return boolean
+     */
+    public synchronized boolean recount()
+    {
+        long allocated = _allocated.get();
+        if ( _reserved.get() > 0 ) return false;
+        long used = getSpaceUsed(_home, _home);
+        _counted = System.currentTimeMillis();
+        return _allocated.compareAndSet(allocated, used);
+    }
+
+    /**
+     * Reserves the given number of bytes and returns the reservation or null if there is not
+     * that much free.
+     *
+     * @param bytes The number of bytes.
+     * @return Quota.Reservation
+     */
+    public Reservation reserve(long bytes)
+    {
+        if ( !allocate(bytes) ) return null;
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Changes the space used by the given number of bytes without a reservation, for
+     * files that have already been written or deleted. The space used may go over the
+     * total this way.
+     *
+     * @param bytes The number of bytes, negative if space was freed.
+     */
+    public void adjust(long bytes)
+    {
+        _allocated.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the total space allowed.
+     *
+     * @return long
+     */
+    public long getTotal()
+    {
+        return _total;
+    }
+
+    /**
+     * Returns the space that is neither used nor reserved. This is negative if the space
+     * used is over the total.
+     *
+     * @return long
+     */
+    public long getFree()
+    {
+        return _total - _allocated.get();
+    }
+
+    /**
+     * Returns the space used.
+     *
+     * @return long
+     */
+    public long getUsed()
+    {
+        return _allocated.get() - _reserved.get();
+    }
+
+    /**
+     * Returns the space reserved.
+     *
+     * @return long
+     */
+    public long getReserved()
+    {
+        return _reserved.get();
+    }
+
+    /**
+     * Takes the given number of bytes from the free space if there is that much.
+     *
+     * @param bytes The number of bytes.
+     * @return boolean
+     */
+    private boolean allocate(long bytes)
+    {
+        if (bytes < 0) throw new IllegalArgumentException("bytes cannot be negative");
+        while (true)
+        {
+            long allocated = _allocated.get();
+            if (allocated + bytes > _total) return false;
+            if ( _allocated.compareAndSet(allocated, allocated+bytes) )
+            {
+                _reserved.addAndGet(bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the given number of bytes taken with allocate.
+     *
+     * @param bytes The number of bytes.
+     */
+    private void deallocate(long bytes)
+    {
+        _allocated.addAndGet(-bytes);
+        _reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the total disk space (in bytes) used in the given java.io.File. If the file is
+     * null, it returns 0. If the file is a directory, it recurses through it till it reaches
+     * an end. The trash and the hash index in the home directory do not count against the
+     * user's space and a file with several hard links (see HashIndex) is only counted once.
+     *
+     * @param home The home directory.
+     * @param file The file to get used space.
+     * @return long
+     */
+    public static long getSpaceUsed(java.io.File home, java.io.File file)
+    {
+        return getSpaceUsed( home, file, new HashSet() );
+    }
+
+    private static long getSpaceUsed(java.io.File home, java.io.File file, HashSet linked)
+    {
+        if (file == null)
+        {
+            return 0L;
+        }
+        if ( file.isFile() && HardLinks.getLinkCount(file) > 1 )
+        {
+            Object key = HardLinks.getFileKey(file);
+            if ( key != null && !linked.add(key) ) return 0L;
+        }
+        long ret = file.length();
+        if ( file.isDirectory() )
+        {
+            java.io.File[] files = file.listFiles();
+            if (files == null) files = new java.io.File[0];
+            for (int i=0; i<files.length; i++)
+            {
+                if ( isUncounted(home, files[i]) ) continue;
+                ret += getSpaceUsed(home, files[i], linked);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the disk space (in bytes) that deleting the given java.io.File would give back.
+     * This is the same as getSpaceUsed except that a file with several hard links (see
+     * HashIndex) only counts if every one of its names is in what is being deleted, since
+     * otherwise the names that are left still hold its bytes.
+     *
+     * @param home The home directory.
+     * @param file The file that is going to be deleted.
+     * @return long
+     */
+    public static long getSpaceFreed(java.io.File home, java.io.File file)
+    {
+        return getSpaceFreed( home, file, new Hashtable() );
+    }
+
+    private static long getSpaceFreed(java.io.File home, java.io.File file, Hashtable linked)
+    {
+        if (file == null)
+        {
+            return 0L;
+        }
+        if ( file.isFile() )
+        {
+            int links = HardLinks.getLinkCount(file);
+            if (links > 1)
+            {
+                Object key = HardLinks.getFileKey(file);
+                if (key == null) return 0L;
+                Integer seen = (Integer)linked.get(key);
+                int count = (seen != null ? seen.intValue() : 0) + 1;
+                linked.put( key, new Integer(count) );
+                return (count == links ? file.length() : 0L);
+            }
+        }
+        long ret = file.length();
+        if ( file.isDirectory() )
+        {
+            java.io.File[] files = file.listFiles();
+            if (files == null) files = new java.io.File[0];
+            for (int i=0; i<files.length; i++)
+            {
+                if ( isUncounted(home, files[i]) ) continue;
+                ret += getSpaceFreed(home, files[i], linked);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns whether the given file is one of the file manager's own in the home directory
+     * that does not count against the user's space.
+     *
+     * @param home The home directory.
+     * @param file The file.
+     * @return boolean
+     */
+    private static boolean isUncounted(java.io.File home, java.io.File file)
+    {
+        String name = file.getName();
+        return ( (Trash.NAME.equals(name) || HashIndex.NAME.equals(name)) && home.equals(file.getParentFile()) );
+    }
+
+    /**
+     * This is space set aside for one operation. Bytes written are counted against it with
+     * use and taken back with free if they are not kept. It must be committed or released
+     * exactly once; after that it does nothing.
+     */
+    public class Reservation
+    {
+        /** The bytes reserved. */
+        private AtomicLong _bytes;
+        /** The bytes used. */
+        private AtomicLong _used = new AtomicLong();
+        /** Whether it has been committed or released. */
+        private AtomicBoolean _closed = new AtomicBoolean(false);
+
+        private Reservation(long bytes)
+        {
+            _bytes = new AtomicLong(bytes);
+        }
+
+        /**
+         * Counts the given number of bytes against the reservation and returns whether they
+         * fit. If the reservation is used up it grows by what is needed if the quota has
+         * room. When two threads grow it at once only one of them keeps what it took.
+         *
+         * @param bytes The number of bytes.
+         * @return boolean
+         */
+        public boolean use(long bytes)
+        {
+            long used = _used.addAndGet(bytes);
+            while (true)
+            {
+                long reserved = _bytes.get();
+                if (used <= reserved) return true;
+                if ( !allocate(used-reserved) )
+                {
+                    _used.addAndGet(-bytes);
+                    return false;
+                }
+                if ( _bytes.compareAndSet(reserved, used) ) return true;
+                //Another thread grew it first, so look again with what it took
+                deallocate(used-reserved);
+            }
+        }
+
+        /**
+         * Takes back bytes that were counted with use but were not kept.
+         *
+         * @param bytes The number of bytes.
+         */
+        public void free(long bytes)
+        {
+            _used.addAndGet(-bytes);
+        }
+
+        /**
+         * Returns the bytes reserved.
+         *
+         * @return long
+         */
+        public long getBytes()
+        {
+            return _bytes.get();
+        }
+
+        /**
+         * Returns the bytes used.
+         *
+         * @return long
+         */
+        public long getUsed()
+        {
+            return _used.get();
+        }
+
+        /**
+         * Keeps the bytes used and hands the rest of the reservation back.
+         */
+        public void commit()
+        {
+            if ( !_closed.compareAndSet(false, true) ) return;
+            long bytes = _bytes.get();
+            //The reserved space becomes used space, then the unused part goes back
+            _reserved.addAndGet(-bytes);
+            _allocated.addAndGet( Math.max(0L, _used.get()) - bytes );
+        }
+
+        /**
+         * Hands the whole reservation back.
+         */
+        public void release()
+        {
+            if ( !_closed.compareAndSet(false, true) ) return;
+            deallocate( _bytes.get() );
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.PartialFile;
+import com.zitego.filemanager.io.Throttle;
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.Hex;
+import com.zitego.filemanager.util.SystemProperties;
+import com.zitego.util.NonFatalException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * This is a large upload sent in chunks so that a dropped connection only loses the chunk
+ * that was being sent. An upload is created with the name and size of the file, which is
+ * preallocated as a partial file (see PARTIAL_PREFIX) in the directory it is
+ * going to. Chunks can then be written at any offset, in any order, and several at once.
+ * Each chunk is written in place with positional writes and the ranges that have been
+ * received are kept, so a client that reconnects can ask what it still has to send. When
+ * every byte has been received the upload is finished and the partial file is renamed to
+ * the real name.<br><br>
+ *
+ * A chunk can be sent with its md5 and the upload can be created with the md5 of the whole
+ * file. A chunk whose md5 does not match is not counted as received, and an upload whose
+ * md5 does not match cannot be finished. Only the user that created an upload can use it.
+ * Uploads that have not been written to for resumable_upload_timeout seconds (default
+ * one day) are cancelled and their partial files deleted. Uploads are only kept in memory,
+ * so after a restart they cannot be resumed; their partial files are deleted by the
+ * UploadSweeper once they are older than the timeout. The file's size is reserved from
+ * the user's Quota when the upload is created and is kept when it is finished or handed
+ * back when it is cancelled.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ResumableUpload
+{
+    /** The start of the name of an upload's partial file. The upload's id follows it. */
+    public static final String PARTIAL_PREFIX = FileFilter.PARTIAL_PREFIX+"resumable-";
+    /** The uploads in progress keyed by id. */
+    private static Hashtable _uploads = new Hashtable();
+    /** Used to make ids. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** When idle uploads were last looked for. */
+    private static long _lastPrune = System.currentTimeMillis();
+    /** The id. */
+    private String _id;
+    /** The home directory of the user who owns the upload. */
+    private String _owner;
+    /** The root path of the directory the file is going to. */
+    private String _directory;
+    /** The file's name. */
+    private String _name;
+    /** The file's size. */
+    private long _size;
+    /** The md5 of the whole file in hex or null. */
+    private String _md5;
+    /** The partial file. */
+    private java.io.File _partial;
+    /** The partial file opened for writing. */
+    private RandomAccessFile _file;
+    /** The ranges received. The key is the first byte and the value is the byte after the last. */
+    private TreeMap _received = new TreeMap();
+    /** When the upload was last written to. */
+    private volatile long _lastUsed = System.currentTimeMillis();
+    /** Whether the upload has been finished or cancelled. */
+    private boolean _closed = false;
+    /** The space set aside for the file or null if there is no limit. */
+    private Quota.Reservation _reservation;
+
+    /**
+     * Usage: java ResumableUpload &lt;home dir&gt; &lt;file&gt; [chunk size]<br>
+     * Uploads the file to the home directory in chunks sent in reverse order and prints the
+     * ranges as they are received.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File f = new java.io.File(args[1]);
+        int chunk = (args.length > 2 ? Integer.parseInt(args[2]) : 1048576);
+        Explorer explorer = new Explorer(args[0]);
+        ResumableUpload upload = create( explorer, "/", f.getName(), f.length(), null );
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        for (long offset=(f.length()-1)/chunk*chunk; offset>=0; offset-=chunk)
+        {
+            byte[] data = new byte[ (int)Math.min(chunk, f.length()-offset) ];
+            in.seek(offset);
+            in.readFully(data);
+            upload.write( offset, new ByteArrayInputStream(data), data.length, null, null );
+            System.out.println( "received " + upload.getRanges() );
+        }
+        in.close();
+        System.out.println( "finished " + upload.finish(explorer).getAbsolutePath() );
+    }
+
+    /**
+     * Creates a new upload.
+     *
+     * @param explorer The user's explorer.
+     * @param directory The root path of the directory to upload to.
+     * @param name The name of the file.
+     * @param size The size of the file.
+     * @param md5 The md5 of the whole file in hex or null.
+     * @return ResumableUpload
+     * @throws NonFatalException if the directory or name is invalid or there is not enough space.
+     * @throws IOException if the partial file cannot be created.
+     */
+    public static ResumableUpload create(Explorer explorer, String directory, String name, long size, String md5)
+    throws NonFatalException, IOException
+    {
+        prune();
+        FileSystemObject dir = explorer.resolve(directory);
+        if ( !(dir instanceof Directory) ) throw new NonFatalException("-"+directory+" is not a directory.");
+        if ( name == null || name.length() == 0 || name.indexOf("/") > -1 || name.indexOf("\\") > -1 ||
+             ".".equals(name) || "..".equals(name) || FileFilter.isReserved(name, "/".equals(dir.getRootPath())) )
+        {
+            throw new NonFatalException("-"+name+" is not a valid file name.");
+        }
+        if (size < 0) throw new NonFatalException("-The file size must be given.");
+        Quota quota = explorer.getQuota();
+        Quota.Reservation reservation = (quota != null ? quota.reserve(size) : null);
+        if (quota != null && reservation == null) throw new NonFatalException("Not Enough Space left to upload "+name);
+
+        ResumableUpload ret = new ResumableUpload();
+        ret._reservation = reservation;
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        ret._id = Hex.toHex(bytes);
+        ret._owner = explorer.getAbsolutePath();
+        ret._directory = dir.getRootPath();
+        ret._name = name;
+        ret._size = size;
+        ret._md5 = (md5 != null ? md5.toLowerCase() : null);
+        ret._partial = new java.io.File( dir.getAbsolutePath(), PARTIAL_PREFIX+ret._id );
+        ret._file = new RandomAccessFile(ret._partial, "rw");
+        try
+        {
+            ret._file.setLength(size);
+        }
+        catch (IOException ioe)
+        {
+            ret._file.close();
+            ret._partial.delete();
+            if (reservation != null) reservation.release();
+            throw ioe;
+        }
+        _uploads.put(ret._id, ret);
+        return ret;
+    }
+
+    /**
+     * Returns the upload with the given id if it belongs to the user of the given explorer,
+     * or null if there is no such upload.
+     *
+     * @param id The id.
+     * @param explorer The user's explorer.
+     * @return ResumableUpload
+     */
+    public static ResumableUpload get(String id, Explorer explorer)
+    {
+        prune();
+        ResumableUpload ret = (id != null ? (ResumableUpload)_uploads.get(id) : null);
+        return ( ret != null && ret._owner.equals(explorer.getAbsolutePath()) ? ret : null );
+    }
+
+    /**
+     * Cancels the uploads that have not been used within the timeout. This looks at most
+     * once a minute.
+     */
+    static void prune()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (_uploads)
+        {
+            if (now - _lastPrune < 60000L) return;
+            _lastPrune = now;
+        }
+        long timeout = getTimeout();
+        Vector uploads = new Vector( _uploads.values() );
+        for (int i=0; i<uploads.size(); i++)
+        {
+            ResumableUpload upload = (ResumableUpload)uploads.get(i);
+            if (now - upload._lastUsed > timeout) upload.cancel();
+        }
+    }
+
+    /**
+     * Returns whether the given file name is the name of an upload's partial file. That is
+     * the partial prefix followed by an id of 32 hex digits.
+     *
+     * @param name The file name.
+     * @return boolean
+     */
+    public static boolean isPartialFile(String name)
+    {
+        if ( !name.startsWith(PARTIAL_PREFIX) || name.length() != PARTIAL_PREFIX.length()+32 ) return false;
+        for (int i=PARTIAL_PREFIX.length(); i<name.length(); i++)
+        {
+            if ( Character.digit(name.charAt(i), 16) < 0 ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long an upload can go unused before it is cancelled in milliseconds. This
+     * is set in seconds with the System property resumable_upload_timeout.
+     *
+     * @return long
+     */
+    public static long getTimeout()
+    {
+        return SystemProperties.getLong("resumable_upload_timeout", 86400L) * 1000L;
+    }
+
+    /**
+     * Writes a chunk of the file and returns the number of bytes received so far. The chunk
+     * is only counted as received if all of it was read and its md5 matches.
+     *
+     * @param offset Where the chunk goes in the file.
+     * @param in The chunk.
+     * @param length The length of the chunk.
+     * @param md5 The md5 of the chunk or null.
+     * @param throttle The throttle to read the chunk at or null.
+     * @return long
+     * @throws NonFatalException if the chunk does not fit in the file or its md5 does not match.
+     * @throws IOException if an error occurs reading or writing the chunk.
+     */
+    public long write(long offset, InputStream in, long length, byte[] md5, Throttle throttle) throws NonFatalException, IOException
+    {
+        if (offset < 0 || length < 0 || offset+length > _size) throw new NonFatalException("-The chunk does not fit in the file.");
+        FileChannel channel = getChannel();
+        MessageDigest digest = (md5 != null ? Hex.createMd5() : null);
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        long written = 0L;
+        boolean done = false;
+        try
+        {
+            while (written < length)
+            {
+                int count = in.read( buffer, 0, (int)Math.min(buffer.length, length-written) );
+                if (count == -1) throw new EOFException("The chunk ended after "+written+" of "+length+" bytes");
+                if (throttle != null) throttle.acquire(count);
+                if (digest != null) digest.update(buffer, 0, count);
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, count);
+                while ( bb.hasRemaining() )
+                {
+                    channel.write( bb, offset+written+bb.position() );
+                }
+                written += count;
+                _lastUsed = System.currentTimeMillis();
+            }
+            if ( digest != null && !MessageDigest.isEqual(md5, digest.digest()) )
+            {
+                throw new NonFatalException("-The chunk at "+offset+" is corrupt.");
+            }
+            done = true;
+        }
+        finally
+        {
+            pool.release(buffer);
+            pool.moved(written);
+            //What was there before may have been overwritten with bad data
+            if (done) addRange(offset, offset+length);
+            else removeRange(offset, offset+length);
+        }
+        return getReceived();
+    }
+
+    /**
+     * Finishes the upload. Every byte must have been received and the md5 of the file must
+     * match if one was given. The partial file is renamed to the file's name, replacing any
+     * file that is already there.
+     *
+     * @param explorer The user's explorer.
+     * @return FileSystemObject
+     * @throws NonFatalException if the upload is incomplete or corrupt.
+     * @throws IOException if an error occurs renaming the file.
+     */
+    public synchronized FileSystemObject finish(Explorer explorer) throws NonFatalException, IOException
+    {
+        if (_closed) throw new NonFatalException("-The upload has already been finished.");
+        if ( !isComplete() ) throw new NonFatalException("-The upload is missing bytes. It has "+getRanges());
+        _file.close();
+        if ( _md5 != null && !_md5.equals(getMd5(_partial)) )
+        {
+            cancel();
+            throw new NonFatalException("-"+_name+" was corrupted during the upload. It must be sent again.");
+        }
+
+        java.io.File target = new java.io.File( _partial.getParentFile(), _name );
+        long replaced = 0L;
+        try
+        {
+            replaced = PartialFile.replace(_partial, target);
+        }
+        catch (IOException ioe)
+        {
+            cancel();
+            throw ioe;
+        }
+        _closed = true;
+        _uploads.remove(_id);
+        if (_reservation != null)
+        {
+            _reservation.use(_size);
+            _reservation.commit();
+        }
+        //The file it replaced no longer uses any space
+        Quota quota = explorer.getQuota();
+        if (quota != null && replaced > 0) quota.adjust(-replaced);
+        Directory dir = explorer.getDirectory(_directory);
+        if (dir != null) dir.refresh();
+        return FileSystemObjectFactory.createObject( target.getAbsolutePath(), explorer.getRootDirectory() );
+    }
+
+    /**
+     * Cancels the upload and deletes the partial file.
+     */
+    public synchronized void cancel()
+    {
+        _uploads.remove(_id);
+        if (_closed) return;
+        _closed = true;
+        try
+        {
+            _file.close();
+        }
+        catch (IOException ioe) { }
+        _partial.delete();
+        if (_reservation != null) _reservation.release();
+    }
+
+    /**
+     * Returns the id.
+     *
+     * @return String
+     */
+    public String getId()
+    {
+        return _id;
+    }
+
+    /**
+     * Returns the file's name.
+     *
+     * @return String
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Returns the file's size.
+     *
+     * @return long
+     */
+    public long getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns the number of bytes received.
+     *
+     * @return long
+     */
+    public synchronized long getReceived()
+    {
+        long ret = 0L;
+        for (Iterator i=_received.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry range = (Map.Entry)i.next();
+            ret += ( (Long)range.getValue() ).longValue() - ( (Long)range.getKey() ).longValue();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns whether every byte has been received.
+     *
+     * @return boolean
+     */
+    public boolean isComplete()
+    {
+        return (getReceived() == _size);
+    }
+
+    /**
+     * Returns the ranges received as a comma separated list of first-last byte positions
+     * (the same as an HTTP byte range), such as 0-1023,4096-8191.
+     *
+     * @return String
+     */
+    public synchronized String getRanges()
+    {
+        StringBuffer ret = new StringBuffer();
+        for (Iterator i=_received.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry range = (Map.Entry)i.next();
+            if (ret.length() > 0) ret.append(",");
+            ret.append( range.getKey() ).append("-").append( ((Long)range.getValue()).longValue()-1 );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Returns the channel to write to.
+     *
+     * @return FileChannel
+     * @throws NonFatalException if the upload has been finished or cancelled.
+     */
+    private synchronized FileChannel getChannel() throws NonFatalException
+    {
+        if (_closed) throw new NonFatalException("-The upload has been finished or cancelled.");
+        _lastUsed = System.currentTimeMillis();
+        return _file.getChannel();
+    }
+
+    /**
+     * Adds the given range to the ranges received, joining it with the ranges it touches.
+     *
+     * @param start The first byte.
+     * @param end The byte after the last.
+     */
+    private synchronized void addRange(long start, long end)
+    {
+        if (start >= end) return;
+        removeRange(start, end);
+        Long before = (Long)_received.floorKey( new Long(start) );
+        if ( before != null && ((Long)_received.get(before)).longValue() == start )
+        {
+            start = before.longValue();
+        }
+        Long after = (Long)_received.remove( new Long(end) );
+        if (after != null) end = after.longValue();
+        _received.put( new Long(start), new Long(end) );
+    }
+
+    /**
+     * Removes the given range from the ranges received.
+     *
+     * @param start The first byte.
+     * @param end The byte after the last.
+     */
+    private synchronized void removeRange(long start, long end)
+    {
+        if (start >= end) return;
+        Long first = (Long)_received.floorKey( new Long(start) );
+        if (first == null) first = new Long(start);
+        Vector overlapping = new Vector( _received.subMap(first, new Long(end)).keySet() );
+        for (int i=0; i<overlapping.size(); i++)
+        {
+            Long key = (Long)overlapping.get(i);
+            long rangeStart = key.longValue();
+            long rangeEnd = ( (Long)_received.get(key) ).longValue();
+            if (rangeEnd <= start) continue;
+            _received.remove(key);
+            if (rangeStart < start) _received.put( key, new Long(start) );
+            if (rangeEnd > end) _received.put( new Long(end), new Long(rangeEnd) );
+        }
+    }
+
+    /**
+     * Returns the md5 of the given file in hex.
+     *
+     * @param f The file.
+     * @return String
+     * @throws IOException if an error occurs reading the file.
+     */
+    private static String getMd5(java.io.File f) throws IOException
+    {
+        MessageDigest digest = Hex.createMd5();
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        InputStream in = new FileInputStream(f);
+        try
+        {
+            int count;
+            while ( (count=in.read(buffer)) != -1 )
+            {
+                digest.update(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            in.close();
+            pool.release(buffer);
+        }
+        return Hex.toHex( digest.digest() );
+    }
+}
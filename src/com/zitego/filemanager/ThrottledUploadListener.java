@@ -0,0 +1,56 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.io.Throttle;
+import java.io.InterruptedIOException;
+import org.apache.commons.fileupload.ProgressListener;
+
+/**
+ * This is a progress listener that limits how fast an upload is read. The upload parser
+ * calls the listener each time it reads from the request, so waiting here before returning
+ * holds the reading back to the throttle's rate. The progress is passed on to the wrapped
+ * listener if there is one.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ThrottledUploadListener implements ProgressListener
+{
+    /** The throttle. */
+    private Throttle _throttle;
+    /** The listener to pass progress on to. */
+    private ProgressListener _listener;
+    /** The bytes read as of the last update. */
+    private long _lastBytesRead = 0L;
+
+    /**
+     * Creates a new listener.
+     *
+     * @param throttle The throttle.
+     * @param listener The listener to pass progress on to or null.
+     */
+    public ThrottledUploadListener(Throttle throttle, ProgressListener listener)
+    {
+        _throttle = throttle;
+        _listener = listener;
+    }
+
+    public void update(long bytesRead, long contentLength, int item)
+    {
+        long count = bytesRead - _lastBytesRead;
+        _lastBytesRead = bytesRead;
+        try
+        {
+            while (count > 0)
+            {
+                long chunk = Math.min(count, Throttle.CHUNK_SIZE);
+                _throttle.acquire(chunk);
+                count -= chunk;
+            }
+        }
+        catch (InterruptedIOException iioe)
+        {
+            //The thread is being stopped, let the read go on so it can end
+        }
+        if (_listener != null) _listener.update(bytesRead, contentLength, item);
+    }
+}
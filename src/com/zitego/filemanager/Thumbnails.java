@@ -0,0 +1,363 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.io.CacheDirectory;
+import com.zitego.filemanager.util.Hex;
+import com.zitego.filemanager.util.SystemProperties;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * This class makes and caches the thumbnails shown in the explorer's thumbnails view (see
+ * ViewType.THUMBNAILS). Images are decoded with ImageIO using source subsampling, so a large
+ * photo is read at a fraction of its full size instead of being decoded whole and then
+ * scaled down. The result is scaled the rest of the way with bilinear filtering and written
+ * as a jpeg, or as a png if the image has transparency.<br><br>
+ *
+ * Thumbnails are kept in their own directory outside of the users' homes. Each one is named
+ * by a hash of the image's path plus the thumbnail size and the image's size and last
+ * modified date, so an image that changes gets a new thumbnail and the old one is removed.
+ * Thumbnails are made by a bounded pool of worker threads. If several requests miss on the
+ * same thumbnail at once they all wait for the one being made rather than each making it.
+ * If the pool's queue is full a request gets no thumbnail rather than waiting. The directory
+ * is kept under a total size with the least recently used thumbnails evicted first (see
+ * CacheDirectory), which is also how the thumbnails of images that were deleted go.<br><br>
+ *
+ * The service is configured with the System properties thumbnail_cache_dir (default
+ * filemanager-thumbs in java.io.tmpdir), thumbnail_cache_size (the most bytes of
+ * thumbnails to keep, default 256mb, 0 for no limit), thumbnail_size (default 128 pixels),
+ * thumbnail_threads (default 2), thumbnail_queue (default 200), and thumbnail_wait (how
+ * long a request waits in milliseconds, default 10000). There is only one service per jvm.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class Thumbnails
+{
+    /** The smallest thumbnail size allowed. */
+    public static final int MIN_SIZE = 16;
+    /** The largest thumbnail size allowed. */
+    public static final int MAX_SIZE = 512;
+    /** The single instance. */
+    private static Thumbnails _instance;
+    /** The directory the thumbnails are kept in. */
+    private java.io.File _directory;
+    /** Keeps the directory under its size limit. */
+    private CacheDirectory _cache;
+    /** The default thumbnail size. */
+    private int _defaultSize = (int)SystemProperties.getLong("thumbnail_size", 128L);
+    /** How long a request waits for a thumbnail in milliseconds. */
+    private long _wait = SystemProperties.getLong("thumbnail_wait", 10000L);
+    /** The thumbnails being made keyed by name. */
+    private ConcurrentHashMap _inProgress = new ConcurrentHashMap();
+    /** The worker threads. */
+    private ThreadPoolExecutor _workers;
+
+    /**
+     * Usage: java Thumbnails &lt;image&gt; [size]<br>
+     * Makes the thumbnail of the image and prints where it is and how long it took.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File f = new java.io.File(args[0]);
+        Thumbnails thumbs = getInstance();
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : thumbs.getDefaultSize());
+        long start = System.currentTimeMillis();
+        java.io.File thumb = thumbs.getThumbnail(f, size);
+        System.out.println( thumb + " in " + (System.currentTimeMillis()-start) + "ms" );
+        thumbs.shutdown();
+    }
+
+    /**
+     * Creates the service.
+     */
+    private Thumbnails()
+    {
+        String dir = System.getProperty("thumbnail_cache_dir");
+        _directory = new java.io.File( dir != null ? dir : System.getProperty("java.io.tmpdir")+"/filemanager-thumbs" );
+        _directory.mkdirs();
+        _cache = new CacheDirectory( _directory, SystemProperties.getLong("thumbnail_cache_size", 268435456L) );
+        int threads = (int)SystemProperties.getLong("thumbnail_threads", 2L);
+        final AtomicInteger count = new AtomicInteger();
+        _workers = new ThreadPoolExecutor
+        (
+            threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue( (int)SystemProperties.getLong("thumbnail_queue", 200L) ),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread( r, "Thumbnails-" + count.incrementAndGet() );
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            }
+        );
+    }
+
+    /**
+     * Returns the service, creating it if needed.
+     *
+     * @return Thumbnails
+     */
+    public static synchronized Thumbnails getInstance()
+    {
+        if (_instance == null) _instance = new Thumbnails();
+        return _instance;
+    }
+
+    /**
+     * Returns whether a thumbnail can be made for files of the given type.
+     *
+     * @param type The file type.
+     * @return boolean
+     */
+    public static boolean isThumbnailable(FileType type)
+    {
+        String mime = type.getMimeType();
+        return ( mime != null && mime.startsWith("image/") && ImageIO.getImageReadersByMIMEType(mime).hasNext() );
+    }
+
+    /**
+     * Returns the default thumbnail size.
+     *
+     * @return int
+     */
+    public int getDefaultSize()
+    {
+        return _defaultSize;
+    }
+
+    /**
+     * Returns the given thumbnail size kept between MIN_SIZE and MAX_SIZE.
+     *
+     * @param size The thumbnail size asked for.
+     * @return int
+     */
+    public int getSize(int size)
+    {
+        return Math.max( MIN_SIZE, Math.min(MAX_SIZE, size) );
+    }
+
+    /**
+     * Returns the thumbnail of the given image, making it if needed, or null if it could not
+     * be made in time. The size is the largest the width or height can be and is kept between
+     * MIN_SIZE and MAX_SIZE.
+     *
+     * @param f The image.
+     * @param size The thumbnail size.
+     * @return java.io.File
+     * @throws IOException if the image cannot be read.
+     */
+    public java.io.File getThumbnail(final java.io.File f, int size) throws IOException
+    {
+        final int thumbSize = getSize(size);
+        final long length = f.length();
+        final long lastModified = f.lastModified();
+        if (length == 0L) return null;
+        final String key = getKey(f, thumbSize, length, lastModified);
+        java.io.File ret = find(key);
+        if (ret != null) return ret;
+
+        FutureTask task = new FutureTask
+        (
+            new Callable()
+            {
+                public Object call() throws Exception
+                {
+                    try
+                    {
+                        return build(f, thumbSize, key, length, lastModified);
+                    }
+                    finally
+                    {
+                        _inProgress.remove(key);
+                    }
+                }
+            }
+        );
+        FutureTask running = (FutureTask)_inProgress.putIfAbsent(key, task);
+        if (running == null)
+        {
+            running = task;
+            try
+            {
+                _workers.execute(task);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                //Too busy
+                _inProgress.remove(key);
+                return null;
+            }
+        }
+
+        try
+        {
+            return (java.io.File)running.get(_wait, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException te)
+        {
+            //Still being made, the next request will get it
+            return null;
+        }
+        catch (InterruptedException ie)
+        {
+            return null;
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            throw new IOException( "Could not make a thumbnail of " + f + ": " + cause );
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown()
+    {
+        _workers.shutdown();
+    }
+
+    /**
+     * Returns the existing thumbnail with the given name or null if there is not one. A
+     * thumbnail that is found is marked as used.
+     *
+     * @param key The name without the extension.
+     * @return java.io.File
+     */
+    private java.io.File find(String key)
+    {
+        java.io.File ret = new java.io.File(_directory, key+".jpg");
+        if ( !ret.exists() ) ret = new java.io.File(_directory, key+".png");
+        if ( !ret.exists() ) return null;
+        _cache.touch(ret);
+        return ret;
+    }
+
+    /**
+     * Makes the thumbnail. The image is read subsampled to about twice the thumbnail size
+     * and then scaled down.
+     *
+     * @param f The image.
+     * @param size The thumbnail size.
+     * @param key The name of the thumbnail without the extension.
+     * @param length The size of the image.
+     * @param lastModified When the image was last modified.
+     * @return java.io.File
+     * @throws IOException if the image cannot be read.
+     */
+    private java.io.File build(java.io.File f, int size, String key, long length, long lastModified) throws IOException
+    {
+        java.io.File ret = find(key);
+        if (ret != null) return ret;
+
+        BufferedImage image = null;
+        ImageInputStream in = ImageIO.createImageInputStream(f);
+        if (in == null) throw new IOException("Could not open "+f);
+        try
+        {
+            Iterator readers = ImageIO.getImageReaders(in);
+            if ( !readers.hasNext() ) throw new IOException("No image reader for "+f);
+            ImageReader reader = (ImageReader)readers.next();
+            try
+            {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max( 1, Math.max(width, height) / (size*2) );
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min( 1.0, (double)size / Math.max(width, height) );
+        int thumbWidth = Math.max( 1, (int)Math.round(width*scale) );
+        int thumbHeight = Math.max( 1, (int)Math.round(height*scale) );
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage thumb = new BufferedImage
+        (
+            thumbWidth, thumbHeight, (alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB)
+        );
+        Graphics2D g = thumb.createGraphics();
+        try
+        {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, thumbWidth, thumbHeight, null);
+        }
+        finally
+        {
+            g.dispose();
+        }
+
+        String format = (alpha ? "png" : "jpg");
+        ret = new java.io.File(_directory, key + "." + format);
+        java.io.File temp = new java.io.File( _directory, key + ".tmp" + Thread.currentThread().getId() );
+        if ( !ImageIO.write(thumb, format, temp) || f.length() != length || f.lastModified() != lastModified || !temp.renameTo(ret) )
+        {
+            temp.delete();
+            throw new IOException("Could not make a thumbnail of "+f);
+        }
+
+        //Remove the thumbnails of older versions at this size
+        String prefix = key.substring( 0, key.indexOf("-", key.indexOf("-")+1)+1 );
+        java.io.File[] old = _directory.listFiles();
+        for (int i=0; old != null && i<old.length; i++)
+        {
+            String name = old[i].getName();
+            if ( name.startsWith(prefix) && !name.startsWith(key) && name.indexOf(".tmp") == -1 )
+            {
+                long bytes = old[i].length();
+                if ( old[i].delete() ) _cache.removed(bytes);
+            }
+        }
+        _cache.added( ret.length() );
+        return ret;
+    }
+
+    /**
+     * Returns the name of the thumbnail without the extension.
+     *
+     * @param f The image.
+     * @param size The thumbnail size.
+     * @param length The size of the image.
+     * @param lastModified When the image was last modified.
+     * @return String
+     */
+    private String getKey(java.io.File f, int size, long length, long lastModified)
+    {
+        StringBuffer ret = new StringBuffer( Hex.md5(f.getAbsolutePath()) );
+        return ret.append("-").append(size).append("-").append( Long.toHexString(length) ).append("-")
+                  .append( Long.toHexString(lastModified) ).toString();
+    }
+}
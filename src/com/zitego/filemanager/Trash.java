@@ -0,0 +1,297 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.util.FileFilter;
+import java.io.*;
+import java.util.Date;
+import java.util.Vector;
+
+/**
+ * This class handles the per user trash area. When the System property use_trash is
+ * set to "1", deleting a FileSystemObject does not remove it from disk. Instead it is
+ * renamed into the .trash directory that sits in the user's root directory (the same
+ * place as the .creation file). A rename within the same file system is a single
+ * operation no matter how big the object is, so deletes take the same amount of time
+ * for a one byte file as they do for a directory tree with thousands of files.<br><br>
+ *
+ * Each object in the trash is stored under a generated id. The id is the time of the
+ * delete in milliseconds followed by a counter. The .index file inside of the trash
+ * directory maps each id to the root path that the object was deleted from in the
+ * format of id=rootPath. An object can be restored to its original root path until
+ * the TrashPurger removes it from disk.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see TrashPurger
+ */
+public class Trash
+{
+    /** The name of the trash directory. */
+    public static final String NAME = FileFilter.TRASH_NAME;
+    /** The name of the index file in the trash directory. */
+    public static final String INDEX = ".index";
+    /** Used to keep ids unique within the same millisecond. */
+    private static int _counter = 0;
+    /** The trash directory. */
+    private java.io.File _dir;
+
+    public static void main(String[] args) throws Exception
+    {
+        Trash trash = new Trash(args[0]);
+        Vector entries = trash.getEntries();
+        int size = entries.size();
+        for (int i=0; i<size; i++)
+        {
+            TrashEntry entry = (TrashEntry)entries.get(i);
+            System.out.println( entry.getId()+" "+entry.getRootPath()+" "+entry.getDeletedDate() );
+        }
+    }
+
+    /**
+     * Creates a new Trash for the given user root directory.
+     *
+     * @param rootDirectory The absolute path of the user's root directory.
+     */
+    public Trash(String rootDirectory)
+    {
+        _dir = new java.io.File(rootDirectory, NAME);
+    }
+
+    /**
+     * Creates a new Trash from the trash directory itself.
+     *
+     * @param dir The trash directory.
+     */
+    Trash(java.io.File dir)
+    {
+        _dir = dir;
+    }
+
+    /**
+     * Returns the trash for the user root directory of the given object.
+     *
+     * @param obj The object.
+     * @return Trash
+     */
+    public static Trash getTrash(FileSystemObject obj)
+    {
+        return new Trash( obj.getRootDirectory() );
+    }
+
+    /**
+     * Returns whether deletes go to the trash. This is true when the System property
+     * use_trash is set to "1".
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return "1".equals( System.getProperty("use_trash") );
+    }
+
+    /**
+     * Returns the trash directory.
+     *
+     * @return java.io.File
+     */
+    public java.io.File getDirectory()
+    {
+        return _dir;
+    }
+
+    /**
+     * Moves the given object into the trash and returns the id it was stored under. The
+     * object is renamed into the trash directory and one line is appended to the index.
+     * The trash directory is registered with the TrashPurger so that it will be purged
+     * in the background.
+     *
+     * @param obj The object to trash.
+     * @return String
+     * @throws IOException if the object could not be moved into the trash.
+     */
+    public String add(FileSystemObject obj) throws IOException
+    {
+        if ( !_dir.exists() && !_dir.mkdir() ) throw new IOException("Could not create trash directory");
+
+        String id = nextId();
+        java.io.File f = new java.io.File( obj.getAbsolutePath() );
+        if ( !f.renameTo(new java.io.File(_dir, id)) ) throw new IOException( "Could not delete file: "+obj.getRootPath() );
+
+        synchronized (Trash.class)
+        {
+            PrintWriter out = new PrintWriter( new BufferedWriter(new FileWriter(getIndexFile(), true)) );
+            out.println( id + "=" + obj.getRootPath() );
+            out.flush();
+            out.close();
+        }
+        TrashPurger.getInstance().register(_dir);
+        return id;
+    }
+
+    /**
+     * Registers the trash directory with the TrashPurger if it exists. The purger only
+     * knows the directories registered since the jvm started, so this is called when the
+     * user logs in to have trash left from before a restart purged.
+     */
+    public void register()
+    {
+        if ( _dir.isDirectory() ) TrashPurger.getInstance().register(_dir);
+    }
+
+    /**
+     * Returns the objects currently in the trash as a Vector of TrashEntry objects.
+     *
+     * @return Vector
+     * @throws IOException if an error occurs reading the index.
+     */
+    public Vector getEntries() throws IOException
+    {
+        Vector ret = new Vector();
+        synchronized (Trash.class)
+        {
+            java.io.File index = getIndexFile();
+            if ( !index.exists() ) return ret;
+            BufferedReader in = new BufferedReader( new FileReader(index) );
+            try
+            {
+                String line = null;
+                while ( (line=in.readLine()) != null )
+                {
+                    int i = line.indexOf("=");
+                    if (i > 0) ret.add( new TrashEntry(line.substring(0, i), line.substring(i+1)) );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the entry with the given id or null if it is not in the trash.
+     *
+     * @param id The id.
+     * @return TrashEntry
+     * @throws IOException if an error occurs reading the index.
+     */
+    public TrashEntry getEntry(String id) throws IOException
+    {
+        Vector entries = getEntries();
+        int size = entries.size();
+        for (int i=0; i<size; i++)
+        {
+            TrashEntry entry = (TrashEntry)entries.get(i);
+            if ( entry.getId().equals(id) ) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Restores the object with the given id to the root path it was deleted from and
+     * returns it. Any missing parent directories are created. The object cannot be
+     * restored if something else now exists at its root path or if the purger has
+     * already started removing it.
+     *
+     * @param id The id of the object.
+     * @return FileSystemObject
+     * @throws IOException if the object could not be restored.
+     */
+    public FileSystemObject restore(String id) throws IOException
+    {
+        String rootDir = _dir.getParent();
+        java.io.File to = null;
+        synchronized (Trash.class)
+        {
+            TrashEntry entry = getEntry(id);
+            if (entry == null) throw new IOException("The object is no longer in the trash");
+
+            to = new java.io.File( rootDir + entry.getRootPath() );
+            if ( to.exists() ) throw new IOException( entry.getRootPath()+" already exists" );
+            java.io.File parent = to.getParentFile();
+            if ( !parent.exists() && !parent.mkdirs() ) throw new IOException( "Could not create "+parent.getPath() );
+            if ( !new java.io.File(_dir, id).renameTo(to) ) throw new IOException( "Could not restore "+entry.getRootPath() );
+            removeEntry(id);
+        }
+
+        FileSystemObject ret = FileSystemObjectFactory.createObject( to.getAbsolutePath(), rootDir );
+        CreationDateFile.setCreationDate(ret);
+        return ret;
+    }
+
+    /**
+     * Removes the given id from the index. This is done before purging an object so that
+     * it can no longer be restored once the purge has started.
+     *
+     * @param id The id to remove.
+     * @return boolean Whether the id was in the index.
+     * @throws IOException if an error occurs re-writing the index.
+     */
+    boolean removeEntry(String id) throws IOException
+    {
+        synchronized (Trash.class)
+        {
+            Vector entries = getEntries();
+            Vector contents = new Vector( entries.size() );
+            boolean inThere = false;
+            int size = entries.size();
+            for (int i=0; i<size; i++)
+            {
+                TrashEntry entry = (TrashEntry)entries.get(i);
+                if ( entry.getId().equals(id) ) inThere = true;
+                else contents.add( entry.getId() + "=" + entry.getRootPath() );
+            }
+            if (!inThere) return false;
+
+            PrintWriter out = new PrintWriter( new BufferedWriter(new FileWriter(getIndexFile())) );
+            size = contents.size();
+            for (int i=0; i<size; i++)
+            {
+                out.println( (String)contents.get(i) );
+            }
+            out.flush();
+            out.close();
+            return true;
+        }
+    }
+
+    /**
+     * Returns the index file.
+     *
+     * @return java.io.File
+     */
+    private java.io.File getIndexFile()
+    {
+        return new java.io.File(_dir, INDEX);
+    }
+
+    /**
+     * Returns a new unique id.
+     *
+     * @return String
+     */
+    private static synchronized String nextId()
+    {
+        _counter = (_counter + 1) % 1000;
+        return System.currentTimeMillis() + "-" + _counter;
+    }
+
+    /**
+     * Returns the deleted date given an id.
+     *
+     * @param id The id.
+     * @return Date
+     */
+    static Date getDeletedDate(String id)
+    {
+        int index = id.indexOf("-");
+        try
+        {
+            return new Date( Long.parseLong(index > -1 ? id.substring(0, index) : id) );
+        }
+        catch (NumberFormatException nfe)
+        {
+            return new Date(0L);
+        }
+    }
+}
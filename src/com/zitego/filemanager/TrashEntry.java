@@ -0,0 +1,70 @@
+package com.zitego.filemanager;
+
+import java.util.Date;
+
+/**
+ * This represents a single object in the user's trash.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Trash
+ */
+public class TrashEntry
+{
+    /** The id the object is stored under. */
+    private String _id;
+    /** The root path the object was deleted from. */
+    private String _rootPath;
+
+    /**
+     * Creates a new TrashEntry given the id and the original root path.
+     *
+     * @param id The id.
+     * @param rootPath The original root path.
+     */
+    TrashEntry(String id, String rootPath)
+    {
+        _id = id;
+        _rootPath = rootPath;
+    }
+
+    /**
+     * Returns the id.
+     *
+     * @return String
+     */
+    public String getId()
+    {
+        return _id;
+    }
+
+    /**
+     * Returns the root path the object was deleted from.
+     *
+     * @return String
+     */
+    public String getRootPath()
+    {
+        return _rootPath;
+    }
+
+    /**
+     * Returns the name of the object.
+     *
+     * @return String
+     */
+    public String getName()
+    {
+        return _rootPath.substring( _rootPath.lastIndexOf("/")+1 );
+    }
+
+    /**
+     * Returns the date the object was deleted.
+     *
+     * @return Date
+     */
+    public Date getDeletedDate()
+    {
+        return Trash.getDeletedDate(_id);
+    }
+}
@@ -0,0 +1,261 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * This is a background thread that removes objects from the trash directories that
+ * have been registered with it. An object is purged once it has been in the trash
+ * longer than the retention time. Before any data is removed the object's entry is
+ * taken out of the trash index so it can no longer be restored.<br><br>
+ *
+ * Purging is throttled so that removing a large tree does not starve the disk for
+ * everyone else. The purger sleeps as needed so that it never removes more than the
+ * maximum bytes per second or the maximum files per second.<br><br>
+ *
+ * The defaults can be changed with the System properties trash_retention (seconds),
+ * trash_purge_bytes (bytes per second), and trash_purge_files (files per second).
+ * There is only one purger per jvm. It is started the first time it is asked for. A trash
+ * directory is registered when something is added to it and when its user logs in (see
+ * Trash.register), so trash left from before a restart is still purged.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Trash
+ */
+public class TrashPurger extends Thread
+{
+    /** The single instance. */
+    private static TrashPurger _instance;
+    /** The trash directories to purge. */
+    private Vector _directories = new Vector();
+    /** How long objects stay in the trash in milliseconds. Default is one hour. */
+    private long _retention = SystemProperties.getLong("trash_retention", 3600L) * 1000L;
+    /** How long to wait between purges in milliseconds. Default is one minute. */
+    private long _interval = 60000L;
+    /** The maximum number of bytes to purge per second. Default is 20mb. */
+    private long _maxBytesPerSecond = SystemProperties.getLong("trash_purge_bytes", 20971520L);
+    /** The maximum number of files to purge per second. Default is 500. */
+    private long _maxFilesPerSecond = SystemProperties.getLong("trash_purge_files", 500L);
+    /** The time the current throttle window started. */
+    private long _windowStart;
+    /** The bytes purged in the current throttle window. */
+    private long _windowBytes;
+    /** The files purged in the current throttle window. */
+    private long _windowFiles;
+    /** Whether we have been asked to stop. */
+    private volatile boolean _stopped = false;
+
+    /**
+     * Creates the purger.
+     */
+    private TrashPurger()
+    {
+        super("TrashPurger");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Returns the purger, starting it if it is not running.
+     *
+     * @return TrashPurger
+     */
+    public static synchronized TrashPurger getInstance()
+    {
+        if (_instance == null)
+        {
+            _instance = new TrashPurger();
+            _instance.start();
+        }
+        return _instance;
+    }
+
+    /**
+     * Registers a trash directory to be purged.
+     *
+     * @param dir The trash directory.
+     */
+    public void register(java.io.File dir)
+    {
+        synchronized (_directories)
+        {
+            if ( !_directories.contains(dir) ) _directories.add(dir);
+        }
+    }
+
+    /**
+     * Sets how long objects stay in the trash before they are purged.
+     *
+     * @param millis The retention time in milliseconds.
+     */
+    public void setRetention(long millis)
+    {
+        _retention = millis;
+    }
+
+    /**
+     * Returns how long objects stay in the trash in milliseconds.
+     *
+     * @return long
+     */
+    public long getRetention()
+    {
+        return _retention;
+    }
+
+    /**
+     * Sets the time to wait between purges.
+     *
+     * @param millis The interval in milliseconds.
+     */
+    public void setInterval(long millis)
+    {
+        _interval = millis;
+    }
+
+    /**
+     * Sets the maximum number of bytes to purge per second. Zero or less is unlimited.
+     *
+     * @param bytes The bytes per second.
+     */
+    public void setMaxBytesPerSecond(long bytes)
+    {
+        _maxBytesPerSecond = bytes;
+    }
+
+    /**
+     * Sets the maximum number of files to purge per second. Zero or less is unlimited.
+     *
+     * @param files The files per second.
+     */
+    public void setMaxFilesPerSecond(long files)
+    {
+        _maxFilesPerSecond = files;
+    }
+
+    /**
+     * Stops the purger.
+     */
+    public void shutdown()
+    {
+        _stopped = true;
+        interrupt();
+        synchronized (TrashPurger.class)
+        {
+            if (_instance == this) _instance = null;
+        }
+    }
+
+    public void run()
+    {
+        while (!_stopped)
+        {
+            try
+            {
+                sleep(_interval);
+                purge();
+            }
+            catch (InterruptedException ie)
+            {
+                //Asked to stop
+            }
+            catch (Exception e)
+            {
+                //What was not purged is tried again the next time
+            }
+        }
+    }
+
+    /**
+     * Purges every registered trash directory.
+     *
+     * @throws IOException if an error occurs updating a trash index.
+     * @throws InterruptedException if the purger is stopped.
+     */
+    public void purge() throws IOException, InterruptedException
+    {
+        java.io.File[] dirs = null;
+        synchronized (_directories)
+        {
+            dirs = new java.io.File[_directories.size()];
+            _directories.copyInto(dirs);
+        }
+        for (int i=0; i<dirs.length && !_stopped; i++)
+        {
+            purge( new Trash(dirs[i]) );
+        }
+    }
+
+    /**
+     * Purges all expired objects from the given trash. Objects that are in the trash
+     * directory but not in the index (left behind by a purge that was cut short) are
+     * purged as well once they have expired.
+     *
+     * @param trash The trash.
+     * @throws IOException if an error occurs updating the trash index.
+     * @throws InterruptedException if the purger is stopped.
+     */
+    private void purge(Trash trash) throws IOException, InterruptedException
+    {
+        String[] ids = trash.getDirectory().list();
+        if (ids == null) return;
+        long expired = System.currentTimeMillis() - _retention;
+        for (int i=0; i<ids.length && !_stopped; i++)
+        {
+            if ( Trash.INDEX.equals(ids[i]) ) continue;
+            if ( Trash.getDeletedDate(ids[i]).getTime() > expired ) continue;
+
+            //Once it is out of the index it cannot be restored
+            trash.removeEntry(ids[i]);
+            purge( new java.io.File(trash.getDirectory(), ids[i]) );
+        }
+    }
+
+    /**
+     * Removes the given file from disk. Directories are emptied first.
+     *
+     * @param f The file.
+     * @throws InterruptedException if the purger is stopped.
+     */
+    private void purge(java.io.File f) throws InterruptedException
+    {
+        if ( f.isDirectory() )
+        {
+            java.io.File[] files = f.listFiles();
+            if (files == null) files = new java.io.File[0];
+            for (int i=0; i<files.length && !_stopped; i++)
+            {
+                purge(files[i]);
+            }
+        }
+        long bytes = f.length();
+        if ( f.delete() ) throttle(bytes);
+    }
+
+    /**
+     * Sleeps as long as needed to keep the purge under the maximum rates.
+     *
+     * @param bytes The number of bytes that were just removed.
+     * @throws InterruptedException if the purger is stopped.
+     */
+    private void throttle(long bytes) throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        if (now - _windowStart > 1000L)
+        {
+            _windowStart = now;
+            _windowBytes = 0L;
+            _windowFiles = 0L;
+        }
+        _windowBytes += bytes;
+        _windowFiles++;
+
+        long wait = 0L;
+        if (_maxBytesPerSecond > 0) wait = Math.max( wait, _windowBytes*1000L/_maxBytesPerSecond );
+        if (_maxFilesPerSecond > 0) wait = Math.max( wait, _windowFiles*1000L/_maxFilesPerSecond );
+        wait -= (now - _windowStart);
+        if (wait > 0) sleep(wait);
+    }
+}
@@ -0,0 +1,302 @@
+package com.zitego.filemanager;
+
+import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.util.SystemProperties;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.fileupload.ProgressListener;
+
+/**
+ * This is the progress of one upload. Every upload in progress is kept by id so that a user
+ * can have several going at once and ask about each of them (see UploadProgressServlet).
+ * The upload parser updates the counters as it reads and a request for the progress only
+ * reads them, so neither ever waits on the other and the progress can be asked for as often
+ * as a client likes.<br><br>
+ *
+ * The rate is worked out over a sliding window of the last few seconds rather than the
+ * whole upload, so it follows the connection as it speeds up and slows down, and the time
+ * left is worked out from that rate. The upload parser records a sample of the bytes read
+ * at most every SAMPLE_MILLIS milliseconds into a ring of WINDOW samples. A finished upload
+ * is kept for upload_progress_keep milliseconds (default one minute) so its last state can
+ * still be seen.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class UploadProgress implements ProgressListener
+{
+    /** The time between samples in milliseconds. */
+    public static final long SAMPLE_MILLIS = 500L;
+    /** The number of samples kept. */
+    public static final int WINDOW = 10;
+    /** The uploads keyed by id. */
+    private static ConcurrentHashMap _uploads = new ConcurrentHashMap();
+    /** Used to make ids. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** When finished uploads were last looked for. */
+    private static AtomicLong _lastPrune = new AtomicLong( System.currentTimeMillis() );
+    /** The id. */
+    private String _id;
+    /** The home directory of the user who owns the upload. */
+    private String _owner;
+    /** When the upload started. */
+    private long _start = System.currentTimeMillis();
+    /** When the upload finished or 0 if it has not. */
+    private volatile long _end = 0L;
+    /** The bytes read. */
+    private AtomicLong _bytesRead = new AtomicLong();
+    /** The length of the request or -1 if it is not known. */
+    private AtomicLong _contentLength = new AtomicLong(-1L);
+    /** The item being read. */
+    private AtomicInteger _item = new AtomicInteger();
+    /** The number of the last sample taken. */
+    private AtomicLong _lastSample = new AtomicLong(-1L);
+    /** The times of the samples. */
+    private AtomicLongArray _sampleTimes = new AtomicLongArray(WINDOW);
+    /** The bytes read as of each sample. */
+    private AtomicLongArray _sampleBytes = new AtomicLongArray(WINDOW);
+    /** The listener to pass progress on to or null. */
+    private ProgressListener _listener;
+
+    /**
+     * Creates the progress of a new upload for the user and returns it. If the id is null or
+     * already in use a new one is made.
+     *
+     * @param id The id the client asked for or null.
+     * @param explorer The user's explorer.
+     * @return UploadProgress
+     */
+    public static UploadProgress create(String id, Explorer explorer)
+    {
+        prune();
+        UploadProgress ret = new UploadProgress();
+        ret._owner = explorer.getAbsolutePath();
+        ret._id = id;
+        while ( ret._id == null || ret._id.length() == 0 || _uploads.putIfAbsent(ret._id, ret) != null )
+        {
+            ret._id = Long.toString( RANDOM.nextLong() & Long.MAX_VALUE, 36 );
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the progress of the upload with the given id if it belongs to the user or
+     * null if there is none.
+     *
+     * @param id The id.
+     * @param explorer The user's explorer.
+     * @return UploadProgress
+     */
+    public static UploadProgress get(String id, Explorer explorer)
+    {
+        prune();
+        UploadProgress ret = (id != null ? (UploadProgress)_uploads.get(id) : null);
+        return ( ret != null && ret._owner.equals(explorer.getAbsolutePath()) ? ret : null );
+    }
+
+    /**
+     * Returns the progress of every upload that belongs to the user.
+     *
+     * @param explorer The user's explorer.
+     * @return Vector
+     */
+    public static Vector getAll(Explorer explorer)
+    {
+        prune();
+        Vector ret = new Vector();
+        String owner = explorer.getAbsolutePath();
+        for (Iterator i=_uploads.values().iterator(); i.hasNext();)
+        {
+            UploadProgress progress = (UploadProgress)i.next();
+            if ( progress._owner.equals(owner) ) ret.add(progress);
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the uploads that finished more than upload_progress_keep milliseconds ago.
+     * This looks at most once every few seconds.
+     */
+    private static void prune()
+    {
+        long now = System.currentTimeMillis();
+        long last = _lastPrune.get();
+        if ( now - last < 5000L || !_lastPrune.compareAndSet(last, now) ) return;
+        long keep = getKeep();
+        for (Iterator i=_uploads.values().iterator(); i.hasNext();)
+        {
+            UploadProgress progress = (UploadProgress)i.next();
+            if (progress._end > 0 && now - progress._end > keep) i.remove();
+        }
+    }
+
+    /**
+     * Returns how long a finished upload is kept in milliseconds.
+     *
+     * @return long
+     */
+    public static long getKeep()
+    {
+        return SystemProperties.getLong("upload_progress_keep", 60000L);
+    }
+
+    private UploadProgress() { }
+
+    /**
+     * Sets the listener to pass progress on to.
+     *
+     * @param listener The listener or null.
+     */
+    public void setListener(ProgressListener listener)
+    {
+        _listener = listener;
+    }
+
+    public void update(long bytesRead, long contentLength, int item)
+    {
+        _bytesRead.set(bytesRead);
+        _contentLength.set(contentLength);
+        _item.set(item);
+        long now = System.currentTimeMillis();
+        long sample = (now - _start) / SAMPLE_MILLIS;
+        long last = _lastSample.get();
+        if ( sample > last && _lastSample.compareAndSet(last, sample) )
+        {
+            int index = (int)(sample % WINDOW);
+            //The time is set last and read first so a sample is never newer than its bytes
+            _sampleBytes.set(index, bytesRead);
+            _sampleTimes.set(index, now);
+        }
+        if (_listener != null) _listener.update(bytesRead, contentLength, item);
+    }
+
+    /**
+     * Marks the upload as finished.
+     */
+    public void finish()
+    {
+        if (_end == 0) _end = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the id.
+     *
+     * @return String
+     */
+    public String getId()
+    {
+        return _id;
+    }
+
+    /**
+     * Returns the bytes read.
+     *
+     * @return long
+     */
+    public long getBytesRead()
+    {
+        return _bytesRead.get();
+    }
+
+    /**
+     * Returns the length of the request or -1 if it is not known.
+     *
+     * @return long
+     */
+    public long getContentLength()
+    {
+        return _contentLength.get();
+    }
+
+    /**
+     * Returns the number of the item being read starting with 1.
+     *
+     * @return int
+     */
+    public int getItem()
+    {
+        return _item.get();
+    }
+
+    /**
+     * Returns whether the upload has finished.
+     *
+     * @return boolean
+     */
+    public boolean isFinished()
+    {
+        return (_end > 0);
+    }
+
+    /**
+     * Returns how long the upload has taken so far in milliseconds.
+     *
+     * @return long
+     */
+    public long getElapsed()
+    {
+        long end = _end;
+        return (end > 0 ? end : System.currentTimeMillis()) - _start;
+    }
+
+    /**
+     * Returns the number of bytes read per second over the last WINDOW samples, or over the
+     * whole upload once it has finished.
+     *
+     * @return long
+     */
+    public long getRate()
+    {
+        long bytes = _bytesRead.get();
+        if ( isFinished() ) return bytes * 1000L / Math.max( 1L, getElapsed() );
+
+        //The oldest sample still in the window
+        long now = System.currentTimeMillis();
+        long since = _start;
+        long from = 0L;
+        for (int i=0; i<WINDOW; i++)
+        {
+            long time = _sampleTimes.get(i);
+            if ( time > 0 && now - time <= SAMPLE_MILLIS * WINDOW && (from == 0 || time < since) )
+            {
+                since = time;
+                from = _sampleBytes.get(i);
+            }
+        }
+        if (now - since <= 0 || bytes < from) return 0L;
+        return (bytes - from) * 1000L / (now - since);
+    }
+
+    /**
+     * Returns the number of seconds left at the current rate or -1 if it cannot be told.
+     *
+     * @return long
+     */
+    public long getSecondsLeft()
+    {
+        if ( isFinished() ) return 0L;
+        long length = _contentLength.get();
+        long rate = getRate();
+        if (length < 0 || rate <= 0) return -1L;
+        long left = Math.max( 0L, length - _bytesRead.get() );
+        return (left + rate - 1) / rate;
+    }
+
+    /**
+     * Returns the percent done or -1 if the length is not known.
+     *
+     * @return int
+     */
+    public int getPercent()
+    {
+        long length = _contentLength.get();
+        if ( isFinished() ) return 100;
+        if (length <= 0) return -1;
+        return (int)( Math.min(_bytesRead.get(), length) * 100L / length );
+    }
+}
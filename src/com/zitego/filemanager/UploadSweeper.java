@@ -0,0 +1,178 @@
+package com.zitego.filemanager;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * This is a background thread that removes the partial files of resumable uploads that
+ * were lost. Uploads are only kept in memory, so after a restart their partial files are
+ * left behind in the directories they were going to. A home directory is registered when
+ * its user logs in and is swept soon after, and then at most once per upload timeout (see
+ * ResumableUpload.getTimeout). Only files named like a resumable upload's partial file
+ * that have not been written to within the timeout are removed. Symbolic links are not
+ * followed, so nothing outside of the home directory is ever touched.<br><br>
+ *
+ * There is only one sweeper per jvm. It is started the first time it is asked for.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see ResumableUpload
+ */
+public class UploadSweeper extends Thread
+{
+    /** The single instance. */
+    private static UploadSweeper _instance;
+    /** The home directories to sweep. */
+    private Vector _directories = new Vector();
+    /** When each home directory was last swept keyed by home directory. */
+    private Hashtable _swept = new Hashtable();
+    /** How long to wait between sweeps in milliseconds. Default is one minute. */
+    private long _interval = 60000L;
+    /** Whether we have been asked to stop. */
+    private volatile boolean _stopped = false;
+
+    /**
+     * Creates the sweeper.
+     */
+    private UploadSweeper()
+    {
+        super("UploadSweeper");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Returns the sweeper, starting it if it is not running.
+     *
+     * @return UploadSweeper
+     */
+    public static synchronized UploadSweeper getInstance()
+    {
+        if (_instance == null)
+        {
+            _instance = new UploadSweeper();
+            _instance.start();
+        }
+        return _instance;
+    }
+
+    /**
+     * Registers a home directory to be swept.
+     *
+     * @param home The absolute path of the home directory.
+     */
+    public void register(String home)
+    {
+        synchronized (_directories)
+        {
+            if ( !_directories.contains(home) ) _directories.add(home);
+        }
+    }
+
+    /**
+     * Sets the time to wait between sweeps.
+     *
+     * @param millis The interval in milliseconds.
+     */
+    public void setInterval(long millis)
+    {
+        _interval = millis;
+    }
+
+    /**
+     * Stops the sweeper.
+     */
+    public void shutdown()
+    {
+        _stopped = true;
+        interrupt();
+        synchronized (UploadSweeper.class)
+        {
+            if (_instance == this) _instance = null;
+        }
+    }
+
+    public void run()
+    {
+        while (!_stopped)
+        {
+            try
+            {
+                sleep(_interval);
+                sweep();
+            }
+            catch (InterruptedException ie)
+            {
+                //Asked to stop
+            }
+            catch (Exception e)
+            {
+                //What was not swept is tried again the next time
+            }
+        }
+    }
+
+    /**
+     * Sweeps every registered home directory that has not been swept within the upload
+     * timeout. Idle uploads are cancelled first so their reservations are handed back.
+     */
+    public void sweep()
+    {
+        ResumableUpload.prune();
+        String[] homes = null;
+        synchronized (_directories)
+        {
+            homes = new String[_directories.size()];
+            _directories.copyInto(homes);
+        }
+        long now = System.currentTimeMillis();
+        long timeout = ResumableUpload.getTimeout();
+        for (int i=0; i<homes.length && !_stopped; i++)
+        {
+            Long last = (Long)_swept.get(homes[i]);
+            if (last != null && now - last.longValue() < timeout) continue;
+            _swept.put( homes[i], new Long(now) );
+            sweep( new java.io.File(homes[i]), now-timeout );
+        }
+    }
+
+    /**
+     * Removes the expired resumable upload partial files in the given directory and the
+     * directories under it.
+     *
+     * @param dir The directory.
+     * @param before Partial files last written to before this time are removed.
+     */
+    private void sweep(java.io.File dir, long before)
+    {
+        java.io.File[] files = dir.listFiles();
+        if (files == null) return;
+        for (int i=0; i<files.length && !_stopped; i++)
+        {
+            if ( isLink(files[i]) ) continue;
+            if ( files[i].isDirectory() ) sweep(files[i], before);
+            else if ( ResumableUpload.isPartialFile(files[i].getName()) && files[i].lastModified() < before ) files[i].delete();
+        }
+    }
+
+    /**
+     * Returns whether the given file is a symbolic link. A file that cannot be resolved is
+     * treated as one so that it is left alone.
+     *
+     * @param f The file.
+     * @return boolean
+     */
+    private static boolean isLink(java.io.File f)
+    {
+        try
+        {
+            java.io.File file = new java.io.File( f.getParentFile().getCanonicalFile(), f.getName() );
+            return !file.getCanonicalFile().equals( file.getAbsoluteFile() );
+        }
+        catch (IOException ioe)
+        {
+            return true;
+        }
+    }
+}
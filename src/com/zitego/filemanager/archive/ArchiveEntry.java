@@ -0,0 +1,109 @@
+package com.zitego.filemanager.archive;
+
+/**
+ * This is one file or directory to be written to an archive. The size and last modified
+ * date are read when the entry is created, so an archive's length can be worked out before
+ * any of it is written.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ArchiveEntry
+{
+    /** The name in the archive. Directories end with a slash. */
+    private String _name;
+    /** The file on disk. */
+    private java.io.File _file;
+    /** The size of the file. */
+    private long _size;
+    /** When the file was last modified. */
+    private long _lastModified;
+    /** Whether this is a directory. */
+    private boolean _directory;
+    /** Whether the file should be stored rather than compressed. */
+    private boolean _store;
+
+    /**
+     * Creates a new entry for the given file. A directory name has a slash added if it does
+     * not end with one.
+     *
+     * @param name The name in the archive.
+     * @param file The file or directory on disk.
+     * @param store Whether to store the file rather than compress it.
+     */
+    public ArchiveEntry(String name, java.io.File file, boolean store)
+    {
+        _file = file;
+        _directory = file.isDirectory();
+        _name = (_directory && !name.endsWith("/") ? name + "/" : name);
+        _size = (_directory ? 0L : file.length());
+        _lastModified = file.lastModified();
+        //There is nothing to compress in a directory or an empty file
+        _store = (store || _size == 0L);
+    }
+
+    /**
+     * Returns the name in the archive.
+     *
+     * @return String
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Returns the file on disk.
+     *
+     * @return java.io.File
+     */
+    public java.io.File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return long
+     */
+    public long getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns when the file was last modified.
+     *
+     * @return long
+     */
+    public long getLastModified()
+    {
+        return _lastModified;
+    }
+
+    /**
+     * Returns whether this is a directory.
+     *
+     * @return boolean
+     */
+    public boolean isDirectory()
+    {
+        return _directory;
+    }
+
+    /**
+     * Returns whether the file should be stored rather than compressed.
+     *
+     * @return boolean
+     */
+    public boolean isStored()
+    {
+        return _store;
+    }
+
+    public String toString()
+    {
+        return _name;
+    }
+}
@@ -0,0 +1,26 @@
+package com.zitego.filemanager.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is an archive format that can be expanded as it is read from a stream. Expanders are
+ * found by file type in Expanders.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface Expander
+{
+    /**
+     * Expands the archive in the stream. The compressed stream must be passed through
+     * Expansion.wrap so that the ratio of what is written to what is read can be checked.
+     * The stream is not closed. If this fails the caller should abort the expansion.
+     *
+     * @param in The archive.
+     * @param expansion Where to expand it to.
+     * @throws ExpansionLimitException if the space or ratio limit is passed.
+     * @throws IOException if the archive cannot be read or an error occurs writing.
+     */
+    public void expand(InputStream in, Expansion expansion) throws ExpansionLimitException, IOException;
+}
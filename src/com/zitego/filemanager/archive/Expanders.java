@@ -0,0 +1,90 @@
+package com.zitego.filemanager.archive;
+
+import com.zitego.filemanager.FileType;
+import com.zitego.filemanager.FileTypes;
+import java.util.Hashtable;
+
+/**
+ * This is the registry of archive formats that can be expanded on upload. Expanders are
+ * registered by the extension of their FileType, and a file's expander is found from its
+ * name. An extension can have more than one part, such as "tar.gz", so that a compressed
+ * tar is not mistaken for any other gzipped file. The longest matching extension wins.<br><br>
+ *
+ * zip, tar, tar.gz, and tgz are registered to start with. Other formats (tar.zst and tar.bz2
+ * for instance) need a decompressor that the jvm does not have and can be added with
+ * register once one is available.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class Expanders
+{
+    /** The expanders keyed by extension. */
+    private static Hashtable _expanders = new Hashtable();
+
+    static
+    {
+        register( "zip", new ZipStreamExtractor() );
+        register( "tar", new TarExpander(false) );
+        register( "tar.gz", new TarExpander(true) );
+        register( "tgz", new TarExpander(true) );
+    }
+
+    private Expanders() { }
+
+    /**
+     * Registers the expander for the given extension, replacing any that was there.
+     *
+     * @param extension The extension without a leading dot.
+     * @param expander The expander.
+     */
+    public static void register(String extension, Expander expander)
+    {
+        _expanders.put( extension.toLowerCase(), expander );
+    }
+
+    /**
+     * Removes the expander for the given extension.
+     *
+     * @param extension The extension without a leading dot.
+     */
+    public static void unregister(String extension)
+    {
+        _expanders.remove( extension.toLowerCase() );
+    }
+
+    /**
+     * Returns the expander for files of the given type or null if there is none.
+     *
+     * @param type The file type.
+     * @return Expander
+     */
+    public static Expander getExpander(FileType type)
+    {
+        String ext = type.getExtension();
+        return (ext != null ? (Expander)_expanders.get( ext.toLowerCase() ) : null);
+    }
+
+    /**
+     * Returns the expander for the file with the given name or null if it is not an
+     * archive that can be expanded.
+     *
+     * @param name The file name.
+     * @return Expander
+     */
+    public static Expander getExpander(String name)
+    {
+        String lower = name.toLowerCase();
+        //Try each extension starting with the longest
+        int index = lower.indexOf(".");
+        while (index > -1)
+        {
+            String ext = lower.substring(index+1);
+            if ( ext.indexOf(".") == -1 ) break;
+            Expander ret = (Expander)_expanders.get(ext);
+            if (ret != null) return ret;
+            index = lower.indexOf(".", index+1);
+        }
+        return getExpander( FileTypes.getFileTypeByName(name, false) );
+    }
+}
@@ -0,0 +1,359 @@
+package com.zitego.filemanager.archive;
+
+import com.zitego.filemanager.Quota;
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.PartialFile;
+import com.zitego.filemanager.io.Preallocator;
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.util.Vector;
+
+/**
+ * This is where an archive read from a stream is expanded to. The archive reader hands it
+ * each directory and file as it comes to them and this writes them under the root
+ * directory, so the archive itself is never stored. Names are made relative to the root
+ * (see getRelativePath) and each file is written to a partial file that is renamed when it
+ * is complete.<br><br>
+ *
+ * The bytes actually written are counted as they are written rather than trusting the
+ * sizes the archive claims. An ExpansionLimitException is thrown as soon as they go over
+ * the space allowed (a fixed number of bytes or a quota reservation), or once more than expand_ratio_min bytes (default 16mb) have been
+ * written, if they are more than expand_max_ratio (default 200) times the compressed bytes
+ * read so far. When an expansion fails, abort() removes what it created.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class Expansion
+{
+    /** The directory to expand to. */
+    private java.io.File _root;
+    /** The name of the archive for messages. */
+    private String _name;
+    /** The most bytes that may be written or -1 if there is no limit. */
+    private long _maxBytes;
+    /** The reservation the bytes written are counted against or null. */
+    private Quota.Reservation _reservation;
+    /** The most the archive may expand by. */
+    private long _maxRatio = Math.max( 1L, SystemProperties.getLong("expand_max_ratio", 200L) );
+    /** The bytes written before the ratio is checked. */
+    private long _ratioMin = Math.max( 1L, SystemProperties.getLong("expand_ratio_min", 16777216L) );
+    /** The compressed stream. */
+    private CountingInputStream _in;
+    /** The bytes written. */
+    private long _written = 0L;
+    /** The directories and files created in the order they were created. */
+    private Vector _created = new Vector();
+    /** The directories and files written in the order they were written. */
+    private Vector _files = new Vector();
+    /** The partial file being written. */
+    private java.io.File _partial;
+    /** The bytes held by files that were already there and have been replaced. */
+    private long _replaced = 0L;
+    /** Whether the directory to expand to is the home directory. */
+    private boolean _home = true;
+
+    /**
+     * Creates a new expansion.
+     *
+     * @param root The directory to expand to.
+     * @param name The name of the archive.
+     * @param maxBytes The most bytes that may be written or -1 if there is no limit.
+     */
+    public Expansion(java.io.File root, String name, long maxBytes)
+    {
+        _root = root;
+        _name = name;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a new expansion that counts the bytes written against a quota reservation.
+     * The bytes are taken back from the reservation if the expansion is aborted.
+     *
+     * @param root The directory to expand to.
+     * @param name The name of the archive.
+     * @param reservation The reservation or null if there is no limit.
+     */
+    public Expansion(java.io.File root, String name, Quota.Reservation reservation)
+    {
+        this(root, name, -1L);
+        _reservation = reservation;
+    }
+
+    /**
+     * Sets whether the directory to expand to is the user's home directory, where the file
+     * manager's own files are (see FileFilter.isReserved). Default is true.
+     *
+     * @param home Whether it is the home directory.
+     */
+    public void setHomeDirectory(boolean home)
+    {
+        _home = home;
+    }
+
+    /**
+     * Returns the given compressed stream wrapped so that the bytes read from it are
+     * counted for the ratio check. The archive must be read from the returned stream.
+     *
+     * @param in The compressed stream.
+     * @return InputStream
+     */
+    public InputStream wrap(InputStream in)
+    {
+        _in = new CountingInputStream(in);
+        return _in;
+    }
+
+    /**
+     * Creates the directory with the given name and any above it.
+     *
+     * @param name The name in the archive.
+     * @throws IOException if the name is outside of the root or the directory cannot be created.
+     */
+    public void createDirectory(String name) throws IOException
+    {
+        String path = getRelativePath(name, _home);
+        if (path.length() == 0) return;
+        if ( path.endsWith("/") ) path = path.substring(0, path.length()-1);
+        createDirectories(path + "/");
+    }
+
+    /**
+     * Writes the file with the given name from the stream, creating any directories above
+     * it, and returns it. The stream is not closed.
+     *
+     * @param name The name in the archive.
+     * @param in The file's contents.
+     * @return java.io.File
+     * @throws ExpansionLimitException if the space or ratio limit is passed.
+     * @throws IOException if the name is outside of the root or an error occurs writing.
+     */
+    public java.io.File writeFile(String name, InputStream in) throws ExpansionLimitException, IOException
+    {
+        return writeFile(name, in, -1L);
+    }
+
+    /**
+     * Writes the file with the given name from the stream, creating any directories above
+     * it, and returns it. If the archive gives the file's size it is preallocated (see
+     * Preallocator). The size is only a hint, the file is as long as what is read. The
+     * stream is not closed.
+     *
+     * @param name The name in the archive.
+     * @param in The file's contents.
+     * @param size The size the archive gives or -1 if it does not.
+     * @return java.io.File
+     * @throws ExpansionLimitException if the space or ratio limit is passed.
+     * @throws IOException if the name is outside of the root or an error occurs writing.
+     */
+    public java.io.File writeFile(String name, InputStream in, long size) throws ExpansionLimitException, IOException
+    {
+        String path = getRelativePath(name, _home);
+        if ( path.length() == 0 || path.endsWith("/") ) throw new IOException(name+" is not a file name");
+        createDirectories(path);
+        java.io.File f = new java.io.File(_root, path);
+        boolean existed = f.exists();
+        _partial = PartialFile.create(f, "expand");
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        long total = 0L;
+        try
+        {
+            //Never more than the space that is left
+            if (_maxBytes >= 0) size = Math.min(size, _maxBytes-_written);
+            RandomAccessFile out = Preallocator.open(_partial, size);
+            try
+            {
+                int count;
+                while ( (count=in.read(buffer)) != -1 )
+                {
+                    total += count;
+                    count(count);
+                    out.write(buffer, 0, count);
+                }
+                Preallocator.finish(out, total);
+            }
+            finally
+            {
+                out.close();
+            }
+            _replaced += PartialFile.replace(_partial, f);
+            _partial = null;
+        }
+        finally
+        {
+            pool.release(buffer);
+            pool.moved(total);
+        }
+        if (!existed) _created.add(f);
+        _files.add(f);
+        return f;
+    }
+
+    /**
+     * Removes the partial file being written and everything this expansion created. Files
+     * that were already there and have been replaced are left as they are now.
+     */
+    public void abort()
+    {
+        if (_partial != null) _partial.delete();
+        _partial = null;
+        for (int i=_created.size()-1; i>=0; i--)
+        {
+            ( (java.io.File)_created.get(i) ).delete();
+        }
+        _created.clear();
+        _files.clear();
+        if (_reservation != null) _reservation.free(_written);
+        _written = 0L;
+    }
+
+    /**
+     * Returns the directories that were created and the files that were written as
+     * java.io.File objects in the order they were expanded.
+     *
+     * @return Vector
+     */
+    public Vector getFiles()
+    {
+        return _files;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return long
+     */
+    public long getBytesWritten()
+    {
+        return _written;
+    }
+
+    /**
+     * Returns the bytes held by files that were already there and have been replaced, which
+     * are no longer used (see PartialFile.replace). They stay replaced if the expansion is
+     * aborted.
+     *
+     * @return long
+     */
+    public long getBytesReplaced()
+    {
+        return _replaced;
+    }
+
+    /**
+     * Returns the name of the archive.
+     *
+     * @return String
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Counts bytes written and checks the limits.
+     *
+     * @param bytes The bytes.
+     * @throws ExpansionLimitException if a limit is passed.
+     */
+    private void count(long bytes) throws ExpansionLimitException
+    {
+        if ( _reservation != null && !_reservation.use(bytes) ) throw new ExpansionLimitException("Not enough space left to expand "+_name);
+        _written += bytes;
+        if (_maxBytes >= 0 && _written > _maxBytes) throw new ExpansionLimitException("Not enough space left to expand "+_name);
+        if ( _in != null && _written > _ratioMin && _written/_maxRatio > Math.max(1L, _in.getCount()) )
+        {
+            throw new ExpansionLimitException(_name+" expands to far more than its size and will not be expanded");
+        }
+    }
+
+    /**
+     * Creates the directories above the last slash in the given relative path.
+     *
+     * @param path The path.
+     * @throws IOException if a directory cannot be created.
+     */
+    private void createDirectories(String path) throws IOException
+    {
+        int index = -1;
+        while ( (index=path.indexOf("/", index+1)) != -1 )
+        {
+            java.io.File dir = new java.io.File( _root, path.substring(0, index) );
+            if ( !dir.isDirectory() )
+            {
+                if ( !dir.mkdir() ) throw new IOException("Could not create directory "+path.substring(0, index));
+                _created.add(dir);
+                _files.add(dir);
+            }
+        }
+    }
+
+    /**
+     * Returns the given entry name as a path relative to the directory being expanded to.
+     * Leading slashes and "." segments are removed and back slashes are treated as forward
+     * slashes. Names of files reserved by the file manager are not allowed.
+     *
+     * @param name The entry name.
+     * @param home Whether the directory being expanded to is the home directory.
+     * @return String
+     * @throws IOException if the name has a ".." segment or a reserved name.
+     */
+    public static String getRelativePath(String name, boolean home) throws IOException
+    {
+        StringBuffer ret = new StringBuffer();
+        String[] segments = name.replace('\\', '/').split("/", -1);
+        for (int i=0; i<segments.length; i++)
+        {
+            String segment = segments[i];
+            if ( "..".equals(segment) ) throw new IOException(name+" is outside of the directory being expanded to");
+            if ( segment.length() == 0 || ".".equals(segment) ) continue;
+            if ( FileFilter.isReserved(segment, home && ret.length() == 0) ) throw new IOException(name+" is a reserved name");
+            if (ret.length() > 0) ret.append("/");
+            ret.append(segment);
+        }
+        if ( ret.length() > 0 && (name.endsWith("/") || name.endsWith("\\")) ) ret.append("/");
+        return ret.toString();
+    }
+
+    /**
+     * A stream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private volatile long _count = 0L;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        long getCount()
+        {
+            return _count;
+        }
+
+        public int read() throws IOException
+        {
+            int ret = in.read();
+            if (ret != -1) _count++;
+            return ret;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int ret = in.read(b, off, len);
+            if (ret > 0) _count += ret;
+            return ret;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long ret = in.skip(n);
+            if (ret > 0) _count += ret;
+            return ret;
+        }
+    }
+}
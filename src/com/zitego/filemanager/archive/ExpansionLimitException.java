@@ -0,0 +1,24 @@
+package com.zitego.filemanager.archive;
+
+import java.io.IOException;
+
+/**
+ * This is thrown when an archive being expanded goes over the space it is allowed or
+ * expands so much more than its compressed size that it is taken to be a decompression
+ * bomb.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ExpansionLimitException extends IOException
+{
+    /**
+     * Creates a new exception.
+     *
+     * @param msg The message.
+     */
+    public ExpansionLimitException(String msg)
+    {
+        super(msg);
+    }
+}
@@ -0,0 +1,226 @@
+package com.zitego.filemanager.archive;
+
+import com.zitego.filemanager.io.ParallelDeflater;
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * This is a ZipWriter that deflates on every core (see ParallelDeflater). Large files are
+ * cut into blocks that are deflated in parallel. Small files are each deflated whole on a
+ * worker thread while the files before them are still being written, so a directory of
+ * many small files is spread across the cores as well. Entries are always written in the
+ * order they were given, and only a few megabytes of small files are read ahead, so the
+ * memory used still does not depend on the size of the archive.<br><br>
+ *
+ * The archive is exactly what ZipWriter would write apart from the compressed data itself,
+ * which is a little larger for split files since each block is flushed to a byte boundary.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ParallelZipWriter extends ZipWriter
+{
+    /** Files up to this size are deflated whole on a worker thread. */
+    static final long SMALL_FILE_SIZE = 1048576L;
+    /** The deflater. */
+    private ParallelDeflater _deflater = ParallelDeflater.getInstance();
+    /** The small files being deflated in the order they were written. */
+    private LinkedList _pending = new LinkedList();
+    /** The number of bytes of small files being deflated. */
+    private long _pendingBytes = 0L;
+    /** The most bytes of small files to read ahead. */
+    private long _maxPendingBytes = SMALL_FILE_SIZE * 2 * _deflater.getThreads();
+    /** The most small files to read ahead. */
+    private int _maxPending = 64 * _deflater.getThreads();
+
+    /**
+     * Usage: java ParallelZipWriter &lt;zip file&gt; &lt;file or directory&gt;...<br>
+     * Writes the files to a zip deflating everything and prints how long it took.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        OutputStream out = new BufferedOutputStream( new FileOutputStream(args[0]), 65536 );
+        ZipWriter zip = ( "0".equals(System.getProperty("use_parallel_deflate")) ? new ZipWriter(out) : new ParallelZipWriter(out) );
+        for (int i=1; i<args.length; i++)
+        {
+            java.io.File f = new java.io.File(args[i]);
+            addAll( zip, f.getName(), f );
+        }
+        zip.close();
+        System.out.println
+        (
+            zip.getClass().getName() + " wrote " + zip.getBytesWritten() + " bytes in " + (System.currentTimeMillis()-start) + "ms"
+        );
+    }
+
+    private static void addAll(ZipWriter zip, String name, java.io.File f) throws IOException
+    {
+        zip.write( new ArchiveEntry(name, f, false) );
+        java.io.File[] children = f.listFiles();
+        for (int i=0; children != null && i<children.length; i++)
+        {
+            addAll( zip, name + "/" + children[i].getName(), children[i] );
+        }
+    }
+
+    /**
+     * Creates a new writer.
+     *
+     * @param out The stream to write to.
+     */
+    public ParallelZipWriter(OutputStream out)
+    {
+        super(out);
+    }
+
+    /**
+     * Writes the given entry. A small file that is deflated is handed to a worker thread
+     * and written once it and everything before it are done.
+     *
+     * @param entry The entry.
+     * @throws IOException if an error occurs writing this or an earlier entry.
+     * @throws IllegalStateException if the archive has been finished.
+     */
+    public void write(ArchiveEntry entry) throws IOException, IllegalStateException
+    {
+        if ( entry.isStored() || entry.getSize() > SMALL_FILE_SIZE )
+        {
+            flushPending(0, 0L);
+            super.write(entry);
+            return;
+        }
+        _pending.add( _deflater.submit(new SmallFile(entry, getLevel())) );
+        _pendingBytes += entry.getSize();
+        flushPending(_maxPending, _maxPendingBytes);
+    }
+
+    /**
+     * Writes the small files that are waiting and then finishes the archive.
+     *
+     * @throws IOException if an error occurs writing.
+     */
+    public void finish() throws IOException
+    {
+        try
+        {
+            flushPending(0, 0L);
+        }
+        finally
+        {
+            cancelPending();
+        }
+        super.finish();
+    }
+
+    /**
+     * Deflates a large file in blocks on the worker threads.
+     *
+     * @param entry The entry.
+     * @param in The file's input stream.
+     * @param out The stream to write the deflated data to.
+     * @param crc The crc to update with what was read.
+     * @return long
+     * @throws IOException if an error occurs reading or writing.
+     */
+    protected long deflate(ArchiveEntry entry, InputStream in, OutputStream out, CRC32 crc) throws IOException
+    {
+        return _deflater.deflate( in, out, getLevel(), crc );
+    }
+
+    /**
+     * Writes the oldest small files until no more than the given number of files and bytes
+     * are waiting.
+     *
+     * @param maxFiles The most files that may be left waiting.
+     * @param maxBytes The most bytes that may be left waiting.
+     * @throws IOException if a file could not be read or written.
+     */
+    private void flushPending(int maxFiles, long maxBytes) throws IOException
+    {
+        while ( !_pending.isEmpty() && (_pending.size() > maxFiles || _pendingBytes > maxBytes) )
+        {
+            SmallFile file = (SmallFile)ParallelDeflater.get( (Future)_pending.removeFirst() );
+            _pendingBytes -= file.getEntry().getSize();
+            writeDeflated( file.getEntry(), file.getCrc(), file.getSize(), file.getData(), file.getLength() );
+        }
+    }
+
+    /**
+     * Cancels the small files that have not been written.
+     */
+    private void cancelPending()
+    {
+        while ( !_pending.isEmpty() )
+        {
+            ( (Future)_pending.removeFirst() ).cancel(false);
+        }
+        _pendingBytes = 0L;
+    }
+
+    /**
+     * Reads and deflates one small file.
+     */
+    private static class SmallFile implements Callable
+    {
+        private ArchiveEntry _entry;
+        private int _level;
+        private long _crc;
+        private long _size;
+        private byte[] _data;
+        private int _length;
+
+        SmallFile(ArchiveEntry entry, int level)
+        {
+            _entry = entry;
+            _level = level;
+        }
+
+        ArchiveEntry getEntry()
+        {
+            return _entry;
+        }
+
+        long getCrc()
+        {
+            return _crc;
+        }
+
+        long getSize()
+        {
+            return _size;
+        }
+
+        byte[] getData()
+        {
+            return _data;
+        }
+
+        int getLength()
+        {
+            return _length;
+        }
+
+        public Object call() throws Exception
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( (int)(_entry.getSize()/2) + 64 );
+            CRC32 crc = new CRC32();
+            InputStream in = new FileInputStream( _entry.getFile() );
+            try
+            {
+                _size = ParallelDeflater.deflateSerial(in, out, _level, crc);
+            }
+            finally
+            {
+                in.close();
+            }
+            _crc = crc.getValue();
+            _data = out.toByteArray();
+            _length = _data.length;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.zitego.filemanager.archive;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This expands a tar archive, optionally gzipped, as it is read from a stream. Each file is
+ * written as soon as its header is read, so the archive is read once and never stored. The
+ * ustar, GNU, and pax forms of long names and large sizes are understood. Directories and
+ * regular files are expanded and keep their modification times. Links, devices, and other
+ * special entries are skipped since a link could point outside of the directory being
+ * expanded to.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TarExpander implements Expander
+{
+    /** The size of a tar block. */
+    private static final int BLOCK = 512;
+    /** Whether the archive is gzipped. */
+    private boolean _gzipped;
+
+    /**
+     * Usage: java TarExpander &lt;tar file&gt; &lt;directory&gt;<br>
+     * Expands the tar file (gzipped if it ends in gz) to the directory.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Expansion expansion = new Expansion( new java.io.File(args[1]), args[0], -1L );
+        InputStream in = new BufferedInputStream( new FileInputStream(args[0]) );
+        try
+        {
+            new TarExpander( args[0].endsWith("gz") ).expand(in, expansion);
+            System.out.println( "Expanded " + expansion.getFiles().size() + " files and directories, " + expansion.getBytesWritten() + " bytes" );
+        }
+        catch (IOException ioe)
+        {
+            expansion.abort();
+            throw ioe;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates a new expander.
+     *
+     * @param gzipped Whether the archive is gzipped.
+     */
+    public TarExpander(boolean gzipped)
+    {
+        _gzipped = gzipped;
+    }
+
+    /**
+     * Expands the tar archive in the stream. The stream is read to the end of the archive
+     * but not closed. If this fails the caller should abort the expansion.
+     *
+     * @param in The archive.
+     * @param expansion Where to expand it to.
+     * @throws ExpansionLimitException if the space or ratio limit is passed.
+     * @throws IOException if the archive cannot be read or an error occurs writing.
+     */
+    public void expand(InputStream in, Expansion expansion) throws ExpansionLimitException, IOException
+    {
+        in = expansion.wrap(in);
+        if (_gzipped) in = new GZIPInputStream(in);
+        byte[] header = new byte[BLOCK];
+        String longName = null;
+        String paxName = null;
+        long paxSize = -1L;
+        while (true)
+        {
+            if ( !readFully(in, header) ) return;
+            if ( isZeros(header) ) return;
+            if ( getChecksum(header) != parseNumber(header, 148, 8) )
+            {
+                throw new IOException( expansion.getName()+" is not a tar file or is corrupt" );
+            }
+
+            char type = (char)header[156];
+            long size = parseNumber(header, 124, 12);
+            if (paxSize >= 0) size = paxSize;
+            if (size < 0) throw new IOException( expansion.getName()+" is corrupt" );
+
+            String name = paxName;
+            if (name == null) name = longName;
+            if (name == null)
+            {
+                name = parseString(header, 0, 100);
+                //ustar prefix
+                if ( "ustar".equals(parseString(header, 257, 6)) )
+                {
+                    String prefix = parseString(header, 345, 155);
+                    if (prefix.length() > 0) name = prefix + "/" + name;
+                }
+            }
+
+            if (type == 'L')
+            {
+                longName = parseString( readData(in, size), 0, (int)size );
+                continue;
+            }
+            else if (type == 'x')
+            {
+                String[] pax = parsePax( readData(in, size) );
+                paxName = pax[0];
+                try
+                {
+                    paxSize = (pax[1] != null ? Long.parseLong(pax[1]) : -1L);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    throw new IOException( expansion.getName()+" is corrupt" );
+                }
+                continue;
+            }
+            longName = null;
+            paxName = null;
+            paxSize = -1L;
+
+            long time = parseNumber(header, 136, 12) * 1000L;
+            if ( type == '5' || ((type == '0' || type == 0) && name.endsWith("/")) )
+            {
+                expansion.createDirectory(name);
+                skip(in, size);
+            }
+            else if (type == '0' || type == 0 || type == '7')
+            {
+                EntryInputStream entry = new EntryInputStream(in, size);
+                ZipStreamExtractor.setLastModified( expansion.writeFile(name, entry, size), time );
+                skip(in, entry.getRemaining());
+            }
+            else
+            {
+                //Links, devices, fifos, global pax headers
+                skip(in, size);
+                continue;
+            }
+            skip(in, (BLOCK - size%BLOCK) % BLOCK);
+        }
+    }
+
+    /**
+     * Reads the data of an extended header entry including its padding.
+     *
+     * @param in The stream.
+     * @param size The size of the data.
+     * @return byte[]
+     * @throws IOException if the data is too large or the stream ends.
+     */
+    private byte[] readData(InputStream in, long size) throws IOException
+    {
+        if (size > 1048576L) throw new IOException("Tar header of "+size+" bytes is too large");
+        byte[] ret = new byte[(int)size];
+        if ( !readFully(in, ret) ) throw new EOFException("Unexpected end of tar file");
+        skip(in, (BLOCK - size%BLOCK) % BLOCK);
+        return ret;
+    }
+
+    /**
+     * Returns the path and size in the pax extended header records or null for ones that
+     * are not there. Each record is "&lt;length&gt; &lt;key&gt;=&lt;value&gt;\n".
+     *
+     * @param data The records.
+     * @return String[]
+     * @throws IOException if the records are corrupt.
+     */
+    static String[] parsePax(byte[] data) throws IOException
+    {
+        String[] ret = new String[2];
+        int pos = 0;
+        while (pos < data.length)
+        {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') space++;
+            int length;
+            try
+            {
+                length = Integer.parseInt( new String(data, pos, space-pos, "US-ASCII") );
+            }
+            catch (NumberFormatException nfe)
+            {
+                throw new IOException("Corrupt pax header");
+            }
+            if (length < space-pos+2 || pos+length > data.length) throw new IOException("Corrupt pax header");
+            String record = new String(data, space+1, pos+length-space-2, "UTF-8");
+            int eq = record.indexOf("=");
+            if (eq > 0)
+            {
+                String key = record.substring(0, eq);
+                if ( "path".equals(key) ) ret[0] = record.substring(eq+1);
+                else if ( "size".equals(key) ) ret[1] = record.substring(eq+1);
+            }
+            pos += length;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the sum of the header bytes with the checksum field taken as spaces.
+     *
+     * @param header The header.
+     * @return long
+     */
+    private static long getChecksum(byte[] header)
+    {
+        long ret = 0L;
+        for (int i=0; i<header.length; i++)
+        {
+            ret += (i >= 148 && i < 156 ? ' ' : header[i] & 0xff);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number in the header field. Numbers are octal unless the high bit of the
+     * first byte is set, in which case they are GNU base-256.
+     *
+     * @param header The header.
+     * @param offset The field offset.
+     * @param length The field length.
+     * @return long
+     * @throws IOException if the field is not a number.
+     */
+    static long parseNumber(byte[] header, int offset, int length) throws IOException
+    {
+        long ret = 0L;
+        if ( (header[offset] & 0x80) != 0 )
+        {
+            if (length > 9 && (header[offset] & 0x7f) != 0) throw new IOException("Tar number is too large");
+            for (int i=offset+1; i<offset+length; i++)
+            {
+                ret = (ret << 8) | (header[i] & 0xff);
+            }
+            return ret;
+        }
+        int end = offset + length;
+        int i = offset;
+        while (i < end && (header[i] == ' ' || header[i] == 0)) i++;
+        for (; i<end; i++)
+        {
+            byte b = header[i];
+            if (b == ' ' || b == 0) break;
+            if (b < '0' || b > '7') throw new IOException("Corrupt tar number");
+            ret = (ret << 3) + (b - '0');
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the nul terminated string in the header field.
+     *
+     * @param header The header.
+     * @param offset The field offset.
+     * @param length The field length.
+     * @return String
+     * @throws UnsupportedEncodingException
+     */
+    private static String parseString(byte[] header, int offset, int length) throws UnsupportedEncodingException
+    {
+        int end = offset;
+        while (end < offset+length && header[end] != 0) end++;
+        return new String(header, offset, end-offset, "UTF-8");
+    }
+
+    /**
+     * Returns whether the block is all zeros, which marks the end of the archive.
+     *
+     * @param block The block.
+     * @return boolean
+     */
+    private static boolean isZeros(byte[] block)
+    {
+        for (int i=0; i<block.length; i++)
+        {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fills the buffer from the stream. Returns false if the stream was already at its end.
+     *
+     * @param in The stream.
+     * @param buffer The buffer.
+     * @return boolean
+     * @throws EOFException if the stream ends part way through.
+     * @throws IOException if an error occurs reading.
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int pos = 0;
+        while (pos < buffer.length)
+        {
+            int count = in.read(buffer, pos, buffer.length-pos);
+            if (count == -1)
+            {
+                if (pos == 0) return false;
+                throw new EOFException("Unexpected end of tar file");
+            }
+            pos += count;
+        }
+        return true;
+    }
+
+    /**
+     * Skips the given number of bytes.
+     *
+     * @param in The stream.
+     * @param bytes The number of bytes.
+     * @throws EOFException if the stream ends first.
+     * @throws IOException if an error occurs reading.
+     */
+    private static void skip(InputStream in, long bytes) throws IOException
+    {
+        byte[] buffer = null;
+        while (bytes > 0)
+        {
+            long count = in.skip(bytes);
+            if (count <= 0)
+            {
+                //Some streams will not skip, so read instead
+                if (buffer == null) buffer = new byte[BLOCK];
+                count = in.read( buffer, 0, (int)Math.min(bytes, BLOCK) );
+                if (count == -1) throw new EOFException("Unexpected end of tar file");
+            }
+            bytes -= count;
+        }
+    }
+
+    /**
+     * A stream over one entry's data that ends at the entry's size and is not closed.
+     */
+    private static class EntryInputStream extends FilterInputStream
+    {
+        private long _remaining;
+
+        EntryInputStream(InputStream in, long size)
+        {
+            super(in);
+            _remaining = size;
+        }
+
+        long getRemaining()
+        {
+            return _remaining;
+        }
+
+        public int read() throws IOException
+        {
+            if (_remaining <= 0) return -1;
+            int ret = in.read();
+            if (ret == -1) throw new EOFException("Unexpected end of tar file");
+            _remaining--;
+            return ret;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (_remaining <= 0) return -1;
+            int ret = in.read( b, off, (int)Math.min(len, _remaining) );
+            if (ret == -1) throw new EOFException("Unexpected end of tar file");
+            _remaining -= ret;
+            return ret;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long ret = in.skip( Math.min(n, _remaining) );
+            _remaining -= ret;
+            return ret;
+        }
+
+        public int available() throws IOException
+        {
+            return (int)Math.min( in.available(), _remaining );
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        public void close() { }
+    }
+}
@@ -0,0 +1,438 @@
+package com.zitego.filemanager.archive;
+
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.PartialFile;
+import com.zitego.filemanager.io.Preallocator;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This extracts a zip file on several threads at once. The central directory is read first
+ * so the total size is known before anything is written (see getSize()) and every directory
+ * is created before any file is. The files are then inflated by a few workers, largest
+ * first, each reading through its own ZipFile since reads through one ZipFile are done one
+ * at a time. Each worker holds one buffer and two open files, so the memory and files used
+ * do not depend on the size of the archive. Each file is written to a partial file that is
+ * renamed over the target when it is complete (see PartialFile), preallocated to the size
+ * the zip gives for it (see Preallocator).<br><br>
+ *
+ * The workers come from a pool shared by every extraction. Its size is set with the System
+ * property zip_extract_threads (default the number of processors) and the calling thread
+ * is always one of the workers, so an extraction still runs when the pool is busy.<br><br>
+ *
+ * Entry names are made relative to the target directory (see Expansion.getRelativePath).
+ * An entry that would be written outside of it is an error, as is one that inflates to more
+ * than its size says. When the extraction fails the directories and files it created are
+ * removed, the same as Expansion.abort(). Files that were already there and have been
+ * replaced are left as they are now.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ZipExtractor
+{
+    /** The shared worker pool. */
+    private static ThreadPoolExecutor _workers;
+    /** The zip file. */
+    private ZipFile _zipFile;
+    /** The directory to extract to. */
+    private java.io.File _root;
+    /** The file entries. */
+    private ArrayList _files = new ArrayList();
+    /** The directories to create in the order they were found. */
+    private Vector _directories = new Vector();
+    /** The total size of the files. */
+    private long _size = 0L;
+    /** The bytes held by files that were already there and have been replaced. */
+    private AtomicLong _replaced = new AtomicLong();
+    /** The bytes held by the files that have been extracted and are still there. */
+    private AtomicLong _extracted = new AtomicLong();
+
+    /**
+     * Usage: java ZipExtractor &lt;zip file&gt; &lt;directory&gt;<br>
+     * Extracts the zip file to the directory and prints how long it took.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        ZipFile zip = new ZipFile(args[0]);
+        try
+        {
+            ZipExtractor extractor = new ZipExtractor( zip, new java.io.File(args[1]) );
+            Vector files = extractor.extract();
+            System.out.println
+            (
+                "Extracted " + files.size() + " files and directories, " + extractor.getSize() + " bytes in " +
+                (System.currentTimeMillis()-start) + "ms with " + getThreads() + " threads"
+            );
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+    /**
+     * Creates a new extractor for the home directory and reads the zip file's central
+     * directory.
+     *
+     * @param zipFile The zip file.
+     * @param root The directory to extract to.
+     * @throws IOException if an entry would be written outside of the directory.
+     */
+    public ZipExtractor(ZipFile zipFile, java.io.File root) throws IOException
+    {
+        this(zipFile, root, true);
+    }
+
+    /**
+     * Creates a new extractor and reads the zip file's central directory.
+     *
+     * @param zipFile The zip file.
+     * @param root The directory to extract to.
+     * @param home Whether the directory is the home directory (see FileFilter.isReserved).
+     * @throws IOException if an entry would be written outside of the directory or has a
+     *                     reserved name.
+     */
+    public ZipExtractor(ZipFile zipFile, java.io.File root, boolean home) throws IOException
+    {
+        _zipFile = zipFile;
+        _root = root;
+        HashSet directories = new HashSet();
+        for (Enumeration e=zipFile.entries(); e.hasMoreElements();)
+        {
+            ZipEntry entry = (ZipEntry)e.nextElement();
+            String name = Expansion.getRelativePath( entry.getName(), home );
+            if (name.length() == 0) continue;
+
+            //Every directory above the entry
+            int index = -1;
+            while ( (index=name.indexOf("/", index+1)) != -1 )
+            {
+                String dir = name.substring(0, index);
+                if ( directories.add(dir) ) _directories.add(dir);
+            }
+            if ( entry.isDirectory() )
+            {
+                if ( !name.endsWith("/") ) name += "/";
+                String dir = name.substring(0, name.length()-1);
+                if ( directories.add(dir) ) _directories.add(dir);
+            }
+            else
+            {
+                _files.add( new Object[] { entry, name } );
+                if (entry.getSize() > 0) _size += entry.getSize();
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the files in the archive.
+     *
+     * @return long
+     */
+    public long getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns the bytes held by files that were already there and have been replaced, which
+     * are no longer used (see PartialFile.replace).
+     *
+     * @return long
+     */
+    public long getBytesReplaced()
+    {
+        return _replaced.get();
+    }
+
+    /**
+     * Returns the bytes held by the files that have been extracted and are still there.
+     * After a failed extraction this only counts the files that replaced ones that were
+     * already there, since the new ones have been removed.
+     *
+     * @return long
+     */
+    public long getBytesExtracted()
+    {
+        return _extracted.get();
+    }
+
+    /**
+     * Extracts the archive and returns a Vector of java.io.File objects for the directories
+     * that were created followed by the files that were written, in archive order. If it
+     * fails, what it created is removed.
+     *
+     * @return Vector
+     * @throws IOException if an error occurs extracting a file.
+     */
+    public Vector extract() throws IOException
+    {
+        Vector ret = new Vector();
+        //Whether each file was already there, so a failure only removes the new ones
+        boolean[] existed = new boolean[ _files.size() ];
+        try
+        {
+            for (int i=0; i<_directories.size(); i++)
+            {
+                java.io.File dir = new java.io.File( _root, (String)_directories.get(i) );
+                if ( !dir.isDirectory() )
+                {
+                    if ( !dir.mkdir() ) throw new IOException("Could not create directory "+_directories.get(i));
+                    ret.add(dir);
+                }
+            }
+            for (int i=0; i<existed.length; i++)
+            {
+                existed[i] = new java.io.File( _root, (String)((Object[])_files.get(i))[1] ).exists();
+            }
+            extractFiles();
+        }
+        catch (IOException ioe)
+        {
+            abort(ret, existed);
+            throw ioe;
+        }
+
+        for (int i=0; i<_files.size(); i++)
+        {
+            ret.add( new java.io.File(_root, (String)((Object[])_files.get(i))[1]) );
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the files that were not there before and then the directories that were
+     * created, deepest first.
+     *
+     * @param dirs The directories that were created.
+     * @param existed Whether each file was already there.
+     */
+    private void abort(Vector dirs, boolean[] existed)
+    {
+        for (int i=0; i<existed.length; i++)
+        {
+            if (existed[i]) continue;
+            java.io.File f = new java.io.File( _root, (String)((Object[])_files.get(i))[1] );
+            long length = f.length();
+            if ( f.delete() ) _extracted.addAndGet(-length);
+        }
+        for (int i=dirs.size()-1; i>=0; i--)
+        {
+            ( (java.io.File)dirs.get(i) ).delete();
+        }
+    }
+
+    /**
+     * Inflates the files on the workers and waits for all of them to finish.
+     *
+     * @throws IOException if an error occurs extracting a file.
+     */
+    private void extractFiles() throws IOException
+    {
+
+        //Largest first so that one big file is not left for last
+        ArrayList work = new ArrayList(_files);
+        Collections.sort
+        (
+            work, new Comparator()
+            {
+                public int compare(Object o1, Object o2)
+                {
+                    long s1 = ( (ZipEntry)((Object[])o1)[0] ).getSize();
+                    long s2 = ( (ZipEntry)((Object[])o2)[0] ).getSize();
+                    return (s1 > s2 ? -1 : (s1 < s2 ? 1 : 0));
+                }
+            }
+        );
+
+        AtomicInteger next = new AtomicInteger();
+        int threads = Math.min( getThreads(), work.size() );
+        Vector futures = new Vector();
+        for (int i=1; i<threads; i++)
+        {
+            futures.add( getWorkers().submit(new Worker(work, next, null)) );
+        }
+        IOException error = null;
+        try
+        {
+            new Worker(work, next, _zipFile).call();
+        }
+        catch (IOException ioe)
+        {
+            error = ioe;
+            //Tell the others to stop
+            next.set( work.size() );
+        }
+        for (int i=0; i<futures.size(); i++)
+        {
+            try
+            {
+                ( (Future)futures.get(i) ).get();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                if (error == null) error = new InterruptedIOException("Interrupted while extracting");
+            }
+            catch (ExecutionException ee)
+            {
+                if (error == null)
+                {
+                    Throwable cause = ee.getCause();
+                    error = (cause instanceof IOException ? (IOException)cause : new IOException("Could not extract: "+cause));
+                }
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * Returns the number of threads an extraction uses.
+     *
+     * @return int
+     */
+    public static int getThreads()
+    {
+        return Math.max( 1, SystemProperties.getInt("zip_extract_threads", Runtime.getRuntime().availableProcessors()) );
+    }
+
+    /**
+     * Returns the shared pool, creating it if needed.
+     *
+     * @return ThreadPoolExecutor
+     */
+    private static synchronized ThreadPoolExecutor getWorkers()
+    {
+        if (_workers == null)
+        {
+            int threads = getThreads();
+            final AtomicInteger count = new AtomicInteger();
+            _workers = new ThreadPoolExecutor
+            (
+                threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread( r, "ZipExtractor-" + count.incrementAndGet() );
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }
+            );
+            _workers.allowCoreThreadTimeOut(true);
+        }
+        return _workers;
+    }
+
+    /**
+     * Extracts files from the shared list until there are none left.
+     */
+    private class Worker implements Callable
+    {
+        private ArrayList _work;
+        private AtomicInteger _next;
+        private ZipFile _zip;
+
+        /**
+         * Creates a worker. If the zip file is null the worker opens its own.
+         */
+        Worker(ArrayList work, AtomicInteger next, ZipFile zip)
+        {
+            _work = work;
+            _next = next;
+            _zip = zip;
+        }
+
+        public Object call() throws IOException
+        {
+            ZipFile zip = (_zip != null ? _zip : new ZipFile( _zipFile.getName() ));
+            BufferPool pool = BufferPool.getDefault();
+            byte[] buffer = pool.acquire();
+            long total = 0L;
+            try
+            {
+                int index;
+                while ( (index=_next.getAndIncrement()) < _work.size() )
+                {
+                    Object[] item = (Object[])_work.get(index);
+                    ZipEntry entry = zip.getEntry( ((ZipEntry)item[0]).getName() );
+                    total += extract( zip, entry, new java.io.File(_root, (String)item[1]), buffer );
+                }
+            }
+            catch (IOException ioe)
+            {
+                _next.set( _work.size() );
+                throw ioe;
+            }
+            finally
+            {
+                pool.release(buffer);
+                pool.moved(total);
+                if (_zip == null) zip.close();
+            }
+            return null;
+        }
+
+        /**
+         * Extracts one file. If it cannot be extracted the partial file is deleted and the
+         * target is left as it was.
+         */
+        private long extract(ZipFile zip, ZipEntry entry, java.io.File f, byte[] buffer) throws IOException
+        {
+            long size = entry.getSize();
+            long written = 0L;
+            boolean done = false;
+            java.io.File partial = PartialFile.create(f, "unzip");
+            InputStream in = null;
+            try
+            {
+                in = zip.getInputStream(entry);
+                RandomAccessFile out = Preallocator.open(partial, size);
+                try
+                {
+                    int count;
+                    while ( (count=in.read(buffer)) != -1 )
+                    {
+                        written += count;
+                        if (size >= 0 && written > size) throw new IOException( entry.getName()+" is larger than the zip file says" );
+                        out.write(buffer, 0, count);
+                    }
+                    Preallocator.finish(out, written);
+                }
+                finally
+                {
+                    out.close();
+                }
+                _replaced.addAndGet( PartialFile.replace(partial, f) );
+                _extracted.addAndGet(written);
+                done = true;
+            }
+            finally
+            {
+                if (in != null) in.close();
+                if (!done) partial.delete();
+            }
+            return written;
+        }
+    }
+}
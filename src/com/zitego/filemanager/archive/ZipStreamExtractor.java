@@ -0,0 +1,73 @@
+package com.zitego.filemanager.archive;
+
+import java.io.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * This expands a zip archive as it is read from a stream, such as an upload, so the archive
+ * is never written to disk. Entries are read with ZipInputStream and written through an
+ * Expansion, which counts the bytes actually inflated against the space allowed and stops
+ * decompression bombs. The sizes in the archive are not trusted.<br><br>
+ *
+ * Reading the stream can only see the local headers, so a zip that was made to be read
+ * from its central directory (stored entries with data descriptors, for instance) cannot be
+ * expanded this way and must be saved and expanded with ZipExtractor instead.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ZipStreamExtractor implements Expander
+{
+    /**
+     * Usage: java ZipStreamExtractor &lt;directory&gt; [max bytes] &lt; zip<br>
+     * Expands the zip read from standard input to the directory.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Expansion expansion = new Expansion( new java.io.File(args[0]), "stdin", (args.length > 1 ? Long.parseLong(args[1]) : -1L) );
+        try
+        {
+            new ZipStreamExtractor().expand( new BufferedInputStream(System.in), expansion );
+        }
+        catch (IOException ioe)
+        {
+            expansion.abort();
+            throw ioe;
+        }
+        System.out.println( "Expanded " + expansion.getFiles().size() + " files and directories, " + expansion.getBytesWritten() + " bytes" );
+    }
+
+    /**
+     * Expands the zip archive in the stream. The stream is read to the end of the archive
+     * but not closed. If this fails the caller should abort the expansion. Files keep the
+     * modification times in the archive.
+     *
+     * @param in The archive.
+     * @param expansion Where to expand it to.
+     * @throws ExpansionLimitException if the space or ratio limit is passed.
+     * @throws IOException if the archive cannot be read or an error occurs writing.
+     */
+    public void expand(InputStream in, Expansion expansion) throws ExpansionLimitException, IOException
+    {
+        ZipInputStream zip = new ZipInputStream( expansion.wrap(in) );
+        ZipEntry entry;
+        while ( (entry=zip.getNextEntry()) != null )
+        {
+            if ( entry.isDirectory() ) expansion.createDirectory( entry.getName() );
+            else setLastModified( expansion.writeFile( entry.getName(), zip, entry.getSize() ), entry.getTime() );
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Sets the file's modification time if it is known.
+     *
+     * @param f The file.
+     * @param time The time or -1 if it is not known.
+     */
+    static void setLastModified(java.io.File f, long time)
+    {
+        if (time > 0) f.setLastModified(time);
+    }
+}
@@ -0,0 +1,634 @@
+package com.zitego.filemanager.archive;
+
+import com.zitego.filemanager.FileTypes;
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.ParallelDeflater;
+import java.io.*;
+import java.util.Calendar;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This writes a zip archive to a stream one entry at a time without temporary files. Only
+ * the central directory records are kept in memory, so the memory used does not depend on
+ * the size of the files. java.util.zip.ZipOutputStream is not used because the one in 1.6
+ * cannot write zip64 (archives or files over 4gb or more than 65535 entries), does not flag
+ * utf-8 names, and its exact layout changes between versions, which makes it impossible to
+ * know the length of the archive ahead of time.<br><br>
+ *
+ * Entries are either stored or deflated. A stored entry needs its crc in the header in front
+ * of the data, so the file is read once to get the crc and again to write it. A deflated
+ * entry is written with a data descriptor after it instead. When every entry is stored the
+ * length of the whole archive is known from the names and sizes alone (see getLength), so a
+ * Content-Length can be sent before the archive is written. If a file changes size or
+ * content while it is being written an IOException is thrown, since the archive would not
+ * match what was promised.<br><br>
+ *
+ * Zip64 records are written only where they are needed.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ZipWriter
+{
+    /** The largest value that fits in a 32 bit field. */
+    static final long MAX32 = 0xFFFFFFFFL;
+    /** The largest value that fits in a 16 bit field. */
+    static final int MAX16 = 0xFFFF;
+    /** Deflated files at least this big are given zip64 sizes in case they do not shrink. */
+    static final long ZIP64_DEFLATE_SIZE = 0xF0000000L;
+    /** The stored method. */
+    static final int STORED = 0;
+    /** The deflated method. */
+    static final int DEFLATED = 8;
+    /** The flag for a data descriptor. */
+    static final int FLAG_DESCRIPTOR = 8;
+    /** The flag for a utf-8 name. */
+    static final int FLAG_UTF8 = 2048;
+    /** The stream being written. */
+    private CountingOutputStream _out;
+    /** The deflate level. */
+    private int _level = Deflater.DEFAULT_COMPRESSION;
+    /** The central directory records. */
+    private Vector _records = new Vector();
+    /** Whether the archive has been finished. */
+    private boolean _finished = false;
+
+    /**
+     * Usage: java ZipWriter &lt;file types&gt; &lt;zip file&gt; &lt;file or directory&gt;...<br>
+     * Writes the files to a zip. Files of already compressed types are stored.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        FileTypes.load(args[0]);
+        Vector entries = new Vector();
+        for (int i=2; i<args.length; i++)
+        {
+            java.io.File f = new java.io.File(args[i]);
+            addAll( entries, f.getName(), f );
+        }
+        System.out.println( "Expected length: " + getLength(entries) );
+        OutputStream out = new BufferedOutputStream( new FileOutputStream(args[1]), 65536 );
+        ZipWriter zip = new ZipWriter(out);
+        for (int i=0; i<entries.size(); i++)
+        {
+            zip.write( (ArchiveEntry)entries.get(i) );
+        }
+        zip.close();
+        System.out.println( "Wrote " + zip.getBytesWritten() + " bytes" );
+    }
+
+    /**
+     * Adds the file, and everything in it if it is a directory, to the given entries.
+     *
+     * @param entries The entries.
+     * @param name The name of the file in the archive.
+     * @param f The file.
+     */
+    private static void addAll(Vector entries, String name, java.io.File f)
+    {
+        entries.add( new ArchiveEntry(name, f, FileTypes.getFileTypeByName(name, f.isDirectory()).isCompressed()) );
+        java.io.File[] children = f.listFiles();
+        for (int i=0; children != null && i<children.length; i++)
+        {
+            addAll( entries, name + "/" + children[i].getName(), children[i] );
+        }
+    }
+
+    /**
+     * Creates a new writer.
+     *
+     * @param out The stream to write to.
+     */
+    public ZipWriter(OutputStream out)
+    {
+        _out = new CountingOutputStream(out);
+    }
+
+    /**
+     * Sets the deflate level (0-9 or Deflater.DEFAULT_COMPRESSION).
+     *
+     * @param level The level.
+     */
+    public void setLevel(int level)
+    {
+        _level = level;
+    }
+
+    /**
+     * Returns the deflate level.
+     *
+     * @return int
+     */
+    public int getLevel()
+    {
+        return _level;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return long
+     */
+    public long getBytesWritten()
+    {
+        return _out.getCount();
+    }
+
+    /**
+     * Returns the exact length of an archive of the given entries if every entry is stored,
+     * or -1 if any of them are deflated.
+     *
+     * @param entries A Vector of ArchiveEntry objects.
+     * @return long
+     * @throws IOException if a name cannot be encoded.
+     */
+    public static long getLength(Vector entries) throws IOException
+    {
+        long offset = 0L;
+        long central = 0L;
+        int size = entries.size();
+        for (int i=0; i<size; i++)
+        {
+            ArchiveEntry entry = (ArchiveEntry)entries.get(i);
+            if ( !entry.isStored() ) return -1L;
+            int nameLength = entry.getName().getBytes("UTF-8").length;
+            long length = entry.getSize();
+            central += 46 + nameLength + getCentralExtraLength(length, length, offset);
+            offset += getLocalHeaderLength( nameLength, (length >= MAX32) ) + length;
+        }
+        return offset + central + getEndLength(size, offset, central);
+    }
+
+    /**
+     * Writes the given entry.
+     *
+     * @param entry The entry.
+     * @throws IOException if an error occurs writing the entry or the file changed.
+     * @throws IllegalStateException if the archive has been finished.
+     */
+    public void write(ArchiveEntry entry) throws IOException, IllegalStateException
+    {
+        if (_finished) throw new IllegalStateException("The archive has been finished");
+        if ( entry.isStored() ) writeStored(entry);
+        else writeDeflated(entry);
+    }
+
+    /**
+     * Writes an entry that is stored. The file is read once for its crc and then again to
+     * write it.
+     *
+     * @param entry The entry.
+     * @throws IOException if an error occurs writing the entry or the file changed.
+     */
+    private void writeStored(ArchiveEntry entry) throws IOException
+    {
+        long size = entry.getSize();
+        long crc = ( entry.isDirectory() || size == 0L ? 0L : copy(entry, size, null) );
+        Record record = new Record(entry, STORED, 0, _out.getCount(), size >= MAX32);
+        record.crc = crc;
+        record.size = size;
+        record.compressedSize = size;
+        writeLocalHeader(record);
+        if ( !entry.isDirectory() && size > 0L && copy(entry, size, _out) != crc )
+        {
+            throw new IOException( entry.getFile() + " changed while it was being archived" );
+        }
+        _records.add(record);
+    }
+
+    /**
+     * Writes an entry that is deflated followed by its data descriptor.
+     *
+     * @param entry The entry.
+     * @throws IOException if an error occurs writing the entry.
+     */
+    private void writeDeflated(ArchiveEntry entry) throws IOException
+    {
+        Record record = new Record( entry, DEFLATED, FLAG_DESCRIPTOR, _out.getCount(), entry.getSize() >= ZIP64_DEFLATE_SIZE );
+        writeLocalHeader(record);
+        long start = _out.getCount();
+
+        CRC32 crc = new CRC32();
+        long size = 0L;
+        InputStream in = new FileInputStream( entry.getFile() );
+        try
+        {
+            size = deflate(entry, in, _out, crc);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        record.crc = crc.getValue();
+        record.size = size;
+        record.compressedSize = _out.getCount() - start;
+        if ( !record.zip64Local && (record.size >= MAX32 || record.compressedSize >= MAX32) )
+        {
+            throw new IOException( entry.getFile() + " grew past 4gb while it was being archived" );
+        }
+        writeDescriptor(record);
+        _records.add(record);
+    }
+
+    /**
+     * Deflates the file of the given entry as raw deflate data and returns the number of
+     * bytes read. This deflates on the calling thread.
+     *
+     * @param entry The entry.
+     * @param in The file's input stream.
+     * @param out The stream to write the deflated data to.
+     * @param crc The crc to update with what was read.
+     * @return long
+     * @throws IOException if an error occurs reading or writing.
+     */
+    protected long deflate(ArchiveEntry entry, InputStream in, OutputStream out, CRC32 crc) throws IOException
+    {
+        return ParallelDeflater.deflateSerial(in, out, _level, crc);
+    }
+
+    /**
+     * Writes the already deflated data of an entry followed by its data descriptor. This is
+     * for writers that deflate entries somewhere else, such as on other threads.
+     *
+     * @param entry The entry.
+     * @param crc The crc of the uncompressed data.
+     * @param size The size of the uncompressed data.
+     * @param data The raw deflated data.
+     * @param length The number of bytes of data.
+     * @throws IOException if an error occurs writing the entry.
+     * @throws IllegalStateException if the archive has been finished.
+     */
+    protected void writeDeflated(ArchiveEntry entry, long crc, long size, byte[] data, int length)
+    throws IOException, IllegalStateException
+    {
+        if (_finished) throw new IllegalStateException("The archive has been finished");
+        Record record = new Record( entry, DEFLATED, FLAG_DESCRIPTOR, _out.getCount(), size >= ZIP64_DEFLATE_SIZE );
+        writeLocalHeader(record);
+        _out.write(data, 0, length);
+        record.crc = crc;
+        record.size = size;
+        record.compressedSize = length;
+        writeDescriptor(record);
+        _records.add(record);
+    }
+
+    /**
+     * Writes the central directory and the end of the archive. The stream is flushed but
+     * not closed.
+     *
+     * @throws IOException if an error occurs writing.
+     */
+    public void finish() throws IOException
+    {
+        if (_finished) return;
+        _finished = true;
+        long start = _out.getCount();
+        int size = _records.size();
+        for (int i=0; i<size; i++)
+        {
+            writeCentralHeader( (Record)_records.get(i) );
+        }
+        long centralSize = _out.getCount() - start;
+
+        HeaderBuffer buffer = new HeaderBuffer();
+        if ( getEndLength(size, start, centralSize) > 22 )
+        {
+            //Zip64 end of central directory record and locator
+            long end64 = _out.getCount();
+            buffer.writeInt(0x06064b50L);
+            buffer.writeLong(44L);
+            buffer.writeShort( (3 << 8) | 45 );
+            buffer.writeShort(45);
+            buffer.writeInt(0L);
+            buffer.writeInt(0L);
+            buffer.writeLong(size);
+            buffer.writeLong(size);
+            buffer.writeLong(centralSize);
+            buffer.writeLong(start);
+            buffer.writeInt(0x07064b50L);
+            buffer.writeInt(0L);
+            buffer.writeLong(end64);
+            buffer.writeInt(1L);
+        }
+        buffer.writeInt(0x06054b50L);
+        buffer.writeShort(0);
+        buffer.writeShort(0);
+        buffer.writeShort( Math.min(size, MAX16) );
+        buffer.writeShort( Math.min(size, MAX16) );
+        buffer.writeInt( Math.min(centralSize, MAX32) );
+        buffer.writeInt( Math.min(start, MAX32) );
+        buffer.writeShort(0);
+        buffer.writeTo(_out);
+        _out.flush();
+    }
+
+    /**
+     * Finishes the archive and closes the stream.
+     *
+     * @throws IOException if an error occurs writing.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            _out.close();
+        }
+    }
+
+    /**
+     * Copies count bytes of the entry's file to the given stream and returns the crc of
+     * them. If the stream is null the file is only read.
+     *
+     * @param entry The entry.
+     * @param count The number of bytes.
+     * @param out The stream or null.
+     * @return long
+     * @throws IOException if an error occurs or the file is shorter than count.
+     */
+    private long copy(ArchiveEntry entry, long count, OutputStream out) throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        CRC32 crc = new CRC32();
+        long remaining = count;
+        InputStream in = new FileInputStream( entry.getFile() );
+        try
+        {
+            while (remaining > 0)
+            {
+                int read = in.read( buffer, 0, (int)Math.min(buffer.length, remaining) );
+                if (read == -1) throw new IOException( entry.getFile() + " changed while it was being archived" );
+                crc.update(buffer, 0, read);
+                if (out != null) out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            in.close();
+            pool.release(buffer);
+            if (out != null) pool.moved(count-remaining);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the local file header of the given record.
+     *
+     * @param record The record.
+     * @throws IOException if an error occurs writing.
+     */
+    private void writeLocalHeader(Record record) throws IOException
+    {
+        boolean descriptor = ( (record.flags & FLAG_DESCRIPTOR) != 0 );
+        HeaderBuffer buffer = new HeaderBuffer();
+        buffer.writeInt(0x04034b50L);
+        buffer.writeShort(record.zip64Local ? 45 : 20);
+        buffer.writeShort(record.flags);
+        buffer.writeShort(record.method);
+        buffer.writeInt(record.dosTime);
+        buffer.writeInt(descriptor ? 0L : record.crc);
+        if (record.zip64Local)
+        {
+            buffer.writeInt(MAX32);
+            buffer.writeInt(MAX32);
+        }
+        else
+        {
+            buffer.writeInt(descriptor ? 0L : record.compressedSize);
+            buffer.writeInt(descriptor ? 0L : record.size);
+        }
+        buffer.writeShort(record.name.length);
+        buffer.writeShort(record.zip64Local ? 20 : 0);
+        buffer.write(record.name);
+        if (record.zip64Local)
+        {
+            buffer.writeShort(1);
+            buffer.writeShort(16);
+            buffer.writeLong(descriptor ? 0L : record.size);
+            buffer.writeLong(descriptor ? 0L : record.compressedSize);
+        }
+        buffer.writeTo(_out);
+    }
+
+    /**
+     * Writes the data descriptor of the given record.
+     *
+     * @param record The record.
+     * @throws IOException if an error occurs writing.
+     */
+    private void writeDescriptor(Record record) throws IOException
+    {
+        HeaderBuffer buffer = new HeaderBuffer();
+        buffer.writeInt(0x08074b50L);
+        buffer.writeInt(record.crc);
+        if (record.zip64Local)
+        {
+            buffer.writeLong(record.compressedSize);
+            buffer.writeLong(record.size);
+        }
+        else
+        {
+            buffer.writeInt(record.compressedSize);
+            buffer.writeInt(record.size);
+        }
+        buffer.writeTo(_out);
+    }
+
+    /**
+     * Writes the central directory header of the given record.
+     *
+     * @param record The record.
+     * @throws IOException if an error occurs writing.
+     */
+    private void writeCentralHeader(Record record) throws IOException
+    {
+        int extra = getCentralExtraLength(record.size, record.compressedSize, record.offset);
+        HeaderBuffer buffer = new HeaderBuffer();
+        buffer.writeInt(0x02014b50L);
+        buffer.writeShort( (3 << 8) | 45 );
+        buffer.writeShort(extra > 0 || record.zip64Local ? 45 : 20);
+        buffer.writeShort(record.flags);
+        buffer.writeShort(record.method);
+        buffer.writeInt(record.dosTime);
+        buffer.writeInt(record.crc);
+        buffer.writeInt( Math.min(record.compressedSize, MAX32) );
+        buffer.writeInt( Math.min(record.size, MAX32) );
+        buffer.writeShort(record.name.length);
+        buffer.writeShort(extra);
+        buffer.writeShort(0);
+        buffer.writeShort(0);
+        buffer.writeShort(0);
+        //Unix permissions in the high word, the ms-dos directory bit in the low word
+        buffer.writeInt(record.directory ? (040755L << 16) | 0x10 : (0100644L << 16));
+        buffer.writeInt( Math.min(record.offset, MAX32) );
+        buffer.write(record.name);
+        if (extra > 0)
+        {
+            buffer.writeShort(1);
+            buffer.writeShort(extra-4);
+            if (record.size >= MAX32) buffer.writeLong(record.size);
+            if (record.compressedSize >= MAX32) buffer.writeLong(record.compressedSize);
+            if (record.offset >= MAX32) buffer.writeLong(record.offset);
+        }
+        buffer.writeTo(_out);
+    }
+
+    /**
+     * Returns the length of a local file header.
+     *
+     * @param nameLength The length of the encoded name.
+     * @param zip64 Whether the header has zip64 sizes.
+     * @return int
+     */
+    static int getLocalHeaderLength(int nameLength, boolean zip64)
+    {
+        return 30 + nameLength + (zip64 ? 20 : 0);
+    }
+
+    /**
+     * Returns the length of the zip64 extra field of a central directory header, or zero if
+     * it does not need one.
+     *
+     * @param size The uncompressed size.
+     * @param compressedSize The compressed size.
+     * @param offset The offset of the local header.
+     * @return int
+     */
+    static int getCentralExtraLength(long size, long compressedSize, long offset)
+    {
+        int fields = (size >= MAX32 ? 1 : 0) + (compressedSize >= MAX32 ? 1 : 0) + (offset >= MAX32 ? 1 : 0);
+        return (fields > 0 ? 4 + 8*fields : 0);
+    }
+
+    /**
+     * Returns the length of the end of the archive after the central directory.
+     *
+     * @param entries The number of entries.
+     * @param centralStart The offset of the central directory.
+     * @param centralSize The length of the central directory.
+     * @return int
+     */
+    static int getEndLength(int entries, long centralStart, long centralSize)
+    {
+        boolean zip64 = ( entries >= MAX16 || centralStart >= MAX32 || centralSize >= MAX32 );
+        return (zip64 ? 56 + 20 + 22 : 22);
+    }
+
+    /**
+     * Returns the given time in ms-dos format with the date in the high word.
+     *
+     * @param time The time in milliseconds.
+     * @return long
+     */
+    static long getDosTime(long time)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) return (1L << 21) | (1L << 16);
+        return ( (long)(year-1980) << 25 ) | ( (long)(cal.get(Calendar.MONTH)+1) << 21 ) |
+               ( (long)cal.get(Calendar.DAY_OF_MONTH) << 16 ) | ( (long)cal.get(Calendar.HOUR_OF_DAY) << 11 ) |
+               ( (long)cal.get(Calendar.MINUTE) << 5 ) | ( (long)cal.get(Calendar.SECOND) >> 1 );
+    }
+
+    /**
+     * The central directory information about one entry.
+     */
+    private static class Record
+    {
+        byte[] name;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        boolean directory;
+        boolean zip64Local;
+
+        Record(ArchiveEntry entry, int method, int flags, long offset, boolean zip64Local) throws IOException
+        {
+            String entryName = entry.getName();
+            this.name = entryName.getBytes("UTF-8");
+            this.flags = flags | (name.length != entryName.length() ? FLAG_UTF8 : 0);
+            this.method = method;
+            this.dosTime = getDosTime( entry.getLastModified() );
+            this.offset = offset;
+            this.directory = entry.isDirectory();
+            this.zip64Local = zip64Local;
+        }
+    }
+
+    /**
+     * A buffer for writing little endian headers.
+     */
+    private static class HeaderBuffer extends ByteArrayOutputStream
+    {
+        HeaderBuffer()
+        {
+            super(128);
+        }
+
+        void writeShort(int v)
+        {
+            write(v & 0xff);
+            write( (v >>> 8) & 0xff );
+        }
+
+        void writeInt(long v)
+        {
+            writeShort( (int)(v & 0xffff) );
+            writeShort( (int)((v >>> 16) & 0xffff) );
+        }
+
+        void writeLong(long v)
+        {
+            writeInt(v & MAX32);
+            writeInt(v >>> 32);
+        }
+
+        public void write(byte[] b)
+        {
+            write(b, 0, b.length);
+        }
+    }
+
+    /**
+     * A stream that counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long _count = 0L;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        long getCount()
+        {
+            return _count;
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            _count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            _count += len;
+        }
+    }
+}
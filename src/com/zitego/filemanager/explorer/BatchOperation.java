@@ -0,0 +1,67 @@
+package com.zitego.filemanager.explorer;
+
+import java.util.Vector;
+import com.zitego.util.Constant;
+
+/**
+ * This represents an operation that can be run against a batch of file system
+ * objects at once through Explorer.execute. There are currently three operations.
+ * They are delete, move, and copy. Move and copy require a destination directory.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Explorer#execute(BatchOperation, String[], String)
+ */
+public class BatchOperation extends Constant
+{
+    public static final BatchOperation DELETE = new BatchOperation("Delete");
+    public static final BatchOperation MOVE = new BatchOperation("Move");
+    public static final BatchOperation COPY = new BatchOperation("Copy");
+    /** Gets incremented as operations are initialized. */
+    private static int _nextId = 0;
+    /** To keep track of each operation. */
+    private static Vector _operations;
+
+    /**
+     * Creates a new BatchOperation given the description.
+     *
+     * @param String The description.
+     */
+    private BatchOperation(String desc)
+    {
+        super(_nextId++, desc);
+        if (_operations == null) _operations = new Vector();
+        _operations.add(this);
+    }
+
+    /**
+     * Returns a BatchOperation based on the id passed in. If the id does not match the id of
+     * a constant, then we return null. If there are two constants with the same id, then
+     * the first one is returned.
+     *
+     * @param int The constant id.
+     * @return BatchOperation
+     */
+    public static BatchOperation evaluate(int id)
+    {
+        return (BatchOperation)Constant.evaluate(id, _operations);
+    }
+
+    /**
+     * Returns a BatchOperation based on the description passed in. If the description does not
+     * match the description of a constant, then we return null. If there are two constants
+     * with the same description, then the first one is returned.
+     *
+     * @param String The description.
+     * @return BatchOperation
+     */
+    public static BatchOperation evaluate(String name)
+    {
+        return (BatchOperation)Constant.evaluate(name, _operations);
+    }
+
+    public Vector getTypes()
+    {
+        return _operations;
+    }
+}
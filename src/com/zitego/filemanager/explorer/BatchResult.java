@@ -0,0 +1,99 @@
+package com.zitego.filemanager.explorer;
+
+import com.zitego.filemanager.FileSystemObject;
+
+/**
+ * This holds the outcome of a single item in a batch operation. Each root path
+ * passed into Explorer.execute gets one result in the same order. A result is
+ * successful if no error was recorded for it. The object is the resulting file
+ * system object (the moved object or the new copy). It is null for deletes and
+ * for items that were handled as part of a selected parent directory.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Explorer#execute(BatchOperation, String[], String)
+ */
+public class BatchResult
+{
+    /** The root path that was requested. */
+    protected String _rootPath;
+    /** The resulting file system object. */
+    protected FileSystemObject _object;
+    /** The error that occurred if any. */
+    protected Exception _error;
+
+    /**
+     * Creates a new result for the given root path.
+     *
+     * @param rootPath The requested root path.
+     */
+    BatchResult(String rootPath)
+    {
+        _rootPath = rootPath;
+    }
+
+    /**
+     * Returns the root path that was requested.
+     *
+     * @return String
+     */
+    public String getRootPath()
+    {
+        return _rootPath;
+    }
+
+    /**
+     * Sets the resulting object.
+     *
+     * @param obj The object.
+     */
+    void setObject(FileSystemObject obj)
+    {
+        _object = obj;
+    }
+
+    /**
+     * Returns the resulting object.
+     *
+     * @return FileSystemObject
+     */
+    public FileSystemObject getObject()
+    {
+        return _object;
+    }
+
+    /**
+     * Sets the error for this item.
+     *
+     * @param e The error.
+     */
+    void setError(Exception e)
+    {
+        _error = e;
+    }
+
+    /**
+     * Returns the error for this item or null if it was successful.
+     *
+     * @return Exception
+     */
+    public Exception getError()
+    {
+        return _error;
+    }
+
+    /**
+     * Returns whether this item was successful.
+     *
+     * @return boolean
+     */
+    public boolean isSuccessful()
+    {
+        return (_error == null);
+    }
+
+    public String toString()
+    {
+        return _rootPath + (_error == null ? " ok" : " failed: " + _error.getMessage());
+    }
+}
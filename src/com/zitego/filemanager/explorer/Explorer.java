@@ -1,14 +1,23 @@
 package com.zitego.filemanager.explorer;
 
+import com.zitego.filemanager.util.FileFilter;
 import com.zitego.filemanager.util.FileSizeFormat;
+import com.zitego.filemanager.CreationDateFile;
 import com.zitego.filemanager.Directory;
+import com.zitego.filemanager.File;
 import com.zitego.filemanager.FileListing;
 import com.zitego.filemanager.FileSize;
 import com.zitego.filemanager.FileSystemObject;
+import com.zitego.filemanager.FileSystemObjectFactory;
+import com.zitego.filemanager.Quota;
+import com.zitego.filemanager.Trash;
+import com.zitego.filemanager.UploadSweeper;
 import com.zitego.filemanager.search.Search;
 import com.zitego.filemanager.search.SearchResults;
 import java.io.IOException;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.StringTokenizer;
 import java.util.Vector;
 
 /**
@@ -19,7 +28,11 @@ import java.util.Vector;
  *
  * The FileListing is kept separate from the DirectoryTree so that it is cached. Calls to
  * Directory.getFileListing will not need to be made over and over. If a file is added to
- * the displayed directory, refresh() will need to be called to rebuild it.
+ * the displayed directory, refresh() will need to be called to rebuild it.<br><br>
+ *
+ * Operations on many objects at once (such as deleting or moving a multiple selection)
+ * should go through execute(BatchOperation, String[], String) so that the creation date
+ * file, the free disk space, and the cached listings are only updated once.
  *
  * @author John Glorioso
  * @version $Id: Explorer.java,v 1.1.1.1 2008/02/20 15:05:39 jglorioso Exp $
@@ -42,8 +55,8 @@ public class Explorer extends Directory implements ExplorerHolder
     protected ExplorerHistory _history = new ExplorerHistory();
     /** The amount of total disk space. */
     protected FileSize _totalDiskSpace;
-    /** The amount of free disk space. */
-    protected FileSize _freeDiskSpace;
+    /** The user's disk space or null if there is no limit. */
+    protected Quota _quota;
     /** The view type. Default is ViewType.LIST. */
     protected ViewType _viewType = ViewType.LIST;
     /** The frame target. _top is default. */
@@ -72,6 +85,9 @@ public class Explorer extends Directory implements ExplorerHolder
     /**
      * Creates a new explorer object with a user's home directory. This is created with show
      * directory tree to true and as such, will automatically create one upon construction.
+     * The home directory is registered to have partial files left behind by lost uploads
+     * swept in the background (see UploadSweeper), and the user's trash is registered to be
+     * purged (see Trash.register).
      *
      * @param homeDir The absolute path of the home directory.
      * @param totalSpace The total disk space allowed in bytes.
@@ -80,9 +96,11 @@ public class Explorer extends Directory implements ExplorerHolder
     public Explorer(String homeDir, long totalSpace) throws IOException
     {
         super(homeDir);
+        UploadSweeper.getInstance().register( getAbsolutePath() );
+        getTrash().register();
         selectDirectory("/", true);
         _totalDiskSpace = new FileSize(totalSpace);
-        getFreeDiskSpace();
+        _quota = Quota.getInstance( getAbsolutePath(), totalSpace );
     }
 
     /**
@@ -95,6 +113,8 @@ public class Explorer extends Directory implements ExplorerHolder
     public Explorer(String homeDir) throws IOException
     {
         super(homeDir);
+        UploadSweeper.getInstance().register( getAbsolutePath() );
+        getTrash().register();
         selectDirectory("/", false);
     }
 
@@ -109,20 +129,25 @@ public class Explorer extends Directory implements ExplorerHolder
     }
 
     /**
-     * Returns the free disk space.
+     * Returns the free disk space or null if there is no limit. This is the space that is
+     * neither used nor reserved by an operation in progress (see Quota).
      *
      * @return FileSize
      */
     public FileSize getFreeDiskSpace()
     {
-        if (_freeDiskSpace == null && _totalDiskSpace != null)
-        {
-            long spaceUsed = getSpaceUsed( getInternalFile() );
-            //Have to loop through all files and get the total space
+        return (_quota != null ? new FileSize( _quota.getFree() ) : null);
+    }
 
-            _freeDiskSpace = new FileSize(_totalDiskSpace.getBytes()-spaceUsed);
-        }
-        return _freeDiskSpace;
+    /**
+     * Returns the user's disk space or null if there is no limit. It is shared by every
+     * explorer for the same home directory.
+     *
+     * @return Quota
+     */
+    public Quota getQuota()
+    {
+        return _quota;
     }
 
     /**
@@ -130,35 +155,33 @@ public class Explorer extends Directory implements ExplorerHolder
      */
     public void recalculateFreeDiskSpace()
     {
-        _freeDiskSpace = null;
+        if (_quota != null) _quota.recount();
     }
 
     /**
-     * Returns the total disk space (in bytes) used in the given java.io.File.
-     * If the file is null, it returns 0. If the file is a directory,
-     * it recurses through it till it reaches an end.
+     * Returns the disk space (in bytes) that deleting the given java.io.File would give back
+     * (see Quota.getSpaceFreed).
      *
-     * @param file The file to get used space.
+     * @param file The file.
      * @return long
      */
-    private long getSpaceUsed(java.io.File file)
+    private long getSpaceFreed(java.io.File file)
     {
-        if (file == null)
-        {
-            return 0L;
-        }
-        long ret = file.length();
-        if ( file.isDirectory() )
-        {
+        return Quota.getSpaceFreed( getInternalFile(), file );
+    }
 
-            java.io.File[] files = file.listFiles();
-            if (files == null) files = new java.io.File[0];
-            for (int i=0; i<files.length; i++)
-            {
-                ret += getSpaceUsed(files[i]);
-            }
-        }
-        return ret;
+    /**
+     * Saves the given contents to the file (see FileSystemObject.writeContents) and charges
+     * the free disk space for what the file grew by.
+     *
+     * @param file The file.
+     * @param contents The contents.
+     * @throws IOException if an error occurs writing the file.
+     */
+    public void writeContents(FileSystemObject file, String contents) throws IOException
+    {
+        long grown = file.writeContents(contents);
+        if (_quota != null) _quota.adjust(grown);
     }
 
     /**
@@ -433,4 +456,284 @@ public class Explorer extends Directory implements ExplorerHolder
     {
         return ( path != null && _hiddenObjects.contains(path) );
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the user's trash.
+     *
+     * @return Trash
+     */
+    public Trash getTrash()
+    {
+        return new Trash( getAbsolutePath() );
+    }
+
+    /**
+     * Restores the object with the given trash id to where it was deleted from. The
+     * free disk space is charged for what deleting the object again would free, so a file
+     * that is still held by a hard link outside of the trash was never credited and is not
+     * charged again. The listing of the directory it is restored to is refreshed.
+     *
+     * @param id The trash id.
+     * @return FileSystemObject
+     * @throws IOException if the object could not be restored.
+     */
+    public FileSystemObject restore(String id) throws IOException
+    {
+        FileSystemObject obj = getTrash().restore(id);
+        if (_quota != null) _quota.adjust( getSpaceFreed(new java.io.File(obj.getAbsolutePath())) );
+        Directory dir = getDirectory( obj.getRootPathDirectory() );
+        if (dir != null) dir.refresh();
+        reselectDirectory();
+        return obj;
+    }
+
+    /**
+     * Returns the file system object at the given root path by going directly to the file
+     * system instead of searching through the directory tree. The path must begin with a
+     * forward slash, cannot contain empty, "." or ".." segments (so it cannot leave the home
+     * directory), and cannot be or be inside of a hidden object. Files reserved by the file
+     * manager (see FileFilter.isReserved) are never returned. If the path is invalid or the
+     * object does not exist, null is returned.
+     *
+     * @param rootPath The root path.
+     * @return FileSystemObject
+     * @throws IOException if an error occurs creating the object.
+     */
+    public FileSystemObject resolve(String rootPath) throws IOException
+    {
+        if ( rootPath == null || rootPath.indexOf("/") != 0 ) return null;
+        if ( "/".equals(rootPath) ) return this;
+        if ( rootPath.endsWith("/") ) rootPath = rootPath.substring(0, rootPath.length()-1);
+        if ( !isValidRootPath(rootPath) ) return null;
+
+        java.io.File f = new java.io.File( getAbsolutePath() + rootPath );
+        if ( !f.exists() ) return null;
+        return FileSystemObjectFactory.createObject( f.getPath(), getRootDirectory() );
+    }
+
+    /**
+     * Returns the file at the given root path the same way as resolve(String), but only if it
+     * is a regular file. A root path ending in a slash is never a file. This checks the file
+     * system once, so it is what should be used to open a single file for viewing.
+     *
+     * @param rootPath The root path.
+     * @return File
+     */
+    public File resolveFile(String rootPath)
+    {
+        if ( rootPath == null || rootPath.indexOf("/") != 0 || rootPath.endsWith("/") ) return null;
+        if ( !isValidRootPath(rootPath) ) return null;
+        return FileSystemObjectFactory.createFile( getAbsolutePath() + rootPath, getRootDirectory() );
+    }
+
+    /**
+     * Returns whether the given root path can be resolved. It must not have a trailing slash,
+     * cannot contain empty, "." or ".." segments, and cannot name a reserved file or be or be
+     * inside of a hidden object.
+     *
+     * @param rootPath The root path.
+     * @return boolean
+     */
+    private boolean isValidRootPath(String rootPath)
+    {
+        StringTokenizer st = new StringTokenizer(rootPath, "/", true);
+        StringBuffer path = new StringBuffer();
+        String last = null;
+        while ( st.hasMoreTokens() )
+        {
+            String token = st.nextToken();
+            if ( "/".equals(token) )
+            {
+                //Two slashes in a row means an empty segment
+                if ( "/".equals(last) ) return false;
+            }
+            else
+            {
+                if ( ".".equals(token) || "..".equals(token) ) return false;
+                //The file manager's own files are only in the home directory
+                if ( FileFilter.isReserved(token, path.length() == 0) ) return false;
+                path.append("/").append(token);
+                if ( isHidden(path.toString()) ) return false;
+            }
+            last = token;
+        }
+        return true;
+    }
+
+    /**
+     * <p>Runs the given operation against all of the given root paths at once and returns a
+     * Vector of BatchResult objects in the same order as the paths. Move and copy require the
+     * root path of the destination directory. Delete ignores it.</p>
+     * <p>The work is planned first. Every path is resolved directly (see resolve(String)),
+     * paths that do not exist or are invalid are failed, a path selected more than once is
+     * done the first time and failed after that, and paths that are inside of another
+     * selected directory are handled as part of that directory. The operations are then run
+     * with the creation date file held in memory so that it is written once at the end. The
+     * free disk space is adjusted by the bytes freed or used rather than being recounted, and
+     * each affected directory's cached listing is refreshed once.</p>
+     * <p>A failure on one item is recorded in its result and does not stop the others.</p>
+     *
+     * @param op The operation.
+     * @param rootPaths The root paths to operate on.
+     * @param toRootPath The root path of the destination directory for move and copy.
+     * @return Vector
+     * @throws IllegalArgumentException if the operation is null or the destination is invalid.
+     * @throws IOException if an error occurs writing the creation date file.
+     */
+    public Vector execute(BatchOperation op, String[] rootPaths, String toRootPath) throws IOException
+    {
+        if (op == null) throw new IllegalArgumentException("batch operation cannot be null");
+        if (rootPaths == null) rootPaths = new String[0];
+
+        Directory to = null;
+        if (op != BatchOperation.DELETE)
+        {
+            FileSystemObject dest = resolve(toRootPath);
+            if ( !(dest instanceof Directory) )
+            {
+                throw new IllegalArgumentException("Destination directory "+toRootPath+" does not exist");
+            }
+            to = (Directory)dest;
+        }
+
+        //Plan the work. Resolve everything up front and weed out what cannot be done
+        Vector ret = new Vector(rootPaths.length);
+        Hashtable planned = new Hashtable();
+        for (int i=0; i<rootPaths.length; i++)
+        {
+            BatchResult result = new BatchResult(rootPaths[i]);
+            ret.add(result);
+            FileSystemObject obj = resolve(rootPaths[i]);
+            if (obj == null)
+            {
+                result.setError( new IOException(rootPaths[i]+" does not exist") );
+            }
+            else if ( obj == this || "/".equals(obj.getRootPath()) )
+            {
+                result.setError( new IOException("Cannot "+op.getDescription().toLowerCase()+" the home directory") );
+            }
+            else if ( to != null && obj instanceof Directory && isSameOrInside(to.getRootPath(), obj.getRootPath()) )
+            {
+                result.setError( new IOException("Cannot "+op.getDescription().toLowerCase()+" "+obj.getRootPath()+" into itself") );
+            }
+            else if ( planned.get(obj.getRootPath()) != null )
+            {
+                //Selected twice, the first one does the work
+                result.setError( new IOException(obj.getRootPath()+" was selected more than once") );
+            }
+            else
+            {
+                result.setObject(obj);
+                planned.put(obj.getRootPath(), result);
+            }
+        }
+
+        //Anything inside of another selected directory goes along with that directory
+        Vector work = new Vector( planned.size() );
+        int size = ret.size();
+        for (int i=0; i<size; i++)
+        {
+            BatchResult result = (BatchResult)ret.get(i);
+            if (result.getObject() == null) continue;
+            String parent = result.getObject().getRootPath();
+            int index = -1;
+            boolean covered = false;
+            while ( !covered && (index=parent.lastIndexOf("/")) > 0 )
+            {
+                parent = parent.substring(0, index);
+                covered = (planned.get(parent) != null);
+            }
+            if (covered) result.setObject(null);
+            else work.add(result);
+        }
+
+        //Run it
+        long freed = 0L;
+        Hashtable touched = new Hashtable();
+        if (to != null) touched.put(to.getRootPath(), "1");
+        CreationDateFile.beginBatch();
+        try
+        {
+            size = work.size();
+            for (int i=0; i<size; i++)
+            {
+                BatchResult result = (BatchResult)work.get(i);
+                FileSystemObject obj = result.getObject();
+                touched.put(obj.getRootPathDirectory(), "1");
+                try
+                {
+                    if (op == BatchOperation.DELETE)
+                    {
+                        //The delete gives its space back to the quota itself
+                        obj.delete();
+                        result.setObject(null);
+                    }
+                    else if (op == BatchOperation.MOVE)
+                    {
+                        obj.moveTo(to);
+                    }
+                    else
+                    {
+                        //Measured before and after so that files the copy replaced are not charged twice
+                        java.io.File target = new java.io.File( to.getAbsolutePath(), obj.getName() );
+                        long before = ( _quota != null ? getSpaceFreed(target) : 0L );
+                        try
+                        {
+                            result.setObject( obj.copyTo(to) );
+                        }
+                        finally
+                        {
+                            if (_quota != null) freed -= getSpaceFreed(target) - before;
+                        }
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    result.setError(ioe);
+                }
+            }
+        }
+        finally
+        {
+            CreationDateFile.commitBatch();
+        }
+
+        //One update to the free space and the listings
+        if (_quota != null) _quota.adjust(-freed);
+        for (Enumeration e=touched.keys(); e.hasMoreElements();)
+        {
+            Directory dir = getDirectory( (String)e.nextElement() );
+            if (dir != null) dir.refresh();
+        }
+        reselectDirectory();
+
+        return ret;
+    }
+
+    /**
+     * Selects the current directory again so that the file listing is rebuilt. If the
+     * current directory no longer exists, then the home directory is selected.
+     *
+     * @throws IOException if an error occurs selecting the directory.
+     */
+    private void reselectDirectory() throws IOException
+    {
+        Directory current = ( _fileListing != null ? _fileListing.getParentDirectory() : this );
+        if (resolve(current.getRootPath()) == null) current = this;
+        selectDirectory(current.getRootPath(), false);
+    }
+
+    /**
+     * Returns whether the given root path is the same as or inside of the given directory
+     * root path.
+     *
+     * @param rootPath The root path to check.
+     * @param dirPath The directory root path.
+     * @return boolean
+     */
+    private boolean isSameOrInside(String rootPath, String dirPath)
+    {
+        if ( rootPath.equals(dirPath) || "/".equals(dirPath) ) return true;
+        return rootPath.startsWith(dirPath+"/");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,135 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * This is where transfers get the Throttle that limits them. There can be a global limit
+ * that all transfers share, a limit per user shared by all of that user's transfers, and a
+ * limit per session. Each is a rate in bytes per second and zero means unlimited. When no
+ * limits are set getThrottle returns null and callers should send the bytes the way they
+ * always have, so an unlimited server pays nothing.<br><br>
+ *
+ * The limits are read from the System properties bandwidth_global, bandwidth_user, and
+ * bandwidth_session, or can be set with setLimits. Buckets for users and sessions that have
+ * not been used for ten minutes are dropped.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class Bandwidth
+{
+    /** How long an idle bucket is kept in milliseconds. */
+    private static final long IDLE = 600000L;
+    /** The global rate. */
+    private static long _globalRate = SystemProperties.getLong("bandwidth_global", 0L);
+    /** The rate per user. */
+    private static long _userRate = SystemProperties.getLong("bandwidth_user", 0L);
+    /** The rate per session. */
+    private static long _sessionRate = SystemProperties.getLong("bandwidth_session", 0L);
+    /** The global bucket. */
+    private static TokenBucket _global = (_globalRate > 0 ? new TokenBucket(_globalRate) : null);
+    /** The user buckets keyed by user. */
+    private static HashMap _users = new HashMap();
+    /** The session buckets keyed by session id. */
+    private static HashMap _sessions = new HashMap();
+    /** When the idle buckets were last dropped. */
+    private static long _lastPrune = System.currentTimeMillis();
+
+    private Bandwidth() { }
+
+    /**
+     * Sets the limits in bytes per second. Zero or less is unlimited. Existing user and
+     * session buckets are dropped.
+     *
+     * @param global The global limit.
+     * @param user The limit per user.
+     * @param session The limit per session.
+     */
+    public static synchronized void setLimits(long global, long user, long session)
+    {
+        _globalRate = global;
+        _userRate = user;
+        _sessionRate = session;
+        _global = (_globalRate > 0 ? new TokenBucket(_globalRate) : null);
+        _users.clear();
+        _sessions.clear();
+    }
+
+    /**
+     * Returns whether any limit is set.
+     *
+     * @return boolean
+     */
+    public static boolean isLimited()
+    {
+        return (_globalRate > 0 || _userRate > 0 || _sessionRate > 0);
+    }
+
+    /**
+     * Returns the throttle for a transfer by the given user in the given session, or null if
+     * the transfer is not limited. Either key may be null, in which case that limit does not
+     * apply.
+     *
+     * @param user A key for the user, such as the home directory.
+     * @param session The session id.
+     * @return Throttle
+     */
+    public static synchronized Throttle getThrottle(String user, String session)
+    {
+        if ( !isLimited() ) return null;
+        prune();
+
+        Vector buckets = new Vector(3);
+        if (_global != null) buckets.add(_global);
+        if (_userRate > 0 && user != null) buckets.add( getBucket(_users, user, _userRate) );
+        if (_sessionRate > 0 && session != null) buckets.add( getBucket(_sessions, session, _sessionRate) );
+        if (buckets.size() == 0) return null;
+
+        TokenBucket[] ret = new TokenBucket[buckets.size()];
+        buckets.copyInto(ret);
+        return new Throttle(ret);
+    }
+
+    /**
+     * Returns the bucket for the given key, creating it if needed.
+     *
+     * @param buckets The buckets.
+     * @param key The key.
+     * @param rate The rate for a new bucket.
+     * @return TokenBucket
+     */
+    private static TokenBucket getBucket(HashMap buckets, String key, long rate)
+    {
+        TokenBucket ret = (TokenBucket)buckets.get(key);
+        if (ret == null)
+        {
+            ret = new TokenBucket(rate);
+            buckets.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Drops user and session buckets that have not been used in a while. This runs at most
+     * once a minute.
+     */
+    private static void prune()
+    {
+        long now = System.currentTimeMillis();
+        if (now - _lastPrune < 60000L) return;
+        _lastPrune = now;
+        HashMap[] maps = new HashMap[] { _users, _sessions };
+        for (int i=0; i<maps.length; i++)
+        {
+            for (Iterator it=maps[i].entrySet().iterator(); it.hasNext();)
+            {
+                TokenBucket bucket = (TokenBucket)( (Map.Entry)it.next() ).getValue();
+                if (now - bucket.getLastUsed() > IDLE) it.remove();
+            }
+        }
+    }
+}
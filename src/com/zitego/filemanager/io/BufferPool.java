@@ -0,0 +1,366 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a pool of reusable I/O buffers along with the copy methods that every stream
+ * and channel copy in the file manager goes through. Copies borrow a buffer from the pool
+ * and give it back when they are done, so a busy server does not allocate a new buffer
+ * for every download, upload, and zip entry. Buffers are bigger than the old 4kb arrays,
+ * which means fewer read and write calls for each file.<br><br>
+ *
+ * Streams are copied with pooled byte arrays. Channels are copied with pooled ByteBuffers,
+ * which are direct buffers if the pool was created that way. The pool keeps at most
+ * getMaxPooled() buffers of each kind. Anything over that is left for the garbage collector.
+ * The pool counts hits (a pooled buffer was reused), misses (a buffer had to be allocated),
+ * copies, and the total bytes moved.<br><br>
+ *
+ * The default pool is configured with the System properties io_buffer_size (bytes, default
+ * 65536), io_buffer_pool_size (default 64), and io_direct_buffers ("1" to use direct buffers).
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BufferPool
+{
+    /** The default pool. */
+    private static BufferPool _default;
+    /** The size of each buffer. */
+    private int _bufferSize;
+    /** The most buffers of each kind to keep. */
+    private int _maxPooled;
+    /** Whether channel buffers are direct. */
+    private boolean _direct;
+    /** The pooled byte arrays. */
+    private ConcurrentLinkedQueue _arrays = new ConcurrentLinkedQueue();
+    /** The number of pooled byte arrays. */
+    private AtomicInteger _arrayCount = new AtomicInteger();
+    /** The pooled byte buffers. */
+    private ConcurrentLinkedQueue _buffers = new ConcurrentLinkedQueue();
+    /** The number of pooled byte buffers. */
+    private AtomicInteger _bufferCount = new AtomicInteger();
+    /** The number of times a pooled buffer was reused. */
+    private AtomicLong _hits = new AtomicLong();
+    /** The number of times a buffer had to be allocated. */
+    private AtomicLong _misses = new AtomicLong();
+    /** The number of copies. */
+    private AtomicLong _copies = new AtomicLong();
+    /** The number of bytes copied. */
+    private AtomicLong _bytesMoved = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize The size of each buffer in bytes.
+     * @param maxPooled The most buffers of each kind to keep.
+     * @param direct Whether channel buffers should be direct.
+     * @throws IllegalArgumentException if the buffer size is not positive.
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) throws IllegalArgumentException
+    {
+        if (bufferSize <= 0) throw new IllegalArgumentException("buffer size must be greater than zero");
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+        _direct = direct;
+    }
+
+    /**
+     * Returns the default pool.
+     *
+     * @return BufferPool
+     */
+    public static synchronized BufferPool getDefault()
+    {
+        if (_default == null)
+        {
+            _default = new BufferPool
+            (
+                SystemProperties.getInt("io_buffer_size", 65536),
+                SystemProperties.getInt("io_buffer_pool_size", 64),
+                "1".equals( System.getProperty("io_direct_buffers") )
+            );
+        }
+        return _default;
+    }
+
+    /**
+     * Replaces the default pool.
+     *
+     * @param pool The new default pool.
+     */
+    public static synchronized void setDefault(BufferPool pool)
+    {
+        if (pool == null) throw new IllegalArgumentException("pool cannot be null");
+        _default = pool;
+    }
+
+    /**
+     * Borrows a byte array from the pool. It must be given back with release.
+     *
+     * @return byte[]
+     */
+    public byte[] acquire()
+    {
+        byte[] ret = (byte[])_arrays.poll();
+        if (ret != null)
+        {
+            _arrayCount.decrementAndGet();
+            _hits.incrementAndGet();
+            return ret;
+        }
+        _misses.incrementAndGet();
+        return new byte[_bufferSize];
+    }
+
+    /**
+     * Gives a byte array back to the pool.
+     *
+     * @param buffer The array.
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer == null || buffer.length != _bufferSize) return;
+        if (_arrayCount.incrementAndGet() > _maxPooled) _arrayCount.decrementAndGet();
+        else _arrays.offer(buffer);
+    }
+
+    /**
+     * Borrows a ByteBuffer from the pool. It is cleared and must be given back with release.
+     *
+     * @return ByteBuffer
+     */
+    public ByteBuffer acquireBuffer()
+    {
+        ByteBuffer ret = (ByteBuffer)_buffers.poll();
+        if (ret != null)
+        {
+            _bufferCount.decrementAndGet();
+            _hits.incrementAndGet();
+            ret.clear();
+            return ret;
+        }
+        _misses.incrementAndGet();
+        return ( _direct ? ByteBuffer.allocateDirect(_bufferSize) : ByteBuffer.allocate(_bufferSize) );
+    }
+
+    /**
+     * Gives a ByteBuffer back to the pool.
+     *
+     * @param buffer The buffer.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != _bufferSize || buffer.isDirect() != _direct) return;
+        if (_bufferCount.incrementAndGet() > _maxPooled) _bufferCount.decrementAndGet();
+        else _buffers.offer(buffer);
+    }
+
+    /**
+     * Copies the input stream to the output stream and returns the number of bytes copied.
+     * Neither stream is closed.
+     *
+     * @param in The input stream.
+     * @param out The output stream.
+     * @return long
+     * @throws IOException if an error occurs copying.
+     */
+    public long copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = acquire();
+        long ret = 0L;
+        try
+        {
+            int count;
+            while ( (count=in.read(buffer)) != -1 )
+            {
+                out.write(buffer, 0, count);
+                ret += count;
+            }
+        }
+        finally
+        {
+            release(buffer);
+            moved(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Copies the input channel to the output channel and returns the number of bytes copied.
+     * Neither channel is closed.
+     *
+     * @param in The input channel.
+     * @param out The output channel.
+     * @return long
+     * @throws IOException if an error occurs copying.
+     */
+    public long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        ByteBuffer buffer = acquireBuffer();
+        long ret = 0L;
+        try
+        {
+            while (in.read(buffer) != -1)
+            {
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                {
+                    ret += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            release(buffer);
+            moved(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Copies count bytes of the file channel starting at the given position to the output
+     * stream and returns the number of bytes copied. The reads are positional, so the
+     * channel's own position is not touched and several ranges of the same file can be
+     * copied at once. The copy stops early if the end of the file is reached. Neither the
+     * channel nor the stream is closed.
+     *
+     * @param in The file channel.
+     * @param position The position to start reading from.
+     * @param count The number of bytes to copy.
+     * @param out The output stream.
+     * @return long
+     * @throws IOException if an error occurs copying.
+     */
+    public long copy(FileChannel in, long position, long count, OutputStream out) throws IOException
+    {
+        byte[] buffer = acquire();
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long ret = 0L;
+        try
+        {
+            while (ret < count)
+            {
+                wrapped.clear();
+                if (count-ret < buffer.length) wrapped.limit( (int)(count-ret) );
+                int read = in.read(wrapped, position+ret);
+                if (read == -1) break;
+                out.write(buffer, 0, read);
+                ret += read;
+            }
+        }
+        finally
+        {
+            release(buffer);
+            moved(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Records a copy that was done outside of the pool's copy methods (for example with
+     * FileChannel.transferTo) so that it shows up in the bytes moved.
+     *
+     * @param bytes The number of bytes copied.
+     */
+    public void moved(long bytes)
+    {
+        _copies.incrementAndGet();
+        _bytesMoved.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the size of each buffer.
+     *
+     * @return int
+     */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /**
+     * Returns the most buffers of each kind that are kept.
+     *
+     * @return int
+     */
+    public int getMaxPooled()
+    {
+        return _maxPooled;
+    }
+
+    /**
+     * Returns whether channel buffers are direct.
+     *
+     * @return boolean
+     */
+    public boolean isDirect()
+    {
+        return _direct;
+    }
+
+    /**
+     * Returns the number of times a pooled buffer was reused.
+     *
+     * @return long
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of times a buffer had to be allocated.
+     *
+     * @return long
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Returns the number of copies.
+     *
+     * @return long
+     */
+    public long getCopies()
+    {
+        return _copies.get();
+    }
+
+    /**
+     * Returns the total number of bytes copied.
+     *
+     * @return long
+     */
+    public long getBytesMoved()
+    {
+        return _bytesMoved.get();
+    }
+
+    /**
+     * Returns the number of buffers sitting in the pool.
+     *
+     * @return int
+     */
+    public int getAvailable()
+    {
+        return _arrayCount.get() + _bufferCount.get();
+    }
+
+    public String toString()
+    {
+        return "BufferPool[size=" + _bufferSize + ", direct=" + _direct + ", available=" + getAvailable() +
+               ", hits=" + getHits() + ", misses=" + getMisses() + ", copies=" + getCopies() +
+               ", bytes=" + getBytesMoved() + "]";
+    }
+}
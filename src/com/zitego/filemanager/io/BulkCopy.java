@@ -0,0 +1,351 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class copies large files without pushing everything else out of the page cache.
+ * A bulk copy or backup reads and writes each byte once, so caching it gains nothing and
+ * evicts the pages that interactive users are reading. When direct I/O is available (see
+ * DirectIO) files are read and written with O_DIRECT through aligned direct buffers and
+ * never enter the page cache. When it is not available, or the file system refuses to open
+ * the files with it, the copy falls back to a normal channel transfer. Any other error is
+ * thrown.<br><br>
+ *
+ * FileSystemObject uses this for files at or above getThreshold() bytes that are too small
+ * for a ResumableCopy, which copies with direct I/O the same way. The threshold defaults to
+ * 64mb and can be changed with the System property direct_io_size. Setting
+ * the System property use_direct_io to "0" turns direct I/O off.<br><br>
+ *
+ * Run the main method to see what a bulk copy does to the latency of small reads
+ * happening at the same time, both with and without direct I/O.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class BulkCopy
+{
+    /** The size of the direct buffer. */
+    private static final int BUFFER_SIZE = 1048576;
+
+    /**
+     * Usage: java BulkCopy &lt;large file&gt; &lt;target file&gt; &lt;directory of small files&gt;<br>
+     * Copies the large file to the target twice, once buffered and once direct, while another
+     * thread reads random files from the small file directory. Prints the small read latencies
+     * for each run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File source = new java.io.File(args[0]);
+        java.io.File target = new java.io.File(args[1]);
+        java.io.File[] small = new java.io.File(args[2]).listFiles();
+        System.out.println( "Direct I/O available: "+isDirectIOAvailable() );
+
+        for (int run=0; run<2; run++)
+        {
+            boolean direct = (run == 1);
+            System.setProperty( "use_direct_io", (direct ? "1" : "0") );
+            //Warm the small files so we measure what the copy does to them
+            for (int i=0; i<small.length; i++) readFully(small[i]);
+
+            SmallReader reader = new SmallReader(small);
+            reader.start();
+            long start = System.currentTimeMillis();
+            copy(source, target);
+            long elapsed = System.currentTimeMillis() - start;
+            reader.finish();
+            reader.join();
+            long[] times = reader.getTimes();
+            Arrays.sort(times);
+            System.out.println
+            (
+                (direct ? "direct" : "buffered") + " copy: " + elapsed + "ms, " + times.length + " small reads, " +
+                "p50=" + percentile(times, 50) + "us p99=" + percentile(times, 99) + "us max=" +
+                (times.length > 0 ? times[times.length-1] : 0) + "us"
+            );
+        }
+        target.delete();
+    }
+
+    /**
+     * Returns the size in bytes at or above which files should be copied with BulkCopy.
+     *
+     * @return long
+     */
+    public static long getThreshold()
+    {
+        return SystemProperties.getLong("direct_io_size", 67108864L);
+    }
+
+    /**
+     * Returns whether direct I/O will be attempted.
+     *
+     * @return boolean
+     */
+    public static boolean isDirectIOAvailable()
+    {
+        return ( DirectIO.isAvailable() && !"0".equals(System.getProperty("use_direct_io")) );
+    }
+
+    /**
+     * Copies the source file to the target file and returns the number of bytes copied.
+     *
+     * @param source The source file.
+     * @param target The target file.
+     * @return long
+     * @throws IOException if an error occurs copying the file.
+     */
+    public static long copy(java.io.File source, java.io.File target) throws IOException
+    {
+        if ( isDirectIOAvailable() )
+        {
+            FileChannel in = null;
+            FileChannel out = null;
+            try
+            {
+                in = DirectIO.openForRead(source);
+                out = DirectIO.openForWrite(target);
+            }
+            catch (IOException ioe)
+            {
+                //Not supported here, use the page cache
+                if (in != null) in.close();
+                in = null;
+            }
+            if (in != null) return copyDirect(in, out, source, target);
+        }
+
+        FileInputStream in = new FileInputStream(source);
+        RandomAccessFile out = null;
+        try
+        {
+            FileChannel src = in.getChannel();
+            long length = src.size();
+            out = Preallocator.open(target, length);
+            FileChannel dst = out.getChannel();
+            long position = 0L;
+            while (position < length)
+            {
+                position += src.transferTo(position, length-position, dst);
+            }
+            Preallocator.finish(out, position);
+            BufferPool.getDefault().moved(position);
+            return position;
+        }
+        finally
+        {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * Writes the source file to the given output stream and returns the number of bytes
+     * written. The stream is not closed.
+     *
+     * @param source The source file.
+     * @param out The output stream.
+     * @return long
+     * @throws IOException if an error occurs writing the file.
+     */
+    public static long write(java.io.File source, OutputStream out) throws IOException
+    {
+        FileChannel in = null;
+        if ( isDirectIOAvailable() )
+        {
+            try
+            {
+                in = DirectIO.openForRead(source);
+            }
+            catch (IOException ioe)
+            {
+                //Not supported here, use the page cache
+            }
+        }
+
+        if (in == null)
+        {
+            FileInputStream fin = new FileInputStream(source);
+            try
+            {
+                return BufferPool.getDefault().copy(fin, out);
+            }
+            finally
+            {
+                fin.close();
+            }
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        byte[] bytes = pool.acquire();
+        long position = 0L;
+        try
+        {
+            long length = in.size();
+            ByteBuffer buffer = DirectIO.allocate( BUFFER_SIZE, DirectIO.getBlockSize(source) );
+            while (position < length)
+            {
+                buffer.clear();
+                position += fill(in, buffer, length-position);
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                {
+                    int count = Math.min( bytes.length, buffer.remaining() );
+                    buffer.get(bytes, 0, count);
+                    out.write(bytes, 0, count);
+                }
+            }
+            return position;
+        }
+        finally
+        {
+            in.close();
+            pool.release(bytes);
+            pool.moved(position);
+        }
+    }
+
+    /**
+     * Copies the source to the target with direct I/O. Writes must be whole blocks, so the
+     * last block is padded and the target is truncated to the real length at the end. Both
+     * channels are closed.
+     *
+     * @param in The source opened for direct reading.
+     * @param out The target opened for direct writing.
+     * @param source The source file.
+     * @param target The target file.
+     * @return long
+     * @throws IOException if an error occurs copying.
+     */
+    private static long copyDirect(FileChannel in, FileChannel out, java.io.File source, java.io.File target) throws IOException
+    {
+        try
+        {
+            int block = Math.max( DirectIO.getBlockSize(source), DirectIO.getBlockSize(target) );
+            ByteBuffer buffer = DirectIO.allocate(BUFFER_SIZE, block);
+            long length = in.size();
+            long position = 0L;
+            while (position < length)
+            {
+                buffer.clear();
+                int count = fill(in, buffer, length-position);
+                position += count;
+                buffer.flip();
+                buffer.limit( ((count+block-1) / block) * block );
+                while ( buffer.hasRemaining() )
+                {
+                    out.write(buffer);
+                }
+            }
+            out.truncate(length);
+            BufferPool.getDefault().moved(length);
+            return length;
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the remaining bytes have been read
+     * and returns the number of bytes read.
+     *
+     * @param in The channel.
+     * @param buffer The buffer.
+     * @param remaining The number of bytes left in the file.
+     * @return int
+     * @throws IOException if an error occurs reading.
+     */
+    static int fill(FileChannel in, ByteBuffer buffer, long remaining) throws IOException
+    {
+        int ret = 0;
+        while ( buffer.hasRemaining() && ret < remaining )
+        {
+            int count = in.read(buffer);
+            if (count < 0) throw new EOFException("File changed while it was being copied");
+            ret += count;
+        }
+        return (int)Math.min(ret, remaining);
+    }
+
+    private static long percentile(long[] sorted, int pct)
+    {
+        if (sorted.length == 0) return 0L;
+        return sorted[ Math.min(sorted.length-1, sorted.length*pct/100) ];
+    }
+
+    private static void readFully(java.io.File f) throws IOException
+    {
+        if ( !f.isFile() ) return;
+        InputStream in = new FileInputStream(f);
+        try
+        {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads random small files and times each read until it is told to finish.
+     */
+    private static class SmallReader extends Thread
+    {
+        private java.io.File[] _files;
+        private long[] _times = new long[1024];
+        private int _count = 0;
+        private volatile boolean _done = false;
+
+        SmallReader(java.io.File[] files)
+        {
+            _files = files;
+        }
+
+        void finish()
+        {
+            _done = true;
+        }
+
+        long[] getTimes()
+        {
+            long[] ret = new long[_count];
+            System.arraycopy(_times, 0, ret, 0, _count);
+            return ret;
+        }
+
+        public void run()
+        {
+            Random random = new Random();
+            try
+            {
+                while (!_done && _files.length > 0)
+                {
+                    java.io.File f = _files[ random.nextInt(_files.length) ];
+                    long start = System.nanoTime();
+                    readFully(f);
+                    if (_count == _times.length)
+                    {
+                        long[] times = new long[_count*2];
+                        System.arraycopy(_times, 0, times, 0, _count);
+                        _times = times;
+                    }
+                    _times[_count++] = (System.nanoTime()-start) / 1000L;
+                    sleep(2);
+                }
+            }
+            catch (Exception e)
+            {
+                System.err.println("small reader: "+e);
+            }
+        }
+    }
+}
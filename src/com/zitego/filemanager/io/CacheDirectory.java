@@ -0,0 +1,167 @@
+package com.zitego.filemanager.io;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This keeps a directory of cached files (such as thumbnails or gzipped copies) under a
+ * total size. Entries are evicted least recently used first: a cached file's last modified
+ * date is moved up when it is used (see touch), so the oldest files are the ones that have
+ * gone unused the longest. Because that is kept on disk it survives a restart, and copies
+ * of files that were edited, renamed or deleted stop being used and age out on their
+ * own.<br><br>
+ *
+ * The total is counted from the directory the first time it is needed and is then kept by
+ * the cache telling it what it adds. When the total goes over the limit the directory is
+ * listed, counted again, and the oldest files are deleted until it is back under nine tenths
+ * of the limit. Only one thread evicts at a time and files written in the last minute are
+ * never evicted, so a copy that is still being written is not taken out from under it.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class CacheDirectory
+{
+    /** How old a file's last modified date must be before it is moved up when used. */
+    private static final long TOUCH_INTERVAL = 60000L;
+    /** The directory. */
+    private java.io.File _directory;
+    /** The most bytes to keep or 0 for no limit. */
+    private long _maxBytes;
+    /** The bytes in the directory or -1 before it is counted. */
+    private AtomicLong _bytes = new AtomicLong(-1L);
+    /** Whether a thread is evicting. */
+    private AtomicBoolean _evicting = new AtomicBoolean(false);
+
+    /**
+     * Usage: java CacheDirectory &lt;directory&gt; &lt;max bytes&gt;<br>
+     * Evicts the oldest files in the directory until it is under the limit and prints the
+     * size before and after.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        CacheDirectory cache = new CacheDirectory( new java.io.File(args[0]), Long.parseLong(args[1]) );
+        System.out.println( "Before: "+cache.getBytes() );
+        cache.added(0L);
+        System.out.println( "After: "+cache.getBytes() );
+    }
+
+    /**
+     * Creates a new cache directory.
+     *
+     * @param directory The directory.
+     * @param maxBytes The most bytes to keep or 0 for no limit.
+     */
+    public CacheDirectory(java.io.File directory, long maxBytes)
+    {
+        _directory = directory;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Marks the given cached file as used so that it is evicted last.
+     *
+     * @param f The cached file.
+     */
+    public void touch(java.io.File f)
+    {
+        long now = System.currentTimeMillis();
+        //Once a minute is close enough and saves a write on every hit
+        if (now - f.lastModified() > TOUCH_INTERVAL) f.setLastModified(now);
+    }
+
+    /**
+     * Counts bytes that were added to the directory and evicts if it is over the limit.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void added(long bytes)
+    {
+        long total = getBytes() + bytes;
+        _bytes.addAndGet(bytes);
+        if (_maxBytes > 0 && total > _maxBytes) evict();
+    }
+
+    /**
+     * Counts bytes that were removed from the directory.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void removed(long bytes)
+    {
+        if (_bytes.get() >= 0) _bytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the bytes in the directory.
+     *
+     * @return long
+     */
+    public long getBytes()
+    {
+        if (_bytes.get() < 0) _bytes.compareAndSet( -1L, count(_directory.listFiles()) );
+        return _bytes.get();
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is under nine tenths of the
+     * limit. The total is counted again from the listing so that files removed by anything
+     * else do not build up.
+     */
+    private void evict()
+    {
+        if ( !_evicting.compareAndSet(false, true) ) return;
+        try
+        {
+            java.io.File[] files = _directory.listFiles();
+            if (files == null) return;
+            final long[] modified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i=0; i<files.length; i++)
+            {
+                modified[i] = files[i].lastModified();
+                order[i] = new Integer(i);
+            }
+            Arrays.sort
+            (
+                order, new Comparator()
+                {
+                    public int compare(Object o1, Object o2)
+                    {
+                        long m1 = modified[ ((Integer)o1).intValue() ];
+                        long m2 = modified[ ((Integer)o2).intValue() ];
+                        return (m1 < m2 ? -1 : (m1 > m2 ? 1 : 0));
+                    }
+                }
+            );
+
+            long total = count(files);
+            long target = _maxBytes / 10L * 9L;
+            long young = System.currentTimeMillis() - TOUCH_INTERVAL;
+            for (int i=0; i<order.length && total > target; i++)
+            {
+                int index = order[i].intValue();
+                if (modified[index] > young) break;
+                long length = files[index].length();
+                if ( files[index].isFile() && files[index].delete() ) total -= length;
+            }
+            _bytes.set(total);
+        }
+        finally
+        {
+            _evicting.set(false);
+        }
+    }
+
+    private static long count(java.io.File[] files)
+    {
+        long ret = 0L;
+        for (int i=0; files != null && i<files.length; i++)
+        {
+            if ( files[i].isFile() ) ret += files[i].length();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,333 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.Hex;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This is a cache of gzipped copies of files. Text files compress very well, but gzipping
+ * a large log or csv file on every download costs a lot of cpu. When a file is asked for
+ * often enough (see getHotHits()) a gzipped copy of it is written in the background and
+ * from then on the copy is sent as is.<br><br>
+ *
+ * The copies are kept in their own directory outside of the users' homes so that they are
+ * never listed and never count against a quota. Each copy is named by a hash of the file's
+ * path plus its size and last modified date, so a file that changes simply misses the cache
+ * until a new copy is built. The old copy is removed when the new one is written. The
+ * directory is kept under a total size with the least recently used copies evicted first
+ * (see CacheDirectory), which is also how the copies of files that were renamed or deleted
+ * go.<br><br>
+ *
+ * The cache is configured with the System properties compressed_cache_dir (default
+ * filemanager-gzip in java.io.tmpdir), compressed_cache_size (the most bytes of copies to
+ * keep, default 256mb, 0 for no limit), compressed_cache_hits (requests before a copy is
+ * built, default 2), compressed_cache_min_size (default 1024 bytes), and
+ * compressed_cache_max_size (default 64mb). Setting use_compression to "0" turns
+ * compression off. Large files are compressed on every core when ParallelDeflater can split
+ * them. There is only one cache per jvm. It is started the first time it is
+ * asked for.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class CompressedCache extends Thread
+{
+    /** The most builds that can be waiting. */
+    private static final int MAX_PENDING = 100;
+    /** The most hit counts to keep. */
+    private static final int MAX_COUNTED = 10000;
+    /** The single instance. */
+    private static CompressedCache _instance;
+    /** The directory the copies are kept in. */
+    private java.io.File _directory;
+    /** Keeps the directory under its size limit. */
+    private CacheDirectory _cache;
+    /** The number of requests before a copy is built. */
+    private long _hotHits = SystemProperties.getLong("compressed_cache_hits", 2L);
+    /** The smallest file worth compressing. */
+    private long _minSize = SystemProperties.getLong("compressed_cache_min_size", 1024L);
+    /** The largest file to keep a copy of. */
+    private long _maxSize = SystemProperties.getLong("compressed_cache_max_size", 67108864L);
+    /** Request counts keyed by cache key. */
+    private Map _hits = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > MAX_COUNTED;
+        }
+    };
+    /** The files waiting to be compressed. */
+    private LinkedList _pending = new LinkedList();
+    /** The cache keys that are waiting or being built. */
+    private HashSet _building = new HashSet();
+    /** Whether we have been asked to stop. */
+    private volatile boolean _stopped = false;
+
+    /**
+     * Usage: java CompressedCache &lt;file&gt;<br>
+     * Builds the gzipped copy of the file and prints where it is and how big it is.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File f = new java.io.File(args[0]);
+        CompressedCache cache = getInstance();
+        java.io.File gz = cache.build(f, f.length(), f.lastModified());
+        System.out.println( f.length() + " bytes -> " + gz + " " + gz.length() + " bytes" );
+    }
+
+    /**
+     * Creates the cache.
+     */
+    private CompressedCache()
+    {
+        super("CompressedCache");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+        String dir = System.getProperty("compressed_cache_dir");
+        _directory = new java.io.File( dir != null ? dir : System.getProperty("java.io.tmpdir")+"/filemanager-gzip" );
+        _directory.mkdirs();
+        _cache = new CacheDirectory( _directory, SystemProperties.getLong("compressed_cache_size", 268435456L) );
+    }
+
+    /**
+     * Returns the cache, starting it if it is not running.
+     *
+     * @return CompressedCache
+     */
+    public static synchronized CompressedCache getInstance()
+    {
+        if (_instance == null)
+        {
+            _instance = new CompressedCache();
+            _instance.start();
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns whether files should be compressed.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return !"0".equals( System.getProperty("use_compression") );
+    }
+
+    /**
+     * Returns whether a file of the given size is worth compressing.
+     *
+     * @param length The size of the file.
+     * @return boolean
+     */
+    public boolean isCompressible(long length)
+    {
+        return (length >= _minSize);
+    }
+
+    /**
+     * Returns the number of requests for a file before a copy is built.
+     *
+     * @return long
+     */
+    public long getHotHits()
+    {
+        return _hotHits;
+    }
+
+    /**
+     * Returns the gzipped copy of the given file or null if there is not one yet. A copy
+     * that is found is marked as used. Each miss counts as a request for the file and once
+     * it has been requested getHotHits() times the copy is queued to be built.
+     *
+     * @param f The file.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @return java.io.File
+     */
+    public java.io.File get(java.io.File f, long length, long lastModified)
+    {
+        String key = getKey(f, length, lastModified);
+        java.io.File ret = new java.io.File(_directory, key);
+        if ( ret.exists() )
+        {
+            _cache.touch(ret);
+            return ret;
+        }
+        if (length > _maxSize) return null;
+
+        synchronized (_hits)
+        {
+            Long count = (Long)_hits.get(key);
+            long hits = (count != null ? count.longValue() : 0L) + 1;
+            if (hits < _hotHits)
+            {
+                _hits.put( key, new Long(hits) );
+                return null;
+            }
+            _hits.remove(key);
+        }
+        synchronized (_pending)
+        {
+            if (_pending.size() < MAX_PENDING && _building.add(key))
+            {
+                _pending.add( new Object[] { f, new Long(length), new Long(lastModified) } );
+                _pending.notify();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the gzipped copy of the given file and returns it. The copy is written to a
+     * temporary file and renamed when it is complete, so a half written copy is never sent.
+     * If the file changed while it was being compressed the copy is thrown away and null is
+     * returned.
+     *
+     * @param f The file.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @return java.io.File
+     * @throws IOException if an error occurs compressing the file.
+     */
+    public java.io.File build(java.io.File f, long length, long lastModified) throws IOException
+    {
+        String key = getKey(f, length, lastModified);
+        java.io.File target = new java.io.File(_directory, key);
+        java.io.File temp = new java.io.File(_directory, key + ".tmp" + Thread.currentThread().getId());
+        FileInputStream in = new FileInputStream(f);
+        try
+        {
+            ParallelDeflater deflater = ParallelDeflater.getInstance();
+            if ( ParallelDeflater.canSplit() && length >= 2L*deflater.getBlockSize() )
+            {
+                OutputStream out = new BufferedOutputStream( new FileOutputStream(temp), BufferPool.getDefault().getBufferSize() );
+                try
+                {
+                    deflater.gzip(in, out, Deflater.DEFAULT_COMPRESSION);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            else
+            {
+                GZIPOutputStream out = new GZIPOutputStream( new FileOutputStream(temp), BufferPool.getDefault().getBufferSize() );
+                try
+                {
+                    BufferPool.getDefault().copy(in, out);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            temp.delete();
+            throw ioe;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if ( f.length() != length || f.lastModified() != lastModified || !temp.renameTo(target) )
+        {
+            temp.delete();
+            return null;
+        }
+
+        //Remove the copies of older versions
+        String prefix = key.substring( 0, key.indexOf("-")+1 );
+        java.io.File[] old = _directory.listFiles();
+        for (int i=0; old != null && i<old.length; i++)
+        {
+            String name = old[i].getName();
+            if ( name.startsWith(prefix) && !name.equals(key) && name.indexOf(".tmp") == -1 )
+            {
+                long bytes = old[i].length();
+                if ( old[i].delete() ) _cache.removed(bytes);
+            }
+        }
+        _cache.added( target.length() );
+        return target;
+    }
+
+    public void run()
+    {
+        while (!_stopped)
+        {
+            Object[] next = null;
+            synchronized (_pending)
+            {
+                while (!_stopped && _pending.size() == 0)
+                {
+                    try
+                    {
+                        _pending.wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return;
+                    }
+                }
+                if (_stopped) return;
+                next = (Object[])_pending.removeFirst();
+            }
+
+            java.io.File f = (java.io.File)next[0];
+            long length = ( (Long)next[1] ).longValue();
+            long lastModified = ( (Long)next[2] ).longValue();
+            try
+            {
+                build(f, length, lastModified);
+            }
+            catch (Exception e)
+            {
+                //The file may have been removed, a later request will try again
+            }
+            finally
+            {
+                synchronized (_pending)
+                {
+                    _building.remove( getKey(f, length, lastModified) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the cache from building any more copies.
+     */
+    public void shutdown()
+    {
+        _stopped = true;
+        synchronized (_pending)
+        {
+            _pending.notify();
+        }
+    }
+
+    /**
+     * Returns the name of the copy of the given file.
+     *
+     * @param f The file.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @return String
+     */
+    private String getKey(java.io.File f, long length, long lastModified)
+    {
+        StringBuffer ret = new StringBuffer( Hex.md5(f.getAbsolutePath()) );
+        return ret.append("-").append( Long.toHexString(length) ).append("-").append( Long.toHexString(lastModified) ).append(".gz").toString();
+    }
+}
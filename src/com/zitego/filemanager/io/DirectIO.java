@@ -0,0 +1,220 @@
+package com.zitego.filemanager.io;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class opens FileChannels with O_DIRECT so that reads and writes go around the
+ * operating system's page cache. The file manager is built for 1.6, but O_DIRECT is only
+ * reachable through com.sun.nio.file.ExtendedOpenOption.DIRECT which was added in java 10.
+ * The java.nio.file calls are therefore looked up once through reflection. If they are not
+ * there then isAvailable() returns false and callers should use normal I/O.<br><br>
+ *
+ * Direct I/O requires that buffers, file offsets, and transfer sizes are all multiples of
+ * the file system block size. Use getBlockSize and allocate to get a suitable buffer.
+ * Some file systems (tmpfs for example) refuse O_DIRECT altogether. In that case the open
+ * methods throw an IOException and the caller should fall back as well.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+final class DirectIO
+{
+    /** The block size to use when the file system does not tell us. */
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+    /** java.io.File.toPath() */
+    private static Method _toPath;
+    /** FileChannel.open(Path, OpenOption...) */
+    private static Method _open;
+    /** Files.getFileStore(Path) */
+    private static Method _getFileStore;
+    /** FileStore.getBlockSize() */
+    private static Method _getBlockSize;
+    /** ByteBuffer.alignedSlice(int) */
+    private static Method _alignedSlice;
+    /** The options to open a file for reading. */
+    private static Object _readOptions;
+    /** The options to open a file for writing. */
+    private static Object _writeOptions;
+    /** The options to open a file for writing without truncating it. */
+    private static Object _updateOptions;
+    /** Whether direct I/O can be used in this jvm. */
+    private static boolean _available = false;
+
+    static
+    {
+        try
+        {
+            Class path = Class.forName("java.nio.file.Path");
+            Class option = Class.forName("java.nio.file.OpenOption");
+            Class standard = Class.forName("java.nio.file.StandardOpenOption");
+            Class extended = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            Class optionArray = Array.newInstance(option, 0).getClass();
+            _toPath = java.io.File.class.getMethod("toPath", new Class[0]);
+            _open = FileChannel.class.getMethod( "open", new Class[] { path, optionArray } );
+            _getFileStore = Class.forName("java.nio.file.Files").getMethod( "getFileStore", new Class[] { path } );
+            _getBlockSize = Class.forName("java.nio.file.FileStore").getMethod("getBlockSize", new Class[0]);
+            _alignedSlice = ByteBuffer.class.getMethod( "alignedSlice", new Class[] { int.class } );
+            Object direct = Enum.valueOf(extended, "DIRECT");
+            _readOptions = createOptions( option, new Object[] { Enum.valueOf(standard, "READ"), direct } );
+            _writeOptions = createOptions
+            (
+                option,
+                new Object[]
+                {
+                    Enum.valueOf(standard, "WRITE"), Enum.valueOf(standard, "CREATE"),
+                    Enum.valueOf(standard, "TRUNCATE_EXISTING"), direct
+                }
+            );
+            _updateOptions = createOptions
+            (
+                option, new Object[] { Enum.valueOf(standard, "WRITE"), Enum.valueOf(standard, "CREATE"), direct }
+            );
+            _available = true;
+        }
+        catch (Throwable t)
+        {
+            //Older jvm, no direct I/O
+            _available = false;
+        }
+    }
+
+    private DirectIO() { }
+
+    /**
+     * Returns whether direct I/O can be used in this jvm.
+     *
+     * @return boolean
+     */
+    static boolean isAvailable()
+    {
+        return _available;
+    }
+
+    /**
+     * Opens the given file for direct reading.
+     *
+     * @param f The file.
+     * @return FileChannel
+     * @throws IOException if the file cannot be opened for direct I/O.
+     */
+    static FileChannel openForRead(java.io.File f) throws IOException
+    {
+        return open(f, _readOptions);
+    }
+
+    /**
+     * Opens the given file for direct writing. The file is created if it does not exist
+     * and truncated if it does.
+     *
+     * @param f The file.
+     * @return FileChannel
+     * @throws IOException if the file cannot be opened for direct I/O.
+     */
+    static FileChannel openForWrite(java.io.File f) throws IOException
+    {
+        return open(f, _writeOptions);
+    }
+
+    /**
+     * Opens the given file for direct writing without truncating it, for writing the rest
+     * of a file that is partly written. The file is created if it does not exist.
+     *
+     * @param f The file.
+     * @return FileChannel
+     * @throws IOException if the file cannot be opened for direct I/O.
+     */
+    static FileChannel openForUpdate(java.io.File f) throws IOException
+    {
+        return open(f, _updateOptions);
+    }
+
+    /**
+     * Returns the block size of the file system the given file is on. If it cannot be
+     * determined then DEFAULT_BLOCK_SIZE is returned.
+     *
+     * @param f The file (it must exist).
+     * @return int
+     */
+    static int getBlockSize(java.io.File f)
+    {
+        try
+        {
+            Object store = _getFileStore.invoke( null, new Object[] { toPath(f) } );
+            long size = ( (Long)_getBlockSize.invoke(store, new Object[0]) ).longValue();
+            if (size > 0 && size <= 1048576) return (int)size;
+        }
+        catch (Exception e) { }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Allocates a direct buffer of the given size whose memory address is a multiple of
+     * the given alignment.
+     *
+     * @param size The size (rounded up to a multiple of the alignment).
+     * @param alignment The alignment.
+     * @return ByteBuffer
+     * @throws IOException if the buffer cannot be aligned.
+     */
+    static ByteBuffer allocate(int size, int alignment) throws IOException
+    {
+        size = ( (size+alignment-1) / alignment ) * alignment;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size+alignment);
+        try
+        {
+            ByteBuffer ret = (ByteBuffer)_alignedSlice.invoke( buffer, new Object[] { Integer.valueOf(alignment) } );
+            ret.limit(size);
+            return ret.slice();
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Could not align direct buffer: "+e);
+        }
+    }
+
+    private static FileChannel open(java.io.File f, Object options) throws IOException
+    {
+        if (!_available) throw new IOException("Direct I/O is not available");
+        try
+        {
+            return (FileChannel)_open.invoke( null, new Object[] { toPath(f), options } );
+        }
+        catch (InvocationTargetException ite)
+        {
+            Throwable t = ite.getTargetException();
+            if (t instanceof IOException) throw (IOException)t;
+            throw new IOException( "Could not open "+f.getName()+" for direct I/O: "+t );
+        }
+        catch (IllegalAccessException iae)
+        {
+            throw new IOException( iae.toString() );
+        }
+    }
+
+    private static Object toPath(java.io.File f) throws IOException
+    {
+        try
+        {
+            return _toPath.invoke( f, new Object[0] );
+        }
+        catch (Exception e)
+        {
+            throw new IOException( "Invalid path "+f.getPath() );
+        }
+    }
+
+    private static Object createOptions(Class type, Object[] options)
+    {
+        Object ret = Array.newInstance(type, options.length);
+        for (int i=0; i<options.length; i++)
+        {
+            Array.set(ret, i, options[i]);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,124 @@
+package com.zitego.filemanager.io;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+/**
+ * This class creates and looks at hard links. The file manager is built for 1.6, but hard
+ * links are only reachable through java.nio.file which was added in java 7, so the calls
+ * are looked up once through reflection. If they are not there, or the file system does not
+ * support links, createLink returns false and the caller should copy the file instead.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class HardLinks
+{
+    /** java.io.File.toPath() */
+    private static Method _toPath;
+    /** Files.createLink(Path, Path) */
+    private static Method _createLink;
+    /** Files.getAttribute(Path, String, LinkOption...) */
+    private static Method _getAttribute;
+    /** No link options. */
+    private static Object _noOptions;
+    /** Whether hard links can be used in this jvm. */
+    private static boolean _available = false;
+
+    static
+    {
+        try
+        {
+            Class path = Class.forName("java.nio.file.Path");
+            Class files = Class.forName("java.nio.file.Files");
+            Class option = Class.forName("java.nio.file.LinkOption");
+            _toPath = java.io.File.class.getMethod("toPath", new Class[0]);
+            _createLink = files.getMethod( "createLink", new Class[] { path, path } );
+            _noOptions = Array.newInstance(option, 0);
+            _getAttribute = files.getMethod( "getAttribute", new Class[] { path, String.class, _noOptions.getClass() } );
+            _available = true;
+        }
+        catch (Throwable t)
+        {
+            //Older jvm, no hard links
+            _available = false;
+        }
+    }
+
+    private HardLinks() { }
+
+    /**
+     * Returns whether hard links can be used in this jvm.
+     *
+     * @return boolean
+     */
+    public static boolean isAvailable()
+    {
+        return _available;
+    }
+
+    /**
+     * Creates a hard link to the existing file and returns whether it was created. The link
+     * must not exist.
+     *
+     * @param link The link to create.
+     * @param existing The file to link to.
+     * @return boolean
+     */
+    public static boolean createLink(java.io.File link, java.io.File existing)
+    {
+        if (!_available) return false;
+        try
+        {
+            _createLink.invoke( null, new Object[] { toPath(link), toPath(existing) } );
+            return true;
+        }
+        catch (Exception e)
+        {
+            //Not supported by the file system or the link exists
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of names the given file has, or 1 if it cannot be told.
+     *
+     * @param f The file.
+     * @return int
+     */
+    public static int getLinkCount(java.io.File f)
+    {
+        Object ret = getAttribute(f, "unix:nlink");
+        return (ret instanceof Number ? ( (Number)ret ).intValue() : 1);
+    }
+
+    /**
+     * Returns an object that is equal for every name of the same file, or null if it cannot
+     * be told.
+     *
+     * @param f The file.
+     * @return Object
+     */
+    public static Object getFileKey(java.io.File f)
+    {
+        return getAttribute(f, "basic:fileKey");
+    }
+
+    private static Object getAttribute(java.io.File f, String name)
+    {
+        if (!_available) return null;
+        try
+        {
+            return _getAttribute.invoke( null, new Object[] { toPath(f), name, _noOptions } );
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static Object toPath(java.io.File f) throws Exception
+    {
+        return _toPath.invoke( f, new Object[0] );
+    }
+}
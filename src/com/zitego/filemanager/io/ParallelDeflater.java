@@ -0,0 +1,490 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This deflates large streams on several cores at once the way pigz does. The input is cut
+ * into blocks (128kb by default) and each block is deflated by a worker thread on its own,
+ * primed with the last 32kb of the block before it so that little compression is lost. A
+ * block that is not the last is ended with a sync flush, which leaves the output on a byte
+ * boundary, so the compressed blocks can simply be written one after the other and make a
+ * single valid deflate stream. The blocks are written in order as they finish, and only a
+ * few more blocks than there are threads are read ahead, so memory does not depend on the
+ * size of the stream.<br><br>
+ *
+ * The sync flush needs the deflate method added to Deflater in Java 7, which is found with
+ * reflection. On older jvms canSplit() returns false and only whole small files can be
+ * deflated in parallel (see submit and ParallelZipWriter).<br><br>
+ *
+ * The pool is shared by every caller and configured with the System properties
+ * parallel_deflate_threads (default the number of processors) and parallel_deflate_block
+ * (the block size in bytes). Setting use_parallel_deflate to "0" turns it off. There is
+ * only one per jvm.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ParallelDeflater
+{
+    /** The size of the deflate window, which is how much of the previous block is used. */
+    private static final int DICTIONARY_SIZE = 32768;
+    /** The Deflater sync flush mode. */
+    private static final int SYNC_FLUSH = 2;
+    /** Deflater.deflate(byte[], int, int, int) if the jvm has it. */
+    private static final Method DEFLATE_FLUSH = getDeflateFlush();
+    /** The single instance. */
+    private static ParallelDeflater _instance;
+    /** The number of worker threads. */
+    private int _threads;
+    /** The block size. */
+    private int _blockSize;
+    /** The worker threads. */
+    private ThreadPoolExecutor _workers;
+
+    /**
+     * Usage: java ParallelDeflater &lt;file&gt; [level]<br>
+     * Deflates the file on one thread and then in parallel, prints the times and sizes, and
+     * checks that the parallel stream inflates back to the file.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File f = new java.io.File(args[0]);
+        int level = (args.length > 1 ? Integer.parseInt(args[1]) : Deflater.DEFAULT_COMPRESSION);
+        ParallelDeflater deflater = getInstance();
+        System.out.println( "threads=" + deflater.getThreads() + " block=" + deflater.getBlockSize() + " split=" + canSplit() );
+
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        java.util.zip.DeflaterOutputStream dout = new java.util.zip.DeflaterOutputStream( serial, new Deflater(level, true), 65536 );
+        InputStream in = new FileInputStream(f);
+        BufferPool.getDefault().copy(in, dout);
+        in.close();
+        dout.finish();
+        System.out.println( "serial: " + serial.size() + " bytes in " + (System.currentTimeMillis()-start) + "ms" );
+
+        start = System.currentTimeMillis();
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        in = new FileInputStream(f);
+        long size = deflater.deflate(in, parallel, level, crc);
+        in.close();
+        System.out.println( "parallel: " + parallel.size() + " bytes in " + (System.currentTimeMillis()-start) + "ms" );
+
+        Inflater inflater = new Inflater(true);
+        //A raw inflater wants one byte more than the stream
+        parallel.write(0);
+        inflater.setInput( parallel.toByteArray() );
+        byte[] buffer = new byte[65536];
+        CRC32 check = new CRC32();
+        long total = 0L;
+        while ( !inflater.finished() )
+        {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && inflater.needsInput()) throw new IOException("Stream ended early");
+            check.update(buffer, 0, count);
+            total += count;
+        }
+        System.out.println( "verified: " + (total == size && total == f.length() && check.getValue() == crc.getValue()) );
+    }
+
+    /**
+     * Creates the pool.
+     */
+    private ParallelDeflater()
+    {
+        _threads = (int)SystemProperties.getLong( "parallel_deflate_threads", Runtime.getRuntime().availableProcessors() );
+        _blockSize = (int)Math.max( DICTIONARY_SIZE, SystemProperties.getLong("parallel_deflate_block", 131072L) );
+        final AtomicInteger count = new AtomicInteger();
+        _workers = new ThreadPoolExecutor
+        (
+            _threads, _threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread( r, "ParallelDeflater-" + count.incrementAndGet() );
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+        _workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the pool, creating it if needed.
+     *
+     * @return ParallelDeflater
+     */
+    public static synchronized ParallelDeflater getInstance()
+    {
+        if (_instance == null) _instance = new ParallelDeflater();
+        return _instance;
+    }
+
+    /**
+     * Returns whether parallel deflating is turned on and there is more than one processor
+     * to do it with.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return ( !"0".equals(System.getProperty("use_parallel_deflate")) && getInstance().getThreads() > 1 );
+    }
+
+    /**
+     * Returns whether a single stream can be cut into blocks that are deflated in parallel.
+     * This needs a Java 7 or later jvm.
+     *
+     * @return boolean
+     */
+    public static boolean canSplit()
+    {
+        return (DEFLATE_FLUSH != null && isEnabled());
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return int
+     */
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    /**
+     * Returns the size of the blocks a stream is cut into.
+     *
+     * @return int
+     */
+    public int getBlockSize()
+    {
+        return _blockSize;
+    }
+
+    /**
+     * Runs the given task on the worker threads. This is for deflating small things whole,
+     * such as the small files of a zip archive.
+     *
+     * @param task The task.
+     * @return Future
+     */
+    public Future submit(Callable task)
+    {
+        return _workers.submit(task);
+    }
+
+    /**
+     * Deflates the input to the output as a raw deflate stream (no zlib or gzip wrapper) and
+     * returns the number of bytes read. The crc of what was read is added to the given crc.
+     * Neither stream is closed. If the stream cannot be split (see canSplit()) it is deflated
+     * on the calling thread.
+     *
+     * @param in The input.
+     * @param out The output.
+     * @param level The deflate level.
+     * @param crc The crc to update.
+     * @return long
+     * @throws IOException if an error occurs reading, deflating, or writing.
+     */
+    public long deflate(InputStream in, OutputStream out, int level, CRC32 crc) throws IOException
+    {
+        if ( !canSplit() ) return deflateSerial(in, out, level, crc);
+
+        LinkedList pending = new LinkedList();
+        int lookAhead = _threads * 2;
+        long total = 0L;
+        try
+        {
+            byte[] previous = null;
+            byte[] current = readBlock(in);
+            if (current == null) current = new byte[0];
+            while (current != null)
+            {
+                byte[] next = readBlock(in);
+                pending.add( _workers.submit(new BlockTask(current, previous, level, next == null)) );
+                previous = current;
+                current = next;
+                while ( pending.size() > lookAhead || (current == null && !pending.isEmpty()) )
+                {
+                    total += writeBlock( (Future)pending.removeFirst(), out, crc );
+                }
+            }
+        }
+        finally
+        {
+            //Anything still running is of no use if we failed
+            while ( !pending.isEmpty() )
+            {
+                ( (Future)pending.removeFirst() ).cancel(false);
+            }
+        }
+        BufferPool.getDefault().moved(total);
+        return total;
+    }
+
+    /**
+     * Gzips the input to the output and returns the number of bytes read. Neither stream is
+     * closed.
+     *
+     * @param in The input.
+     * @param out The output.
+     * @param level The deflate level.
+     * @return long
+     * @throws IOException if an error occurs reading, deflating, or writing.
+     */
+    public long gzip(InputStream in, OutputStream out, int level) throws IOException
+    {
+        //Magic, deflate, no flags, no time, no extra flags, unix
+        out.write( new byte[] { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, 3 } );
+        CRC32 crc = new CRC32();
+        long size = deflate(in, out, level, crc);
+        long value = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i=0; i<4; i++)
+        {
+            trailer[i] = (byte)(value >>> (8*i));
+            trailer[i+4] = (byte)(size >>> (8*i));
+        }
+        out.write(trailer);
+        return size;
+    }
+
+    /**
+     * Waits for the given block and writes it.
+     *
+     * @param future The block's future.
+     * @param out The output.
+     * @param crc The crc to update.
+     * @return int The number of uncompressed bytes in the block.
+     * @throws IOException if the block could not be deflated or written.
+     */
+    private int writeBlock(Future future, OutputStream out, CRC32 crc) throws IOException
+    {
+        BlockTask block = (BlockTask)get(future);
+        out.write( block.getOutput(), 0, block.getOutputLength() );
+        crc.update( block.getInput() );
+        return block.getInput().length;
+    }
+
+    /**
+     * Returns the result of the given future, turning a failure into an IOException.
+     *
+     * @param future The future.
+     * @return Object
+     * @throws IOException if the task failed or was interrupted.
+     */
+    public static Object get(Future future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deflating");
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            IOException ioe = new IOException("Could not deflate: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Reads the next block of the input, or returns null at the end. The block is only
+     * shorter than the block size at the end of the input.
+     *
+     * @param in The input.
+     * @return byte[]
+     * @throws IOException if an error occurs reading.
+     */
+    private byte[] readBlock(InputStream in) throws IOException
+    {
+        byte[] block = new byte[_blockSize];
+        int length = 0;
+        int count;
+        while ( length < block.length && (count=in.read(block, length, block.length-length)) != -1 )
+        {
+            length += count;
+        }
+        if (length == 0) return null;
+        if (length == block.length) return block;
+        byte[] ret = new byte[length];
+        System.arraycopy(block, 0, ret, 0, length);
+        return ret;
+    }
+
+    /**
+     * Deflates the input on this thread.
+     *
+     * @param in The input.
+     * @param out The output.
+     * @param level The deflate level.
+     * @param crc The crc to update.
+     * @return long
+     * @throws IOException if an error occurs reading or writing.
+     */
+    public static long deflateSerial(InputStream in, OutputStream out, int level, CRC32 crc) throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] input = pool.acquire();
+        byte[] output = pool.acquire();
+        Deflater deflater = new Deflater(level, true);
+        long size = 0L;
+        try
+        {
+            int count;
+            while ( (count=in.read(input)) != -1 )
+            {
+                crc.update(input, 0, count);
+                size += count;
+                deflater.setInput(input, 0, count);
+                while ( !deflater.needsInput() )
+                {
+                    out.write( output, 0, deflater.deflate(output) );
+                }
+            }
+            deflater.finish();
+            while ( !deflater.finished() )
+            {
+                out.write( output, 0, deflater.deflate(output) );
+            }
+        }
+        finally
+        {
+            deflater.end();
+            pool.release(input);
+            pool.release(output);
+            pool.moved(size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns Deflater.deflate(byte[], int, int, int) or null if this jvm does not have it.
+     *
+     * @return Method
+     */
+    private static Method getDeflateFlush()
+    {
+        try
+        {
+            return Deflater.class.getMethod( "deflate", new Class[] { byte[].class, int.class, int.class, int.class } );
+        }
+        catch (NoSuchMethodException nsme)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Deflates one block.
+     */
+    private static class BlockTask implements Callable
+    {
+        private byte[] _input;
+        private byte[] _dictionary;
+        private int _level;
+        private boolean _last;
+        private byte[] _output;
+        private int _outputLength;
+
+        BlockTask(byte[] input, byte[] previous, int level, boolean last)
+        {
+            _input = input;
+            _dictionary = previous;
+            _level = level;
+            _last = last;
+        }
+
+        byte[] getInput()
+        {
+            return _input;
+        }
+
+        byte[] getOutput()
+        {
+            return _output;
+        }
+
+        int getOutputLength()
+        {
+            return _outputLength;
+        }
+
+        public Object call() throws Exception
+        {
+            Deflater deflater = new Deflater(_level, true);
+            try
+            {
+                if (_dictionary != null)
+                {
+                    int length = Math.min(DICTIONARY_SIZE, _dictionary.length);
+                    deflater.setDictionary(_dictionary, _dictionary.length-length, length);
+                }
+                deflater.setInput(_input);
+                _output = new byte[_input.length + (_input.length >> 3) + 64];
+                if (_last)
+                {
+                    deflater.finish();
+                    while ( !deflater.finished() )
+                    {
+                        grow();
+                        _outputLength += deflater.deflate(_output, _outputLength, _output.length-_outputLength);
+                    }
+                }
+                else
+                {
+                    //A sync flush fills the buffer when it has more to write
+                    int count;
+                    do
+                    {
+                        grow();
+                        int space = _output.length - _outputLength;
+                        count = ( (Integer)DEFLATE_FLUSH.invoke
+                        (
+                            deflater, new Object[] { _output, new Integer(_outputLength), new Integer(space), new Integer(SYNC_FLUSH) }
+                        ) ).intValue();
+                        _outputLength += count;
+                        if (count < space) break;
+                    }
+                    while (true);
+                }
+            }
+            finally
+            {
+                deflater.end();
+            }
+            return this;
+        }
+
+        private void grow()
+        {
+            if (_output.length - _outputLength >= 1024) return;
+            byte[] output = new byte[_output.length * 2];
+            System.arraycopy(_output, 0, output, 0, _outputLength);
+            _output = output;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.FileFilter;
+import java.io.IOException;
+
+/**
+ * This class is how a file that may already exist is written. The new contents go to a
+ * partial file in the same directory (hidden by FileFilter.PARTIAL_PREFIX) that is renamed
+ * over the target when it is complete. A rename replaces the target's name, not its
+ * contents, so a target that is a hard link (see HashIndex) leaves the other names it is
+ * linked to as they were, and no one ever sees the file half written.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class PartialFile
+{
+    private PartialFile() { }
+
+    /**
+     * Creates an empty partial file for the given target in the target's directory.
+     *
+     * @param target The file that will be written.
+     * @param kind What is writing it, which goes in the partial file's name.
+     * @return java.io.File
+     * @throws IOException if the partial file cannot be created.
+     */
+    public static java.io.File create(java.io.File target, String kind) throws IOException
+    {
+        return java.io.File.createTempFile( FileFilter.PARTIAL_PREFIX+kind+"-", "", target.getAbsoluteFile().getParentFile() );
+    }
+
+    /**
+     * Renames the partial file over the target and returns the bytes the old target held
+     * that are now free, so the caller can give them back to the user's Quota. A target that
+     * was not there, or that is still held by another hard link, frees nothing. If the
+     * partial file cannot be renamed it is deleted.
+     *
+     * @param partial The partial file.
+     * @param target The file to replace.
+     * @return long
+     * @throws IOException if the partial file cannot be renamed.
+     */
+    public static long replace(java.io.File partial, java.io.File target) throws IOException
+    {
+        long ret = ( target.isFile() && HardLinks.getLinkCount(target) == 1 ? target.length() : 0L );
+        //Windows will not rename over an existing file
+        if ( !partial.renameTo(target) && !(target.delete() && partial.renameTo(target)) )
+        {
+            partial.delete();
+            throw new IOException( "Could not write "+target.getName() );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,105 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * This class opens files for writing at their final size when the size is known up front.
+ * A file that grows a block at a time as it is written is given its space in pieces, which
+ * fragments large files on ext4 and xfs and slows reading them back later. Setting the
+ * length first tells the file system how big the file is going to be before any of it is
+ * written. The writer then sets the real length with finish() when it is done, so a size
+ * that was only a guess (such as the rest of an upload request) is cut back.<br><br>
+ *
+ * Java does not reach fallocate, so the length is set with RandomAccessFile.setLength. On
+ * file systems where that leaves a sparse file the space is still given out as it is
+ * written. Only files of at least getThreshold() bytes (the System property
+ * preallocate_size, default 1mb) are preallocated. Setting the System property
+ * use_preallocate to "0" turns it off.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class Preallocator
+{
+    private Preallocator() { }
+
+    /**
+     * Returns whether files are preallocated.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return !"0".equals( System.getProperty("use_preallocate") );
+    }
+
+    /**
+     * Returns the size in bytes at or above which files are preallocated.
+     *
+     * @return long
+     */
+    public static long getThreshold()
+    {
+        return SystemProperties.getLong("preallocate_size", 1048576L);
+    }
+
+    /**
+     * Opens the given file for writing from the start. Anything in it is removed and, if the
+     * expected size is large enough, it is set to that size.
+     *
+     * @param f The file.
+     * @param size The expected size or -1 if it is not known.
+     * @return RandomAccessFile
+     * @throws IOException if the file cannot be opened.
+     */
+    public static RandomAccessFile open(java.io.File f, long size) throws IOException
+    {
+        RandomAccessFile ret = new RandomAccessFile(f, "rw");
+        try
+        {
+            ret.setLength(0L);
+            extend(ret, size);
+        }
+        catch (IOException ioe)
+        {
+            ret.close();
+            throw ioe;
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the length of the open file to the expected size if it is large enough and the
+     * file is shorter. The file pointer is not moved. If the file system will not make the
+     * file that long it is left as it was.
+     *
+     * @param file The file.
+     * @param size The expected size or -1 if it is not known.
+     */
+    public static void extend(RandomAccessFile file, long size)
+    {
+        if ( !isEnabled() || size < getThreshold() ) return;
+        try
+        {
+            if (file.length() < size) file.setLength(size);
+        }
+        catch (IOException ioe)
+        {
+            //Too big for the file system, it grows as it is written instead
+        }
+    }
+
+    /**
+     * Sets the length of the file to the number of bytes that were written.
+     *
+     * @param file The file.
+     * @param length The number of bytes written.
+     * @throws IOException if the length cannot be set.
+     */
+    public static void finish(RandomAccessFile file, long length) throws IOException
+    {
+        if (file.length() != length) file.setLength(length);
+    }
+}
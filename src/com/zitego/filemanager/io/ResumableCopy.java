@@ -0,0 +1,401 @@
+package com.zitego.filemanager.io;
+
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * This class copies a file in a way that can be picked back up if the copy is cut short.
+ * The data is written to a partial file next to the target (the target name prefixed
+ * with FileFilter.PARTIAL_PREFIX) using positional FileChannel transfers. Every so often
+ * the partial file is forced to disk and a checkpoint file is written recording how many
+ * bytes are safely on disk along with the source length, the source last modified time,
+ * and a CRC32 of the last block before the checkpoint. When the copy is done the partial
+ * file is renamed to the target in one step, so the target is never seen half written.<br><br>
+ *
+ * If a copy to the same target is started again and a checkpoint exists, the checkpoint is
+ * verified against the source and the partial file. If everything matches then the copy
+ * resumes from the checkpointed offset. Otherwise it starts over from zero.<br><br>
+ *
+ * Files at or above BulkCopy.getThreshold() bytes are copied with direct I/O (see
+ * BulkCopy) so that they do not push everything else out of the page cache. Direct writes
+ * must start on a block boundary, which every checkpoint of a direct copy is on. A copy
+ * resumed from any other offset, or one the file system will not open for direct I/O, goes
+ * through the page cache instead.<br><br>
+ *
+ * FileSystemObject.copyTo uses this for files at or above getThreshold() bytes. The threshold
+ * defaults to 256mb and can be changed with the System property resumable_copy_size.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ResumableCopy
+{
+    /** The suffix of the checkpoint file. */
+    public static final String CHECKPOINT_SUFFIX = ".ckpt";
+    /** The number of bytes at the end of each checkpoint that are verified on resume. */
+    private static final int VERIFY_SIZE = 65536;
+    /** The source file. */
+    private java.io.File _source;
+    /** The target file. */
+    private java.io.File _target;
+    /** The partial file. */
+    private java.io.File _partial;
+    /** The checkpoint file. */
+    private java.io.File _checkpoint;
+    /** The number of bytes to transfer at a time. Default is 8mb. */
+    private long _chunkSize = 8388608L;
+    /** The number of bytes between checkpoints. Default is 64mb. */
+    private long _checkpointInterval = 67108864L;
+    /** The offset the last copy resumed from. */
+    private long _resumedFrom = 0L;
+    /** The most bytes to read at a time with direct I/O. */
+    private static final int DIRECT_BUFFER_SIZE = 8388608;
+
+    public static void main(String[] args) throws Exception
+    {
+        ResumableCopy copy = new ResumableCopy( new java.io.File(args[0]), new java.io.File(args[1]) );
+        long start = System.currentTimeMillis();
+        copy.copy();
+        System.out.println( "Copied "+args[0]+" to "+args[1]+" resuming from byte "+copy.getResumedFrom()+
+                            " in "+(System.currentTimeMillis()-start)+"ms" );
+    }
+
+    /**
+     * Creates a new copy from the given source to the given target.
+     *
+     * @param source The source file.
+     * @param target The target file.
+     */
+    public ResumableCopy(java.io.File source, java.io.File target)
+    {
+        _source = source;
+        _target = target;
+        _partial = new java.io.File( target.getParentFile(), FileFilter.PARTIAL_PREFIX+target.getName() );
+        _checkpoint = new java.io.File( target.getParentFile(), _partial.getName()+CHECKPOINT_SUFFIX );
+    }
+
+    /**
+     * Returns the size in bytes at or above which files should be copied with a ResumableCopy.
+     *
+     * @return long
+     */
+    public static long getThreshold()
+    {
+        return SystemProperties.getLong("resumable_copy_size", 268435456L);
+    }
+
+    /**
+     * Sets the number of bytes to transfer at a time.
+     *
+     * @param bytes The chunk size.
+     */
+    public void setChunkSize(long bytes)
+    {
+        if (bytes <= 0) throw new IllegalArgumentException("chunk size must be greater than zero");
+        _chunkSize = bytes;
+    }
+
+    /**
+     * Sets the number of bytes between checkpoints.
+     *
+     * @param bytes The checkpoint interval.
+     */
+    public void setCheckpointInterval(long bytes)
+    {
+        if (bytes <= 0) throw new IllegalArgumentException("checkpoint interval must be greater than zero");
+        _checkpointInterval = bytes;
+    }
+
+    /**
+     * Returns the offset the last call to copy resumed from. This is zero if it started over.
+     *
+     * @return long
+     */
+    public long getResumedFrom()
+    {
+        return _resumedFrom;
+    }
+
+    /**
+     * Copies the source to the target, resuming from the last checkpoint if there is a
+     * valid one, and returns the target.
+     *
+     * @return java.io.File
+     * @throws IOException if an error occurs copying the file.
+     */
+    public java.io.File copy() throws IOException
+    {
+        long length = _source.length();
+        long modified = _source.lastModified();
+        long offset = getResumeOffset(length, modified);
+        _resumedFrom = offset;
+
+        FileChannel[] direct = openDirect(offset, length);
+        if (direct != null) copyDirect(direct[0], direct[1], offset, length, modified);
+        else copyBuffered(offset, length, modified);
+
+        if ( !_partial.renameTo(_target) )
+        {
+            //Some platforms will not rename over an existing file
+            if ( !_target.delete() || !_partial.renameTo(_target) ) throw new IOException( "Could not rename copy to "+_target.getName() );
+        }
+        _checkpoint.delete();
+        return _target;
+    }
+
+    /**
+     * Opens the source and the partial file for direct I/O and returns them, or null if the
+     * copy should go through the page cache. That is when the source is under
+     * BulkCopy.getThreshold() bytes, direct I/O is off, the offset is not on a block
+     * boundary, or the file system will not open the files for direct I/O.
+     *
+     * @param offset The offset the copy starts from.
+     * @param length The source length.
+     * @return FileChannel[]
+     * @throws IOException if an error occurs closing a channel that was opened.
+     */
+    private FileChannel[] openDirect(long offset, long length) throws IOException
+    {
+        if ( length < BulkCopy.getThreshold() || !BulkCopy.isDirectIOAvailable() ) return null;
+        if ( offset % getBlockSize() != 0 ) return null;
+        FileChannel in = null;
+        try
+        {
+            in = DirectIO.openForRead(_source);
+            return new FileChannel[] { in, DirectIO.openForUpdate(_partial) };
+        }
+        catch (IOException ioe)
+        {
+            //Not supported here, use the page cache
+            if (in != null) in.close();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the block size direct reads and writes must be multiples of.
+     *
+     * @return int
+     */
+    private int getBlockSize()
+    {
+        return Math.max( DirectIO.getBlockSize(_source), DirectIO.getBlockSize(_target.getAbsoluteFile().getParentFile()) );
+    }
+
+    /**
+     * Copies from the offset to the end with direct I/O. Every buffer but the last is full,
+     * so every checkpoint is on a block boundary. The last block is padded and the partial
+     * file is truncated to the real length at the end. Both channels are closed.
+     *
+     * @param in The source opened for direct reading.
+     * @param out The partial file opened for direct writing.
+     * @param offset The offset to start from.
+     * @param length The source length.
+     * @param modified The source last modified time.
+     * @throws IOException if an error occurs copying.
+     */
+    private void copyDirect(FileChannel in, FileChannel out, long offset, long length, long modified) throws IOException
+    {
+        long start = offset;
+        try
+        {
+            int block = getBlockSize();
+            ByteBuffer buffer = DirectIO.allocate( (int)Math.min(_chunkSize, DIRECT_BUFFER_SIZE), block );
+            //Anything past the checkpoint was never verified
+            if (out.size() > offset) out.truncate(offset);
+            in.position(offset);
+            long lastCheckpoint = offset;
+            while (offset < length)
+            {
+                buffer.clear();
+                int count = BulkCopy.fill(in, buffer, length-offset);
+                buffer.flip();
+                buffer.limit( ((count+block-1) / block) * block );
+                long position = offset;
+                while ( buffer.hasRemaining() )
+                {
+                    position += out.write(buffer, position);
+                }
+                offset += count;
+                if (offset - lastCheckpoint >= _checkpointInterval && offset < length)
+                {
+                    out.force(false);
+                    writeCheckpoint(offset, length, modified);
+                    lastCheckpoint = offset;
+                }
+            }
+            out.truncate(length);
+            out.force(false);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+            BufferPool.getDefault().moved(offset-start);
+        }
+    }
+
+    /**
+     * Copies from the offset to the end through the page cache.
+     *
+     * @param offset The offset to start from.
+     * @param length The source length.
+     * @param modified The source last modified time.
+     * @throws IOException if an error occurs copying.
+     */
+    private void copyBuffered(long offset, long length, long modified) throws IOException
+    {
+        long start = offset;
+        RandomAccessFile in = new RandomAccessFile(_source, "r");
+        RandomAccessFile out = null;
+        try
+        {
+            out = new RandomAccessFile(_partial, "rw");
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+
+            //Anything past the checkpoint was never verified
+            if (dst.size() > offset) dst.truncate(offset);
+            dst.position(offset);
+            Preallocator.extend(out, length);
+            long lastCheckpoint = offset;
+            while (offset < length)
+            {
+                long count = src.transferTo( offset, Math.min(_chunkSize, length-offset), dst );
+                if (count <= 0) throw new IOException( _source.getName()+" changed while it was being copied" );
+                offset += count;
+                if (offset - lastCheckpoint >= _checkpointInterval && offset < length)
+                {
+                    dst.force(false);
+                    writeCheckpoint(offset, length, modified);
+                    lastCheckpoint = offset;
+                }
+            }
+            Preallocator.finish(out, offset);
+            dst.force(false);
+        }
+        finally
+        {
+            in.close();
+            if (out != null) out.close();
+            BufferPool.getDefault().moved(offset-start);
+        }
+    }
+
+    /**
+     * Returns the offset to resume from. The checkpoint must exist, must have been taken
+     * from a source with the same length and last modified time, the partial file must
+     * be at least as long as the checkpoint, and the last block before the checkpoint
+     * must match in the partial file and the source. Otherwise this returns zero.
+     *
+     * @param length The source length.
+     * @param modified The source last modified time.
+     * @return long
+     */
+    private long getResumeOffset(long length, long modified)
+    {
+        if ( !_checkpoint.exists() || !_partial.exists() ) return 0L;
+        try
+        {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(_checkpoint);
+            try
+            {
+                props.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+            long offset = Long.parseLong( props.getProperty("offset") );
+            if ( Long.parseLong(props.getProperty("length")) != length ) return 0L;
+            if ( Long.parseLong(props.getProperty("modified")) != modified ) return 0L;
+            if (offset > length || _partial.length() < offset) return 0L;
+
+            long crc = Long.parseLong( props.getProperty("crc") );
+            if ( crc != getTailCrc(_partial, offset) || crc != getTailCrc(_source, offset) ) return 0L;
+            return offset;
+        }
+        catch (Exception e)
+        {
+            //A checkpoint that cannot be read means we start over
+            return 0L;
+        }
+    }
+
+    /**
+     * Writes the checkpoint file. The partial file must have been forced to disk up to the
+     * offset.
+     *
+     * @param offset The number of bytes safely on disk.
+     * @param length The source length.
+     * @param modified The source last modified time.
+     * @throws IOException if an error occurs writing the checkpoint.
+     */
+    private void writeCheckpoint(long offset, long length, long modified) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty( "offset", String.valueOf(offset) );
+        props.setProperty( "length", String.valueOf(length) );
+        props.setProperty( "modified", String.valueOf(modified) );
+        props.setProperty( "crc", String.valueOf(getTailCrc(_partial, offset)) );
+        FileOutputStream out = new FileOutputStream(_checkpoint);
+        try
+        {
+            props.store(out, null);
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the CRC32 of the block of the given file that ends at the given offset.
+     *
+     * @param f The file.
+     * @param offset The end of the block.
+     * @return long
+     * @throws IOException if an error occurs reading the file.
+     */
+    private static long getTailCrc(java.io.File f, long offset) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try
+        {
+            return getTailCrc(in.getChannel(), offset);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the CRC32 of the block of the given channel that ends at the given offset.
+     * This uses positional reads so the channel position is not changed.
+     *
+     * @param channel The channel.
+     * @param offset The end of the block.
+     * @return long
+     * @throws IOException if an error occurs reading the channel.
+     */
+    private static long getTailCrc(FileChannel channel, long offset) throws IOException
+    {
+        long start = Math.max(0L, offset-VERIFY_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate( (int)(offset-start) );
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read(buffer, start+buffer.position()) < 0 ) throw new EOFException();
+        }
+        CRC32 crc = new CRC32();
+        crc.update( buffer.array(), 0, buffer.position() );
+        return crc.getValue();
+    }
+}
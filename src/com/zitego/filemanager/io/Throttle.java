@@ -0,0 +1,67 @@
+package com.zitego.filemanager.io;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This limits one transfer to all of the token buckets that apply to it, for example the
+ * global limit, the user's limit, and the session's limit. Each chunk is reserved on every
+ * bucket and the transfer waits for the slowest of them. Get one from Bandwidth.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Bandwidth
+ */
+public class Throttle
+{
+    /** The most bytes to reserve at once so that transfers take turns. */
+    public static final int CHUNK_SIZE = 16384;
+    /** The buckets. */
+    private TokenBucket[] _buckets;
+
+    /**
+     * Creates a new throttle over the given buckets.
+     *
+     * @param buckets The buckets.
+     */
+    public Throttle(TokenBucket[] buckets)
+    {
+        _buckets = buckets;
+    }
+
+    /**
+     * Waits until the given number of bytes may be sent. Callers should not ask for more
+     * than CHUNK_SIZE bytes at a time.
+     *
+     * @param bytes The number of bytes.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException
+    {
+        long wait = 0L;
+        for (int i=0; i<_buckets.length; i++)
+        {
+            wait = Math.max( wait, _buckets[i].reserve(bytes) );
+        }
+        sleep(wait);
+    }
+
+    /**
+     * Sleeps for the given number of nanoseconds.
+     *
+     * @param nanos The time to sleep.
+     * @throws InterruptedIOException if the thread is interrupted.
+     */
+    static void sleep(long nanos) throws InterruptedIOException
+    {
+        if (nanos <= 0) return;
+        try
+        {
+            Thread.sleep( nanos/1000000L, (int)(nanos%1000000L) );
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
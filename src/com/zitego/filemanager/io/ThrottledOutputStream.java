@@ -0,0 +1,49 @@
+package com.zitego.filemanager.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This is an output stream that writes no faster than its Throttle allows. Writes are
+ * split into chunks of at most Throttle.CHUNK_SIZE bytes so that transfers sharing a
+ * limit take turns.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ThrottledOutputStream extends FilterOutputStream
+{
+    /** The throttle. */
+    private Throttle _throttle;
+
+    /**
+     * Creates a new throttled stream.
+     *
+     * @param out The stream to write to.
+     * @param throttle The throttle.
+     */
+    public ThrottledOutputStream(OutputStream out, Throttle throttle)
+    {
+        super(out);
+        _throttle = throttle;
+    }
+
+    public void write(int b) throws IOException
+    {
+        _throttle.acquire(1);
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int count = Math.min(len, Throttle.CHUNK_SIZE);
+            _throttle.acquire(count);
+            out.write(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.zitego.filemanager.io;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This is a token bucket that limits a flow of bytes to a rate in bytes per second. It is
+ * kept as a virtual clock rather than a count of tokens: every reservation moves the time
+ * the bucket is paid up to forward by the time those bytes take at the rate, and the
+ * caller waits until that time comes (less the burst allowance). Reservations are served
+ * in the order they are made, so transfers sharing a bucket and asking for small chunks at
+ * a time each get a fair share of it.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see Throttle
+ */
+public class TokenBucket
+{
+    /** How far ahead of the rate a flow may burst in nanoseconds. */
+    private static final long BURST = 250000000L;
+    /** The rate in bytes per second. */
+    private long _rate;
+    /** The time all reserved bytes are paid for. */
+    private long _paidUntil;
+    /** When the bucket was last used. */
+    private volatile long _lastUsed = System.currentTimeMillis();
+
+    /**
+     * Creates a new bucket with the given rate.
+     *
+     * @param rate The rate in bytes per second.
+     * @throws IllegalArgumentException if the rate is not positive.
+     */
+    public TokenBucket(long rate) throws IllegalArgumentException
+    {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be greater than zero");
+        _rate = rate;
+        _paidUntil = System.nanoTime();
+    }
+
+    /**
+     * Returns the rate in bytes per second.
+     *
+     * @return long
+     */
+    public long getRate()
+    {
+        return _rate;
+    }
+
+    /**
+     * Returns when the bucket was last used in milliseconds.
+     *
+     * @return long
+     */
+    public long getLastUsed()
+    {
+        return _lastUsed;
+    }
+
+    /**
+     * Reserves the given number of bytes and returns how many nanoseconds the caller must
+     * wait before sending them.
+     *
+     * @param bytes The number of bytes.
+     * @return long
+     */
+    public long reserve(long bytes)
+    {
+        long now = System.nanoTime();
+        _lastUsed = System.currentTimeMillis();
+        synchronized (this)
+        {
+            if (_paidUntil < now) _paidUntil = now;
+            long wait = _paidUntil - now - BURST;
+            _paidUntil += bytes * 1000000000L / _rate;
+            return (wait > 0 ? wait : 0L);
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes and waits until they may be sent.
+     *
+     * @param bytes The number of bytes.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException
+    {
+        Throttle.sleep( reserve(bytes) );
+    }
+}
@@ -0,0 +1,189 @@
+package com.zitego.filemanager.io;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class sends files with FileChannel.transferTo so that the bytes do not have to be
+ * read into a buffer in the JVM and written back out. When the target is a socket or file
+ * channel the operating system moves the bytes itself (sendfile on linux). Servlet output
+ * streams are usually not channels, so downloads use the container's own sendfile support
+ * when it has it (see ViewFileServlet). Wrapping a stream with Channels.newChannel does not
+ * help, the JDK then copies through a small buffer of its own and is no faster than
+ * BufferPool.<br><br>
+ *
+ * Setting the System property use_zero_copy to "0" turns this off and downloads go back
+ * through FileSystemObject.writeToOutputStream.<br><br>
+ *
+ * Run the main method to compare the stream copy, a transfer into a wrapped stream, and a
+ * transfer straight into a socket channel on a large file.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ZeroCopy
+{
+    /**
+     * Usage: java ZeroCopy &lt;large file&gt; [runs]<br>
+     * Sends the file to a local socket that throws everything away and prints the throughput
+     * of each way of sending it.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        java.io.File file = new java.io.File(args[0]);
+        int runs = (args.length > 1 ? Integer.parseInt(args[1]) : 3);
+        final ServerSocket server = new ServerSocket(0);
+        Thread sink = new Thread()
+        {
+            public void run()
+            {
+                byte[] buffer = new byte[65536];
+                try
+                {
+                    while (true)
+                    {
+                        Socket s = server.accept();
+                        InputStream in = s.getInputStream();
+                        while (in.read(buffer) != -1) { }
+                        s.close();
+                    }
+                }
+                catch (IOException ioe) { }
+            }
+        };
+        sink.setDaemon(true);
+        sink.start();
+
+        String[] names = new String[] { "stream copy", "transferTo wrapped stream", "transferTo socket channel" };
+        for (int run=0; run<runs; run++)
+        {
+            for (int type=0; type<names.length; type++)
+            {
+                SocketChannel socket = SocketChannel.open( new InetSocketAddress("127.0.0.1", server.getLocalPort()) );
+                FileInputStream in = new FileInputStream(file);
+                long start = System.nanoTime();
+                long sent = 0L;
+                try
+                {
+                    if (type == 0)
+                    {
+                        sent = BufferPool.getDefault().copy( in, Channels.newOutputStream(socket) );
+                    }
+                    else
+                    {
+                        FileChannel channel = in.getChannel();
+                        WritableByteChannel out = (type == 1 ? Channels.newChannel(Channels.newOutputStream(socket)) : socket);
+                        sent = transfer( channel, 0L, channel.size(), out );
+                    }
+                }
+                finally
+                {
+                    in.close();
+                    socket.close();
+                }
+                long elapsed = Math.max(1L, (System.nanoTime()-start)/1000000L);
+                System.out.println( "run " + (run+1) + " " + names[type] + ": " + sent + " bytes in " + elapsed + "ms (" +
+                                    (sent/1048576L*1000L/elapsed) + " mb/s)" );
+            }
+        }
+        server.close();
+    }
+
+    /**
+     * Returns whether downloads should use transferTo.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return !"0".equals( System.getProperty("use_zero_copy") );
+    }
+
+    /**
+     * Transfers count bytes of the file channel starting at the given position to the target
+     * channel and returns the number of bytes transferred. The file channel's own position is
+     * not touched. The transfer stops early if the end of the file is reached. If the target
+     * takes nothing through transferTo the rest is copied through a pooled buffer instead.
+     * Neither channel is closed.
+     *
+     * @param in The file channel.
+     * @param position The position to start from.
+     * @param count The number of bytes to transfer.
+     * @param out The target channel.
+     * @return long
+     * @throws IOException if an error occurs transferring.
+     */
+    public static long transfer(FileChannel in, long position, long count, WritableByteChannel out) throws IOException
+    {
+        long ret = 0L;
+        try
+        {
+            while (ret < count)
+            {
+                long sent = in.transferTo(position+ret, count-ret, out);
+                if (sent <= 0L)
+                {
+                    //Nothing moved, so see if the file got shorter
+                    if (position+ret >= in.size()) break;
+                    //Otherwise the target will not take it this way, trying again would never end
+                    ret += copy(in, position+ret, count-ret, out);
+                    break;
+                }
+                ret += sent;
+            }
+        }
+        finally
+        {
+            BufferPool.getDefault().moved(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Copies count bytes of the file channel starting at the given position to the target
+     * channel through a pooled buffer and returns the number of bytes copied. The copy stops
+     * early if the end of the file is reached.
+     *
+     * @param in The file channel.
+     * @param position The position to start from.
+     * @param count The number of bytes to copy.
+     * @param out The target channel.
+     * @return long
+     * @throws IOException if an error occurs copying or the target stops taking bytes.
+     */
+    private static long copy(FileChannel in, long position, long count, WritableByteChannel out) throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquireBuffer();
+        long ret = 0L;
+        try
+        {
+            while (ret < count)
+            {
+                buffer.clear();
+                if (count-ret < buffer.capacity()) buffer.limit( (int)(count-ret) );
+                int read = in.read(buffer, position+ret);
+                if (read <= 0) break;
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                {
+                    //A full non-blocking channel takes nothing
+                    if (out.write(buffer) <= 0) throw new IOException("The target is not taking any more bytes");
+                }
+                ret += read;
+            }
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+        return ret;
+    }
+}
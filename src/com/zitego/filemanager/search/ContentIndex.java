@@ -0,0 +1,1023 @@
+package com.zitego.filemanager.search;
+
+import com.zitego.filemanager.FileTypes;
+import com.zitego.filemanager.HashIndex;
+import com.zitego.filemanager.util.FileFilter;
+import com.zitego.filemanager.util.Hex;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * This is an inverted index of the words in the text files of one user's home directory.
+ * Search uses it to skip the files that cannot contain the text being searched for, so a
+ * search only reads the files that might match instead of every text file under the start
+ * directory. The index is only a filter. Every file it lets through is still read and
+ * matched by Search, and a file that is not in the index or has a different size or last
+ * modified date than when it was indexed is always let through.<br><br>
+ *
+ * A word is a run of letters and digits, folded to one case. Each file is given an id and
+ * each word has a sorted list of the ids of the files it is in. The index is kept in one
+ * file per home directory in the directory given by the System property content_index_dir
+ * (default filemanager-index in java.io.tmpdir) so that it does not count against the
+ * user's space. Since the index holds every user's file names and words, the directory is
+ * made readable only by the user the jvm runs as. If that cannot be done, for instance
+ * because someone else made the directory first, the index is not used. The file holds the files indexed, then the id lists delta encoded, then the
+ * words with where their lists start. The files and words are read into memory when the
+ * index is first used and the id lists are read from disk as they are needed.<br><br>
+ *
+ * The ContentIndexer keeps the index up to date in the background. An update walks the home
+ * directory and only reads the text files that are new or whose size or last modified date
+ * has changed. The index is rewritten with the lists of the files that were kept plus the
+ * new ones, to a partial file that is then renamed into place, every content_index_batch
+ * bytes of text read (default 64mb) so that building the first index of a large home does
+ * not hold all of its words in memory. Files over content_index_max_size bytes (default
+ * 16mb) or with a word longer than MAX_TOKEN are not read and are always searched. Setting
+ * the System property content_index to "0" turns the index off.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see ContentIndexer
+ */
+public class ContentIndex
+{
+    /** The longest word that is indexed. */
+    public static final int MAX_TOKEN = 64;
+    /** The most words a partial word can match before it is no longer used to filter. */
+    private static final int MAX_EXPANSION = 1000;
+    /** Marks the start of an index file. */
+    private static final int MAGIC = 0x5a434958;
+    /** The version of the index file. */
+    private static final int VERSION = 1;
+    /** A word that must match a whole word. */
+    private static final int EXACT = 0;
+    /** A word that must match the start of a word. */
+    private static final int PREFIX = 1;
+    /** A word that must match the end of a word. */
+    private static final int SUFFIX = 2;
+    /** A word that must match any part of a word. */
+    private static final int PART = 3;
+    /** The loaded indexes keyed by home directory. */
+    private static Hashtable _indexes = new Hashtable();
+    /** The directory the indexes are kept in or null before it is made. */
+    private static java.io.File _directory;
+    /** Whether the directory could be made private. */
+    private static boolean _private = false;
+    /** The home directory. */
+    private java.io.File _home;
+    /** The index file. */
+    private java.io.File _file;
+    /** The index as it is on disk or null before it is loaded. */
+    private Snapshot _snapshot;
+    /** Held while updating. */
+    private Object _updateLock = new Object();
+    /** When the last update started or 0 if there has not been one. */
+    private volatile long _lastUpdate = 0L;
+    /** When the index was last asked for or searched. */
+    private volatile long _lastUsed = System.currentTimeMillis();
+    /** Files larger than this are not indexed. */
+    private long _maxSize = SystemProperties.getLong("content_index_max_size", 16777216L);
+    /** The bytes of text read between writes of the index. */
+    private long _batchSize = SystemProperties.getLong("content_index_batch", 67108864L);
+
+    /**
+     * Usage: java ContentIndex &lt;home dir&gt; &lt;text&gt;<br>
+     * Updates the index of the home directory and prints the files that might contain the
+     * text.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        ContentIndex index = getInstance(args[0]);
+        long start = System.currentTimeMillis();
+        index.update();
+        System.out.println( "Indexed " + index.getFileCount() + " files, " + index.getTokenCount() + " words in " + (System.currentTimeMillis()-start) + "ms" );
+        Candidates candidates = index.find(args[1]);
+        Snapshot snapshot = candidates._snapshot;
+        for (int i=0; i<snapshot.entries.length; i++)
+        {
+            Entry entry = snapshot.entries[i];
+            if ( candidates.mayContain(entry.path, entry.modified, entry.size) ) System.out.println(entry.path);
+        }
+    }
+
+    /**
+     * Returns the index for the given home directory. The index is registered with the
+     * ContentIndexer the first time it is asked for. Check isEnabled() first.
+     *
+     * @param home The absolute path of the home directory.
+     * @return ContentIndex
+     * @throws IllegalStateException if the index directory cannot be made private.
+     */
+    public static ContentIndex getInstance(String home)
+    {
+        if (getDirectory() == null) throw new IllegalStateException("The content index directory cannot be made private");
+        home = new java.io.File(home).getAbsolutePath();
+        ContentIndex ret = null;
+        synchronized (_indexes)
+        {
+            ret = (ContentIndex)_indexes.get(home);
+            if (ret != null)
+            {
+                ret._lastUsed = System.currentTimeMillis();
+                return ret;
+            }
+            ret = new ContentIndex(home);
+            _indexes.put(home, ret);
+        }
+        ContentIndexer.getInstance().register(ret);
+        return ret;
+    }
+
+    /**
+     * Drops the given index if it has not been asked for or searched in the given time and
+     * returns whether it was dropped. The index file is kept, so the next time the index is
+     * asked for it is loaded again and brought up to date.
+     *
+     * @param index The index.
+     * @param idle How long it must have gone unused in milliseconds.
+     * @return boolean
+     */
+    static boolean release(ContentIndex index, long idle)
+    {
+        synchronized (_indexes)
+        {
+            if (System.currentTimeMillis() - index._lastUsed < idle) return false;
+            String home = index.getHome().getPath();
+            if (_indexes.get(home) == index) _indexes.remove(home);
+        }
+        //The open index file is not closed for us
+        synchronized (index._updateLock)
+        {
+            synchronized (index)
+            {
+                if (index._snapshot != null) index._snapshot.close();
+                index._snapshot = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether searches use the index. This is true unless the System property
+     * content_index is set to "0".
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return ( !"0".equals(System.getProperty("content_index")) && getDirectory() != null );
+    }
+
+    /**
+     * Returns the directory the indexes are kept in, creating it, or null if it cannot be
+     * made readable only by the user the jvm runs as.
+     *
+     * @return java.io.File
+     */
+    private static synchronized java.io.File getDirectory()
+    {
+        if (_directory == null)
+        {
+            String dir = System.getProperty("content_index_dir");
+            _directory = new java.io.File( dir != null ? dir : System.getProperty("java.io.tmpdir")+"/filemanager-index" );
+            _directory.mkdirs();
+            //Taking the permissions away from everyone fails if it is not our directory
+            _private =
+            (
+                _directory.isDirectory() &&
+                _directory.setReadable(false, false) && _directory.setReadable(true, true) &&
+                _directory.setWritable(false, false) && _directory.setWritable(true, true) &&
+                _directory.setExecutable(false, false) && _directory.setExecutable(true, true)
+            );
+            //Windows cannot take read access away this way, its temporary directory is the user's own
+            if ( !_private && java.io.File.separatorChar == '\\' ) _private = _directory.isDirectory();
+        }
+        return (_private ? _directory : null);
+    }
+
+    /**
+     * Creates the index for the given home directory.
+     *
+     * @param home The absolute path of the home directory.
+     */
+    private ContentIndex(String home)
+    {
+        _home = new java.io.File(home);
+        java.io.File directory = getDirectory();
+        //Named by the home directory so that homes with the same name do not share an index
+        MessageDigest digest = HashIndex.createDigest();
+        try
+        {
+            digest.update( home.getBytes("UTF-8") );
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            //Every jvm has utf-8
+            throw new RuntimeException(uee);
+        }
+        _file = new java.io.File( directory, Hex.toHex(digest.digest()) + ".idx" );
+    }
+
+    /**
+     * Returns the home directory.
+     *
+     * @return java.io.File
+     */
+    public java.io.File getHome()
+    {
+        return _home;
+    }
+
+    /**
+     * Returns when the last update started or 0 if there has not been one since the index
+     * was loaded.
+     *
+     * @return long
+     */
+    public long getLastUpdate()
+    {
+        return _lastUpdate;
+    }
+
+    /**
+     * Returns when the index was last asked for or searched.
+     *
+     * @return long
+     */
+    public long getLastUsed()
+    {
+        return _lastUsed;
+    }
+
+    /**
+     * Returns the number of files in the index.
+     *
+     * @return int
+     * @throws IOException if the index cannot be read.
+     */
+    public synchronized int getFileCount() throws IOException
+    {
+        return load().entries.length;
+    }
+
+    /**
+     * Returns the number of words in the index.
+     *
+     * @return int
+     * @throws IOException if the index cannot be read.
+     */
+    public synchronized int getTokenCount() throws IOException
+    {
+        return load().tokens.length;
+    }
+
+    /**
+     * Returns the files that might contain text matching the given search pattern (see
+     * Search.setContainingTextPattern). Each word in the pattern that is next to a wildcard
+     * can be part of a longer word, so it is matched against the start, end, or any part of
+     * the indexed words by going through all of them. In the search's regular expression a
+     * ? makes the character before it optional, so that character is treated as a wildcard
+     * as well.
+     *
+     * @param pattern The search pattern.
+     * @return ContentIndex.Candidates
+     * @throws IOException if the index cannot be read.
+     */
+    public synchronized Candidates find(String pattern) throws IOException
+    {
+        _lastUsed = System.currentTimeMillis();
+        Snapshot snapshot = load();
+        BitSet ret = null;
+        Vector terms = getTerms(pattern);
+        for (int i=0; i<terms.size(); i++)
+        {
+            Object[] term = (Object[])terms.get(i);
+            BitSet ids = find( snapshot, (String)term[0], ((Integer)term[1]).intValue() );
+            //Matches too many words to be worth it
+            if (ids == null) continue;
+            if (ret == null) ret = ids;
+            else ret.and(ids);
+            if ( ret.isEmpty() ) break;
+        }
+        return new Candidates(snapshot, ret);
+    }
+
+    /**
+     * Returns the ids of the files with a word that matches the given word or null if it
+     * matches more than MAX_EXPANSION words.
+     *
+     * @param snapshot The index.
+     * @param token The word.
+     * @param kind How the word is matched.
+     * @return BitSet
+     * @throws IOException if the index cannot be read.
+     */
+    private BitSet find(Snapshot snapshot, String token, int kind) throws IOException
+    {
+        String[] tokens = snapshot.tokens;
+        Vector matches = new Vector();
+        if (kind == EXACT)
+        {
+            int index = Arrays.binarySearch(tokens, token);
+            if (index >= 0) matches.add( new Integer(index) );
+        }
+        else if (kind == PREFIX)
+        {
+            int index = Arrays.binarySearch(tokens, token);
+            if (index < 0) index = -index - 1;
+            for (; index<tokens.length && tokens[index].startsWith(token); index++)
+            {
+                matches.add( new Integer(index) );
+                if (matches.size() > MAX_EXPANSION) return null;
+            }
+        }
+        else
+        {
+            for (int i=0; i<tokens.length; i++)
+            {
+                if ( kind == SUFFIX ? tokens[i].endsWith(token) : tokens[i].indexOf(token) > -1 )
+                {
+                    matches.add( new Integer(i) );
+                    if (matches.size() > MAX_EXPANSION) return null;
+                }
+            }
+        }
+        BitSet ret = new BitSet(snapshot.entries.length);
+        for (int i=0; i<matches.size(); i++)
+        {
+            int[] ids = readPostings( snapshot, ((Integer)matches.get(i)).intValue() );
+            for (int j=0; j<ids.length; j++)
+            {
+                ret.set(ids[j]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Brings the index up to date with the home directory. Files that have not changed since
+     * they were indexed are kept without being read. Only one update runs at a time.
+     *
+     * @throws IOException if the index cannot be written.
+     */
+    public void update() throws IOException
+    {
+        synchronized (_updateLock)
+        {
+            long start = System.currentTimeMillis();
+            Snapshot old = null;
+            synchronized (this)
+            {
+                old = load();
+            }
+            Hashtable found = new Hashtable();
+            walk(_home, "", found);
+
+            //Keep the files that have not changed in the order they were in
+            int[] remap = new int[old.entries.length];
+            Vector entries = new Vector();
+            for (int i=0; i<old.entries.length; i++)
+            {
+                Entry entry = old.entries[i];
+                Entry current = (Entry)found.get(entry.path);
+                if ( current != null && current.modified == entry.modified && current.size == entry.size )
+                {
+                    //Changed files are left to be read again below
+                    found.remove(entry.path);
+                    remap[i] = entries.size();
+                    entries.add( new Entry(entry.path, entries.size(), entry.modified, entry.size, entry.scan) );
+                }
+                else
+                {
+                    remap[i] = -1;
+                }
+            }
+            boolean changed = ( !found.isEmpty() || entries.size() != old.entries.length );
+
+            //Index what is left in batches
+            TreeMap pending = new TreeMap();
+            long bytes = 0L;
+            for (Iterator i=found.values().iterator(); i.hasNext();)
+            {
+                Entry entry = (Entry)i.next();
+                java.io.File f = new java.io.File( _home, entry.path.substring(1) );
+                HashSet tokens = new HashSet();
+                if (entry.size > _maxSize)
+                {
+                    entry.scan = true;
+                }
+                else
+                {
+                    try
+                    {
+                        entry.scan = !tokenize(f, tokens);
+                    }
+                    catch (IOException ioe)
+                    {
+                        //Deleted or not readable, it is picked up the next time if it is back
+                        continue;
+                    }
+                    //Changed while it was being read
+                    if ( f.lastModified() != entry.modified || f.length() != entry.size ) continue;
+                    bytes += entry.size;
+                }
+                entry.id = entries.size();
+                entries.add(entry);
+                if (entry.scan) continue;
+                for (Iterator j=tokens.iterator(); j.hasNext();)
+                {
+                    Object token = j.next();
+                    IntList ids = (IntList)pending.get(token);
+                    if (ids == null)
+                    {
+                        ids = new IntList();
+                        pending.put(token, ids);
+                    }
+                    ids.add(entry.id);
+                }
+                if (bytes >= _batchSize)
+                {
+                    old = write(old, remap, entries, pending);
+                    remap = null;
+                    pending = new TreeMap();
+                    bytes = 0L;
+                }
+            }
+            if (changed) write(old, remap, entries, pending);
+            _lastUpdate = start;
+        }
+    }
+
+    /**
+     * Adds the text files in the given directory and below it to the table keyed by root
+     * path. The file manager's own files are skipped.
+     *
+     * @param dir The directory.
+     * @param rootPath The root path of the directory or an empty string for the home directory.
+     * @param found The files found.
+     */
+    private void walk(java.io.File dir, String rootPath, Hashtable found)
+    {
+        java.io.File[] files = dir.listFiles();
+        if (files == null) return;
+        for (int i=0; i<files.length; i++)
+        {
+            String name = files[i].getName();
+            if ( FileFilter.isReserved(name, rootPath.length() == 0) ) continue;
+            String path = rootPath + "/" + name;
+            if ( files[i].isDirectory() )
+            {
+                walk(files[i], path, found);
+            }
+            else if ( FileTypes.getFileTypeByName(name, false).isText() )
+            {
+                found.put( path, new Entry(path, -1, files[i].lastModified(), files[i].length(), false) );
+            }
+        }
+    }
+
+    /**
+     * Writes the index with the files given, the id lists of the old index with their ids
+     * changed to the new ones, and the pending id lists, then puts it in place of the old
+     * index and returns it.
+     *
+     * @param old The old index.
+     * @param remap The new id of each file in the old index or -1 if it was dropped. If this
+     *              is null the ids are the same.
+     * @param entries The files in the new index in id order.
+     * @param pending The pending id lists keyed by word.
+     * @return Snapshot
+     * @throws IOException if the index cannot be written.
+     */
+    private Snapshot write(Snapshot old, int[] remap, Vector entries, TreeMap pending) throws IOException
+    {
+        java.io.File temp = new java.io.File( _file.getParentFile(), FileFilter.PARTIAL_PREFIX+_file.getName() );
+        Snapshot ret = new Snapshot();
+        ret.entries = new Entry[entries.size()];
+        entries.copyInto(ret.entries);
+        ret.files = new Hashtable();
+        Vector tokens = new Vector();
+        long[] offsets = new long[1024];
+        int[] counts = new int[1024];
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(new FileOutputStream(temp)) );
+        temp.setReadable(false, false);
+        temp.setReadable(true, true);
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ret.entries.length);
+            for (int i=0; i<ret.entries.length; i++)
+            {
+                Entry entry = ret.entries[i];
+                out.writeUTF(entry.path);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.size);
+                out.writeBoolean(entry.scan);
+                ret.files.put(entry.path, entry);
+            }
+            long position = out.size();
+
+            //Merge the old words with the pending ones in order
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Iterator i = pending.entrySet().iterator();
+            Map.Entry next = ( i.hasNext() ? (Map.Entry)i.next() : null );
+            int index = 0;
+            while (index < old.tokens.length || next != null)
+            {
+                int compare = 0;
+                if (index >= old.tokens.length) compare = 1;
+                else if (next == null) compare = -1;
+                else compare = old.tokens[index].compareTo( (String)next.getKey() );
+
+                String token = null;
+                IntList ids = new IntList();
+                if (compare <= 0)
+                {
+                    token = old.tokens[index];
+                    int[] oldIds = readPostings(old, index);
+                    for (int j=0; j<oldIds.length; j++)
+                    {
+                        int id = (remap != null ? remap[oldIds[j]] : oldIds[j]);
+                        if (id >= 0) ids.add(id);
+                    }
+                    index++;
+                }
+                if (compare >= 0)
+                {
+                    token = (String)next.getKey();
+                    //New files always have higher ids than the ones that were kept
+                    ids.addAll( (IntList)next.getValue() );
+                    next = ( i.hasNext() ? (Map.Entry)i.next() : null );
+                }
+                if (ids.size() == 0) continue;
+
+                buffer.reset();
+                int last = 0;
+                for (int j=0; j<ids.size(); j++)
+                {
+                    writeVarInt( buffer, ids.get(j)-last );
+                    last = ids.get(j);
+                }
+                buffer.writeTo(out);
+
+                int count = tokens.size();
+                if (count+1 >= offsets.length)
+                {
+                    offsets = Arrays.copyOf(offsets, offsets.length*2);
+                    counts = Arrays.copyOf(counts, counts.length*2);
+                }
+                tokens.add(token);
+                offsets[count] = position;
+                counts[count] = ids.size();
+                position += buffer.size();
+            }
+
+            //The words go at the end with where their lists start
+            int count = tokens.size();
+            offsets[count] = position;
+            out.writeInt(count);
+            for (int j=0; j<count; j++)
+            {
+                out.writeUTF( (String)tokens.get(j) );
+                out.writeLong(offsets[j]);
+                out.writeInt(counts[j]);
+            }
+            out.writeLong(position);
+        }
+        catch (IOException ioe)
+        {
+            out.close();
+            temp.delete();
+            throw ioe;
+        }
+        out.close();
+
+        ret.tokens = new String[tokens.size()];
+        tokens.copyInto(ret.tokens);
+        ret.offsets = Arrays.copyOf(offsets, ret.tokens.length+1);
+        ret.counts = Arrays.copyOf(counts, ret.tokens.length);
+        install(temp, ret);
+        return ret;
+    }
+
+    /**
+     * Puts the newly written index in place of the old one. This waits for any search that
+     * is reading the old one.
+     *
+     * @param temp The new index file.
+     * @param snapshot The new index.
+     * @throws IOException if the file cannot be renamed or opened.
+     */
+    private synchronized void install(java.io.File temp, Snapshot snapshot) throws IOException
+    {
+        if (_snapshot != null) _snapshot.close();
+        _snapshot = null;
+        //Windows will not rename over an existing file
+        if ( !temp.renameTo(_file) && !(_file.delete() && temp.renameTo(_file)) )
+        {
+            temp.delete();
+            throw new IOException("Could not write "+_file.getPath());
+        }
+        snapshot.file = new RandomAccessFile(_file, "r");
+        _snapshot = snapshot;
+    }
+
+    /**
+     * Returns the index, reading the index file the first time it is needed. If the file is
+     * missing or cannot be read the index is empty.
+     *
+     * @return Snapshot
+     */
+    private Snapshot load()
+    {
+        if (_snapshot != null) return _snapshot;
+        Snapshot ret = new Snapshot();
+        try
+        {
+            if ( _file.exists() ) read(ret);
+        }
+        catch (IOException ioe)
+        {
+            //Left by an older version or cut short, it is built again
+            ret.close();
+            ret = new Snapshot();
+            _file.delete();
+        }
+        if (ret.tokens == null)
+        {
+            ret.entries = new Entry[0];
+            ret.files = new Hashtable();
+            ret.tokens = new String[0];
+            ret.offsets = new long[] { 0L };
+            ret.counts = new int[0];
+        }
+        _snapshot = ret;
+        return ret;
+    }
+
+    /**
+     * Reads the index file into the given snapshot.
+     *
+     * @param snapshot The snapshot.
+     * @throws IOException if the file cannot be read.
+     */
+    private void read(Snapshot snapshot) throws IOException
+    {
+        snapshot.file = new RandomAccessFile(_file, "r");
+        FileChannel channel = snapshot.file.getChannel();
+        //The streams are not closed since that would close the file
+        DataInputStream in = new DataInputStream( new BufferedInputStream(Channels.newInputStream(channel)) );
+        if ( in.readInt() != MAGIC || in.readInt() != VERSION ) throw new IOException( _file.getPath()+" is not a content index" );
+        Entry[] entries = new Entry[in.readInt()];
+        Hashtable files = new Hashtable();
+        for (int i=0; i<entries.length; i++)
+        {
+            entries[i] = new Entry( in.readUTF(), i, in.readLong(), in.readLong(), in.readBoolean() );
+            files.put(entries[i].path, entries[i]);
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        readFully( channel, trailer, channel.size()-8 );
+        long end = trailer.getLong(0);
+        channel.position(end);
+        in = new DataInputStream( new BufferedInputStream(Channels.newInputStream(channel)) );
+        String[] tokens = new String[in.readInt()];
+        long[] offsets = new long[tokens.length+1];
+        int[] counts = new int[tokens.length];
+        for (int i=0; i<tokens.length; i++)
+        {
+            tokens[i] = in.readUTF();
+            offsets[i] = in.readLong();
+            counts[i] = in.readInt();
+        }
+        offsets[tokens.length] = end;
+
+        snapshot.entries = entries;
+        snapshot.files = files;
+        snapshot.tokens = tokens;
+        snapshot.offsets = offsets;
+        snapshot.counts = counts;
+    }
+
+    /**
+     * Returns the ids of the files with the word at the given index.
+     *
+     * @param snapshot The index.
+     * @param index The index of the word.
+     * @return int[]
+     * @throws IOException if the index cannot be read.
+     */
+    private static int[] readPostings(Snapshot snapshot, int index) throws IOException
+    {
+        long start = snapshot.offsets[index];
+        ByteBuffer buffer = ByteBuffer.allocate( (int)(snapshot.offsets[index+1]-start) );
+        //Positional reads so that the update can read while a search does
+        readFully( snapshot.file.getChannel(), buffer, start );
+        byte[] bytes = buffer.array();
+        int[] ret = new int[snapshot.counts[index]];
+        int pos = 0;
+        int last = 0;
+        for (int i=0; i<ret.length; i++)
+        {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                if (pos >= bytes.length) throw new IOException("The content index is corrupt");
+                b = bytes[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ( (b & 0x80) != 0 );
+            last += value;
+            ret[i] = last;
+        }
+        return ret;
+    }
+
+    /**
+     * Reads from the channel at the given position until the buffer is full.
+     *
+     * @param channel The channel.
+     * @param buffer The buffer.
+     * @param position The position to read from.
+     * @throws IOException if the end of the file is reached first.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            int count = channel.read( buffer, position+buffer.position() );
+            if (count < 0) throw new EOFException("The content index is cut short");
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value)
+    {
+        while ( (value & ~0x7f) != 0 )
+        {
+            out.write( (value & 0x7f) | 0x80 );
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Adds the words in the given file to the set and returns whether all of them were
+     * added. If the file has a word longer than MAX_TOKEN false is returned and the set
+     * is left incomplete. The file is read the same way Search reads it.
+     *
+     * @param f The file.
+     * @param tokens The words.
+     * @return boolean
+     * @throws IOException if the file cannot be read.
+     */
+    private static boolean tokenize(java.io.File f, HashSet tokens) throws IOException
+    {
+        Reader in = new BufferedReader( new FileReader(f) );
+        try
+        {
+            char[] buffer = new char[8192];
+            StringBuffer token = new StringBuffer();
+            int count;
+            while ( (count=in.read(buffer)) != -1 )
+            {
+                for (int i=0; i<count; i++)
+                {
+                    char c = buffer[i];
+                    if ( Character.isLetterOrDigit(c) )
+                    {
+                        if (token.length() == MAX_TOKEN) return false;
+                        token.append( fold(c) );
+                    }
+                    else if (token.length() > 0)
+                    {
+                        tokens.add( token.toString() );
+                        token.setLength(0);
+                    }
+                }
+            }
+            if (token.length() > 0) tokens.add( token.toString() );
+            return true;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the words in the given search pattern as { String word, Integer kind } where
+     * kind is how the word is matched against the indexed words. Words longer than
+     * MAX_TOKEN are left out since only files that are always searched can have them.
+     *
+     * @param pattern The search pattern.
+     * @return Vector
+     */
+    private static Vector getTerms(String pattern)
+    {
+        //Split it into the parts that have to appear as they are
+        Vector parts = new Vector();
+        StringBuffer part = new StringBuffer();
+        for (int i=0; i<pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?')
+            {
+                //The character before a ? is optional
+                if (c == '?' && part.length() > 0) part.setLength( part.length()-1 );
+                if (part.length() > 0) parts.add( part.toString() );
+                part.setLength(0);
+            }
+            else
+            {
+                part.append(c);
+            }
+        }
+        if (part.length() > 0) parts.add( part.toString() );
+
+        //A word at either end of a part may run into whatever the wildcard matches
+        Vector ret = new Vector();
+        for (int i=0; i<parts.size(); i++)
+        {
+            String text = (String)parts.get(i);
+            int start = -1;
+            for (int j=0; j<=text.length(); j++)
+            {
+                boolean letter = ( j < text.length() && Character.isLetterOrDigit(text.charAt(j)) );
+                if (letter && start < 0)
+                {
+                    start = j;
+                }
+                else if (!letter && start >= 0)
+                {
+                    if (j-start <= MAX_TOKEN)
+                    {
+                        StringBuffer token = new StringBuffer(j-start);
+                        for (int k=start; k<j; k++)
+                        {
+                            token.append( fold(text.charAt(k)) );
+                        }
+                        int kind = EXACT;
+                        if ( start == 0 && j == text.length() ) kind = PART;
+                        else if (start == 0) kind = SUFFIX;
+                        else if ( j == text.length() ) kind = PREFIX;
+                        ret.add( new Object[] { token.toString(), new Integer(kind) } );
+                    }
+                    start = -1;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the given character folded to one case. Going through upper case first
+     * makes characters such as the dotless i fold the same way as the letters they match
+     * in a search that is not case sensitive.
+     *
+     * @param c The character.
+     * @return char
+     */
+    private static char fold(char c)
+    {
+        return Character.toLowerCase( Character.toUpperCase(c) );
+    }
+
+    /**
+     * These are the files a search might find the text in. It is worked out from the index
+     * as it was when the search started.
+     */
+    public static class Candidates
+    {
+        /** The index. */
+        private Snapshot _snapshot;
+        /** The ids of the indexed files that might match or null if they all might. */
+        private BitSet _ids;
+
+        private Candidates(Snapshot snapshot, BitSet ids)
+        {
+            _snapshot = snapshot;
+            _ids = ids;
+        }
+
+        /**
+         * Returns whether the file at the given root path might contain the text. This is
+         * true unless the file is in the index with the same last modified date and size
+         * and the index says it does not.
+         *
+         * @param rootPath The root path of the file.
+         * @param lastModified The file's last modified date.
+         * @param size The file's size.
+         * @return boolean
+         */
+        public boolean mayContain(String rootPath, long lastModified, long size)
+        {
+            Entry entry = (Entry)_snapshot.files.get(rootPath);
+            if (entry == null || entry.modified != lastModified || entry.size != size || entry.scan) return true;
+            return ( _ids == null || _ids.get(entry.id) );
+        }
+    }
+
+    /**
+     * This is the index as it was written to one index file. It is not changed once it is
+     * loaded.
+     */
+    private static class Snapshot
+    {
+        /** The index file or null if there is none. */
+        RandomAccessFile file;
+        /** The files by id. */
+        Entry[] entries;
+        /** The files keyed by root path. */
+        Hashtable files;
+        /** The words in order. */
+        String[] tokens;
+        /** Where each word's id list starts, plus where the last one ends. */
+        long[] offsets;
+        /** The number of ids in each word's list. */
+        int[] counts;
+
+        void close()
+        {
+            try
+            {
+                if (file != null) file.close();
+            }
+            catch (IOException ioe) { }
+        }
+    }
+
+    /**
+     * This is one indexed file.
+     */
+    private static class Entry
+    {
+        /** The root path. */
+        String path;
+        /** The id. */
+        int id;
+        /** The last modified date when it was indexed. */
+        long modified;
+        /** The size when it was indexed. */
+        long size;
+        /** Whether it was not indexed and is always searched. */
+        boolean scan;
+
+        Entry(String path, int id, long modified, long size, boolean scan)
+        {
+            this.path = path;
+            this.id = id;
+            this.modified = modified;
+            this.size = size;
+            this.scan = scan;
+        }
+    }
+
+    /**
+     * This is a growing list of ids.
+     */
+    private static class IntList
+    {
+        private int[] _values = new int[4];
+        private int _size = 0;
+
+        void add(int value)
+        {
+            if (_size == _values.length) _values = Arrays.copyOf(_values, _size*2);
+            _values[_size++] = value;
+        }
+
+        void addAll(IntList list)
+        {
+            for (int i=0; i<list._size; i++)
+            {
+                add(list._values[i]);
+            }
+        }
+
+        int get(int index)
+        {
+            return _values[index];
+        }
+
+        int size()
+        {
+            return _size;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.zitego.filemanager.search;
+
+import com.zitego.filemanager.util.SystemProperties;
+import java.util.Vector;
+
+/**
+ * This is a background thread that keeps the content indexes that have been registered
+ * with it up to date. An index is updated as soon as it is registered and then again once
+ * the update interval has passed since its last update started. Since an update only reads
+ * the files that changed, most updates of a large home directory only walk it.<br><br>
+ *
+ * An index that has not been searched for content_index_idle seconds (default 3600, 0 to
+ * keep them all) is no longer updated and is dropped from memory, so a server does not
+ * keep walking and holding the index of every user who has ever searched. It is loaded
+ * again from its file the next time it is searched.<br><br>
+ *
+ * The interval can be changed with the System property content_index_interval (seconds,
+ * default 600). There is only one indexer per jvm. It is started the first time it is
+ * asked for.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see ContentIndex
+ */
+public class ContentIndexer extends Thread
+{
+    /** The single instance. */
+    private static ContentIndexer _instance;
+    /** The indexes to keep up to date. */
+    private Vector _indexes = new Vector();
+    /** How long to wait between updates of an index in milliseconds. Default is ten minutes. */
+    private long _interval = SystemProperties.getLong("content_index_interval", 600L) * 1000L;
+    /** How long an index can go without being searched before it is dropped in milliseconds. */
+    private long _idle = SystemProperties.getLong("content_index_idle", 3600L) * 1000L;
+    /** Whether an index was registered while updating. */
+    private boolean _registered = false;
+    /** Whether we have been asked to stop. */
+    private volatile boolean _stopped = false;
+
+    /**
+     * Creates the indexer.
+     */
+    private ContentIndexer()
+    {
+        super("ContentIndexer");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Returns the indexer, starting it if it is not running.
+     *
+     * @return ContentIndexer
+     */
+    public static synchronized ContentIndexer getInstance()
+    {
+        if (_instance == null)
+        {
+            _instance = new ContentIndexer();
+            _instance.start();
+        }
+        return _instance;
+    }
+
+    /**
+     * Registers an index to be kept up to date and wakes the indexer to build it.
+     *
+     * @param index The index.
+     */
+    public void register(ContentIndex index)
+    {
+        synchronized (_indexes)
+        {
+            if ( !_indexes.contains(index) ) _indexes.add(index);
+            _registered = true;
+            _indexes.notifyAll();
+        }
+    }
+
+    /**
+     * Stops keeping an index up to date.
+     *
+     * @param index The index.
+     */
+    public void unregister(ContentIndex index)
+    {
+        synchronized (_indexes)
+        {
+            _indexes.remove(index);
+        }
+    }
+
+    /**
+     * Sets the time to wait between updates of an index.
+     *
+     * @param millis The interval in milliseconds.
+     */
+    public void setInterval(long millis)
+    {
+        _interval = millis;
+    }
+
+    /**
+     * Returns the time to wait between updates of an index in milliseconds.
+     *
+     * @return long
+     */
+    public long getInterval()
+    {
+        return _interval;
+    }
+
+    /**
+     * Stops the indexer.
+     */
+    public void shutdown()
+    {
+        _stopped = true;
+        interrupt();
+        synchronized (ContentIndexer.class)
+        {
+            if (_instance == this) _instance = null;
+        }
+    }
+
+    public void run()
+    {
+        while (!_stopped)
+        {
+            try
+            {
+                update();
+                synchronized (_indexes)
+                {
+                    if (!_registered) _indexes.wait(_interval);
+                    _registered = false;
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                //Asked to stop
+            }
+        }
+    }
+
+    /**
+     * Updates every registered index that is due and drops the ones that have not been
+     * searched for the idle time. An index that cannot be updated is tried again the next
+     * time.
+     */
+    public void update()
+    {
+        ContentIndex[] indexes = null;
+        synchronized (_indexes)
+        {
+            indexes = new ContentIndex[_indexes.size()];
+            _indexes.copyInto(indexes);
+        }
+        for (int i=0; i<indexes.length && !_stopped; i++)
+        {
+            if ( _idle > 0 && ContentIndex.release(indexes[i], _idle) )
+            {
+                unregister(indexes[i]);
+                continue;
+            }
+            if (System.currentTimeMillis() - indexes[i].getLastUpdate() < _interval) continue;
+            try
+            {
+                indexes[i].update();
+            }
+            catch (Exception e)
+            {
+                //Tried again the next time
+            }
+        }
+    }
+}
@@ -12,7 +12,12 @@ import java.util.regex.*;
  * Files can be searched on by name (including wildcards) and text contained
  * within (if they are of type text). In addition, search options can be set
  * to search sub directories (default behavior) and whether the search
- * term is case sensitive.
+ * term is case sensitive.<br><br>
+ *
+ * When searching for text, the ContentIndex of the start directory's home is asked first
+ * for the files that might contain it, and the text files it rules out are not read. The
+ * files it lets through are read and matched as before, so the results are the same with
+ * or without the index.
  *
  * @author John Glorioso
  * @version $Id: Search.java,v 1.1.1.1 2008/02/20 15:05:39 jglorioso Exp $
@@ -229,7 +234,19 @@ public class Search
      */
     public SearchResults getResults() throws IOException
     {
-        FileListing listing = getResults(_startDirectory);
+        ContentIndex.Candidates candidates = null;
+        if ( _containingTextPattern != null && ContentIndex.isEnabled() )
+        {
+            try
+            {
+                candidates = ContentIndex.getInstance( _startDirectory.getRootDirectory() ).find(_containingTextPatternString);
+            }
+            catch (IOException ioe)
+            {
+                //Every file is read instead
+            }
+        }
+        FileListing listing = getResults(_startDirectory, candidates);
         SearchResults ret = new SearchResults( listing.size() );
         ret.addAll(listing);
         //Sort it by name
@@ -242,9 +259,10 @@ public class Search
      * search.
      *
      * @param Directory The directory to search in.
+     * @param ContentIndex.Candidates The files that might contain the text or null to read them all.
      * @return FileListing
      */
-    private FileListing getResults(Directory dir) throws IOException
+    private FileListing getResults(Directory dir, ContentIndex.Candidates candidates) throws IOException
     {
         //Get the search listing from the
         FileListing listing = dir.getFileListing
@@ -263,6 +281,15 @@ public class Search
                 {
                     if ( _textSearch || obj.getFileType().isText() )
                     {
+                        //No need to read it if the index says the text is not there
+                        if
+                        (
+                            candidates != null &&
+                            !candidates.mayContain( obj.getRootPath(), obj.getLastModifiedDate().getTime(), obj.getSize().getBytes() )
+                        )
+                        {
+                            continue;
+                        }
                         //Gotta read in the file and search
                         BufferedReader in = new BufferedReader( new FileReader(obj.getAbsolutePath()) );
                         String line = null;
@@ -287,10 +314,10 @@ public class Search
             {
                 if (_searchSubDirectories)
                 {
-                    ret.addAll( getResults((Directory)obj) );
+                    ret.addAll( getResults((Directory)obj, candidates) );
                 }
             }
         }
         return ret;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
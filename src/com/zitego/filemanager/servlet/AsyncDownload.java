@@ -0,0 +1,381 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class sends a file using the servlet's asynchronous mode so that a download does not
+ * hold on to a container thread for as long as the client takes to read it. Once started,
+ * the request thread goes back to the container and the file is written one chunk at a time.
+ * The file is read with positional reads and a buffer is only borrowed from the BufferPool
+ * while a chunk is being written, so a download that is waiting on a slow client holds
+ * nothing but the open file.<br><br>
+ *
+ * If the container supports non-blocking output (servlet 3.1) a WriteListener is set on the
+ * output stream and chunks are written only while the stream says it is ready. The file
+ * manager is built for 1.6, so the WriteListener is created with a Proxy and set through
+ * reflection. On a servlet 3.0 container chunks are written by a small pool of writer
+ * threads instead. Each turn writes one chunk and puts the download back on the end of the
+ * queue, so a few threads take turns serving many downloads. Those writes block, so a
+ * client that stops reading will hold a writer thread until the write times out.<br><br>
+ *
+ * Asynchronous downloads are turned on by setting the System property use_async_download to
+ * "1". The writer pool size is set with async_download_threads (default 4) and the async
+ * timeout in milliseconds with async_download_timeout (default 0, no timeout).
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class AsyncDownload implements AsyncListener, Runnable, InvocationHandler
+{
+    /** javax.servlet.WriteListener */
+    private static Class _writeListener;
+    /** ServletOutputStream.setWriteListener(WriteListener) */
+    private static Method _setWriteListener;
+    /** ServletOutputStream.isReady() */
+    private static Method _isReady;
+    /** The writer threads used without a WriteListener. */
+    private static ThreadPoolExecutor _writers;
+    /** The async context. */
+    private AsyncContext _context;
+    /** The file being sent. */
+    private RandomAccessFile _file;
+    /** The file's channel. */
+    private FileChannel _channel;
+    /** The output stream. */
+    private ServletOutputStream _out;
+    /** The next byte to send. */
+    private long _position;
+    /** The byte after the last one to send. */
+    private long _end;
+    /** The number of bytes sent. */
+    private long _sent = 0L;
+    /** Whether the file has been closed. */
+    private boolean _closed = false;
+
+    static
+    {
+        try
+        {
+            ClassLoader loader = ServletOutputStream.class.getClassLoader();
+            _writeListener = Class.forName("javax.servlet.WriteListener", true, loader);
+            _setWriteListener = ServletOutputStream.class.getMethod( "setWriteListener", new Class[] { _writeListener } );
+            _isReady = ServletOutputStream.class.getMethod("isReady", new Class[0]);
+        }
+        catch (Throwable t)
+        {
+            //Servlet 3.0, use the writer pool
+            _setWriteListener = null;
+        }
+    }
+
+    /**
+     * Creates a new download.
+     *
+     * @param context The async context.
+     * @param f The file.
+     * @param start The first byte to send.
+     * @param count The number of bytes to send.
+     * @param out The output stream.
+     * @throws IOException if the file cannot be opened.
+     */
+    private AsyncDownload(AsyncContext context, java.io.File f, long start, long count, ServletOutputStream out) throws IOException
+    {
+        _context = context;
+        _file = new RandomAccessFile(f, "r");
+        _channel = _file.getChannel();
+        _position = start;
+        _end = start + count;
+        _out = out;
+    }
+
+    /**
+     * Returns whether asynchronous downloads are turned on.
+     *
+     * @return boolean
+     */
+    public static boolean isEnabled()
+    {
+        return "1".equals( System.getProperty("use_async_download") );
+    }
+
+    /**
+     * Returns whether the container supports non-blocking output.
+     *
+     * @return boolean
+     */
+    public static boolean isNonBlocking()
+    {
+        return (_setWriteListener != null);
+    }
+
+    /**
+     * Starts sending count bytes of the file from the given position asynchronously and
+     * returns true, or returns false if asynchronous downloads are off or the request does
+     * not support them. The headers must already be set. Once this returns true the caller
+     * must not touch the response again.
+     *
+     * @param f The file.
+     * @param start The first byte to send.
+     * @param count The number of bytes to send.
+     * @param request The request.
+     * @param response The response.
+     * @return boolean
+     * @throws IOException if the download cannot be started.
+     */
+    public static boolean start(java.io.File f, long start, long count, HttpServletRequest request, HttpServletResponse response)
+    throws IOException
+    {
+        if ( !isEnabled() || !request.isAsyncSupported() ) return false;
+
+        ServletOutputStream out = response.getOutputStream();
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout( SystemProperties.getLong("async_download_timeout", 0L) );
+        AsyncDownload download = null;
+        try
+        {
+            download = new AsyncDownload(context, f, start, count, out);
+            context.addListener(download);
+            if ( isNonBlocking() )
+            {
+                Object listener = Proxy.newProxyInstance
+                (
+                    _writeListener.getClassLoader(), new Class[] { _writeListener }, download
+                );
+                _setWriteListener.invoke( out, new Object[] { listener } );
+            }
+            else
+            {
+                getWriters().execute(download);
+            }
+        }
+        catch (Exception e)
+        {
+            if (download != null) download.close();
+            context.complete();
+            if (e instanceof InvocationTargetException) e = (Exception)( (InvocationTargetException)e ).getTargetException();
+            if (e instanceof IOException) throw (IOException)e;
+            throw new IOException( "Could not start download of " + f + ": " + e );
+        }
+        return true;
+    }
+
+    /**
+     * Writes chunks for as long as the output stream is ready. This is called by the
+     * container through the WriteListener.
+     *
+     * @throws IOException if an error occurs writing.
+     */
+    private void writePossible() throws IOException
+    {
+        try
+        {
+            while ( isReady() )
+            {
+                if ( !writeChunk() )
+                {
+                    finish();
+                    return;
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes one chunk and puts the download back in the writer queue. This is run by the
+     * writer pool when there is no WriteListener.
+     */
+    public void run()
+    {
+        try
+        {
+            if ( writeChunk() ) getWriters().execute(this);
+            else finish();
+        }
+        catch (Exception e)
+        {
+            //The client went away
+            close();
+            try
+            {
+                _context.complete();
+            }
+            catch (IllegalStateException ise) { }
+        }
+    }
+
+    /**
+     * Writes the next chunk of the file and returns whether there is more to write.
+     *
+     * @return boolean
+     * @throws IOException if an error occurs writing.
+     */
+    private boolean writeChunk() throws IOException
+    {
+        synchronized (this)
+        {
+            if (_closed) return false;
+        }
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            int length = (int)Math.min( buffer.length, _end-_position );
+            int read = _channel.read( ByteBuffer.wrap(buffer, 0, length), _position );
+            if (read <= 0) return false;
+            _out.write(buffer, 0, read);
+            _position += read;
+            _sent += read;
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+        return (_position < _end);
+    }
+
+    /**
+     * Returns whether the output stream can be written to without blocking.
+     *
+     * @return boolean
+     * @throws IOException if the stream cannot be checked.
+     */
+    private boolean isReady() throws IOException
+    {
+        try
+        {
+            return ( (Boolean)_isReady.invoke(_out, new Object[0]) ).booleanValue();
+        }
+        catch (Exception e)
+        {
+            throw new IOException( e.toString() );
+        }
+    }
+
+    /**
+     * Closes the file and completes the request.
+     */
+    private void finish()
+    {
+        close();
+        _context.complete();
+    }
+
+    /**
+     * Closes the file if it is not already closed.
+     */
+    private synchronized void close()
+    {
+        if (_closed) return;
+        _closed = true;
+        BufferPool.getDefault().moved(_sent);
+        try
+        {
+            _file.close();
+        }
+        catch (IOException ioe) { }
+    }
+
+    /**
+     * Handles the calls to the WriteListener proxy.
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+        if ( "onWritePossible".equals(name) )
+        {
+            writePossible();
+        }
+        else if ( "onError".equals(name) )
+        {
+            close();
+        }
+        else if ( "equals".equals(name) )
+        {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        else if ( "hashCode".equals(name) )
+        {
+            return new Integer( System.identityHashCode(proxy) );
+        }
+        else if ( "toString".equals(name) )
+        {
+            return toString();
+        }
+        return null;
+    }
+
+    public void onComplete(AsyncEvent event)
+    {
+        close();
+    }
+
+    public void onTimeout(AsyncEvent event)
+    {
+        close();
+        _context.complete();
+    }
+
+    public void onError(AsyncEvent event)
+    {
+        close();
+    }
+
+    public void onStartAsync(AsyncEvent event) { }
+
+    public String toString()
+    {
+        return "AsyncDownload " + _position + "/" + _end;
+    }
+
+    /**
+     * Returns the writer pool, creating it if needed.
+     *
+     * @return ThreadPoolExecutor
+     */
+    private static synchronized ThreadPoolExecutor getWriters()
+    {
+        if (_writers == null)
+        {
+            int threads = (int)SystemProperties.getLong("async_download_threads", 4L);
+            final AtomicInteger count = new AtomicInteger();
+            _writers = new ThreadPoolExecutor
+            (
+                threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread( r, "AsyncDownload-" + count.incrementAndGet() );
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }
+            );
+        }
+        return _writers;
+    }
+}
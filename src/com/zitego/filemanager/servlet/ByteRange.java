@@ -0,0 +1,178 @@
+package com.zitego.filemanager.servlet;
+
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/**
+ * This represents one range of bytes from an HTTP Range header (RFC 7233). The start and
+ * end are both inclusive and always within the length of the file the range was parsed for.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ByteRange
+{
+    /** The most ranges we will serve in one response. */
+    public static final int MAX_RANGES = 64;
+    /** The first byte. */
+    private long _start;
+    /** The last byte. */
+    private long _end;
+
+    /**
+     * Creates a new range.
+     *
+     * @param start The first byte.
+     * @param end The last byte.
+     */
+    public ByteRange(long start, long end)
+    {
+        _start = start;
+        _end = end;
+    }
+
+    /**
+     * Returns the first byte.
+     *
+     * @return long
+     */
+    public long getStart()
+    {
+        return _start;
+    }
+
+    /**
+     * Returns the last byte.
+     *
+     * @return long
+     */
+    public long getEnd()
+    {
+        return _end;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     *
+     * @return long
+     */
+    public long getLength()
+    {
+        return _end - _start + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for this range.
+     *
+     * @param length The total length of the file.
+     * @return String
+     */
+    public String getContentRange(long length)
+    {
+        return "bytes " + _start + "-" + _end + "/" + length;
+    }
+
+    /**
+     * <p>Parses the given Range header value for a file of the given length and returns a
+     * Vector of ByteRange objects. Ranges that overlap or touch are merged and the result is
+     * in ascending order.</p>
+     * <p>If the header is missing, is not a bytes range, or is not valid then null is
+     * returned and the whole file should be sent. If the header is valid but none of the
+     * ranges can be satisfied then an empty Vector is returned and the response should be a
+     * 416. If there are more than MAX_RANGES ranges, null is returned as well.</p>
+     *
+     * @param header The Range header.
+     * @param length The length of the file.
+     * @return Vector
+     */
+    public static Vector parse(String header, long length)
+    {
+        if (header == null) return null;
+        header = header.trim();
+        if ( !header.startsWith("bytes=") ) return null;
+
+        Vector ranges = new Vector();
+        StringTokenizer st = new StringTokenizer(header.substring(6), ",");
+        if ( !st.hasMoreTokens() ) return null;
+        while ( st.hasMoreTokens() )
+        {
+            String spec = st.nextToken().trim();
+            int index = spec.indexOf("-");
+            if (index == -1) return null;
+            long start = -1L;
+            long end = -1L;
+            try
+            {
+                if (index > 0) start = Long.parseLong( spec.substring(0, index).trim() );
+                if (index < spec.length()-1) end = Long.parseLong( spec.substring(index+1).trim() );
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+
+            if (start == -1L)
+            {
+                //Suffix range, the last n bytes
+                if (end == -1L) return null;
+                if (end == 0L || length == 0L) continue;
+                start = Math.max(0L, length-end);
+                end = length - 1;
+            }
+            else
+            {
+                if (end != -1L && end < start) return null;
+                if (start >= length) continue;
+                if (end == -1L || end >= length) end = length - 1;
+            }
+            ranges.add( new ByteRange(start, end) );
+            if (ranges.size() > MAX_RANGES) return null;
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * Sorts and merges any ranges that overlap or touch.
+     *
+     * @param ranges The ranges.
+     * @return Vector
+     */
+    private static Vector merge(Vector ranges)
+    {
+        ByteRange[] sorted = new ByteRange[ranges.size()];
+        ranges.copyInto(sorted);
+        //Insertion sort, there are never many
+        for (int i=1; i<sorted.length; i++)
+        {
+            ByteRange r = sorted[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j]._start > r._start)
+            {
+                sorted[j+1] = sorted[j];
+                j--;
+            }
+            sorted[j+1] = r;
+        }
+
+        Vector ret = new Vector(sorted.length);
+        ByteRange last = null;
+        for (int i=0; i<sorted.length; i++)
+        {
+            if (last != null && sorted[i]._start <= last._end+1)
+            {
+                last._end = Math.max(last._end, sorted[i]._end);
+            }
+            else
+            {
+                last = new ByteRange(sorted[i]._start, sorted[i]._end);
+                ret.add(last);
+            }
+        }
+        return ret;
+    }
+
+    public String toString()
+    {
+        return _start + "-" + _end;
+    }
+}
@@ -0,0 +1,211 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.util.Hex;
+import com.zitego.filemanager.util.SystemProperties;
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * This class makes the HTTP entity tags (ETags) for files and compares them to the tags a
+ * client sends back in If-None-Match and If-Range. A tag is made from the file's inode,
+ * size, and last modified date, so it costs a stat and nothing more. The inode is only
+ * available through java.nio.file, which is looked up through reflection. On an older jvm
+ * a hash of the path is used instead.<br><br>
+ *
+ * If the System property etag_content_hash is "1", files up to etag_content_hash_size
+ * bytes (default 16mb) are tagged with an MD5 of their contents instead. Then a file
+ * that is saved again without changing keeps its tag. The hashes are cached by path,
+ * size, and last modified date.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class EntityTag
+{
+    /** The most content hashes to keep. */
+    private static final int MAX_CACHED = 1000;
+    /** Content hashes keyed by path. Each value is {size, last modified, tag}. */
+    private static final Map HASHES = new LinkedHashMap(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > MAX_CACHED;
+        }
+    };
+    /** java.io.File.toPath() */
+    private static Method _toPath;
+    /** Files.getAttribute(Path, String, LinkOption...) */
+    private static Method _getAttribute;
+    /** An empty LinkOption array. */
+    private static Object _noOptions;
+
+    static
+    {
+        try
+        {
+            Class path = Class.forName("java.nio.file.Path");
+            Class linkOption = Class.forName("java.nio.file.LinkOption");
+            _toPath = java.io.File.class.getMethod("toPath", new Class[0]);
+            _getAttribute = Class.forName("java.nio.file.Files").getMethod
+            (
+                "getAttribute", new Class[] { path, String.class, Array.newInstance(linkOption, 0).getClass() }
+            );
+            _noOptions = Array.newInstance(linkOption, 0);
+        }
+        catch (Throwable t)
+        {
+            //Older jvm, use the path
+            _getAttribute = null;
+        }
+    }
+
+    private EntityTag() { }
+
+    /**
+     * Returns the entity tag for the given file, including the quotes.
+     *
+     * @param f The file.
+     * @return String
+     * @throws IOException if an error occurs hashing the file.
+     */
+    public static String getEntityTag(java.io.File f) throws IOException
+    {
+        return getEntityTag( f, f.length(), f.lastModified() );
+    }
+
+    /**
+     * Returns the entity tag for the given file using the size and last modified date the
+     * caller already has, including the quotes.
+     *
+     * @param f The file.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @return String
+     * @throws IOException if an error occurs hashing the file.
+     */
+    public static String getEntityTag(java.io.File f, long length, long lastModified) throws IOException
+    {
+        if ( "1".equals(System.getProperty("etag_content_hash")) && length <= getContentHashSize() )
+        {
+            return getContentTag(f, length, lastModified);
+        }
+        return "\"" + Long.toHexString( getFileKey(f) ) + "-" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Returns whether the given If-None-Match or If-Range header value matches the tag. The
+     * value may be "*" or a comma separated list of tags. Weak tags (W/"...") are compared
+     * by their value unless strong is true, in which case they never match.
+     *
+     * @param header The header value.
+     * @param tag The tag of the file.
+     * @param strong Whether to use the strong comparison.
+     * @return boolean
+     */
+    public static boolean matches(String header, String tag, boolean strong)
+    {
+        if (header == null || tag == null) return false;
+        header = header.trim();
+        if ( "*".equals(header) ) return true;
+        StringTokenizer st = new StringTokenizer(header, ",");
+        while ( st.hasMoreTokens() )
+        {
+            String candidate = st.nextToken().trim();
+            if ( candidate.startsWith("W/") )
+            {
+                if (strong) continue;
+                candidate = candidate.substring(2);
+            }
+            if ( candidate.equals(tag) ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the size in bytes up to which files are tagged with a content hash.
+     *
+     * @return long
+     */
+    public static long getContentHashSize()
+    {
+        return SystemProperties.getLong("etag_content_hash_size", 16777216L);
+    }
+
+    /**
+     * Returns the inode of the file or a hash of its path if the inode cannot be read.
+     *
+     * @param f The file.
+     * @return long
+     */
+    private static long getFileKey(java.io.File f)
+    {
+        if (_getAttribute != null)
+        {
+            try
+            {
+                Object ino = _getAttribute.invoke
+                (
+                    null, new Object[] { _toPath.invoke(f, new Object[0]), "unix:ino", _noOptions }
+                );
+                if (ino instanceof Number) return ( (Number)ino ).longValue();
+            }
+            catch (Throwable t)
+            {
+                //Not a unix file system
+            }
+        }
+        return f.getAbsolutePath().hashCode() & 0xffffffffL;
+    }
+
+    /**
+     * Returns the content hash tag for the file, from the cache if the file has not changed.
+     *
+     * @param f The file.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @return String
+     * @throws IOException if an error occurs reading the file.
+     */
+    private static String getContentTag(java.io.File f, long length, long lastModified) throws IOException
+    {
+        String path = f.getAbsolutePath();
+        synchronized (HASHES)
+        {
+            Object[] cached = (Object[])HASHES.get(path);
+            if ( cached != null && ((Long)cached[0]).longValue() == length && ((Long)cached[1]).longValue() == lastModified )
+            {
+                return (String)cached[2];
+            }
+        }
+
+        MessageDigest md5 = Hex.createMd5();
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire();
+        FileInputStream in = new FileInputStream(f);
+        try
+        {
+            int count;
+            while ( (count=in.read(buffer)) != -1 )
+            {
+                md5.update(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            in.close();
+            pool.release(buffer);
+        }
+        String ret = "\"" + Hex.toHex( md5.digest() ) + "\"";
+        synchronized (HASHES)
+        {
+            HASHES.put( path, new Object[] { new Long(length), new Long(lastModified), ret } );
+        }
+        return ret;
+    }
+}
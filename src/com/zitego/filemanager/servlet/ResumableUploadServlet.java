@@ -0,0 +1,294 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.web.servlet.BaseServlet;
+import com.zitego.util.InvalidLoginException;
+import com.zitego.util.NonFatalException;
+import com.zitego.filemanager.FileSystemObject;
+import com.zitego.filemanager.ResumableUpload;
+import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.explorer.ExplorerHolder;
+import com.zitego.filemanager.io.Bandwidth;
+import java.io.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+/**
+ * This servlet is the protocol for resumable uploads (see ResumableUpload). Every response
+ * is text/plain with one name=value pair per line giving the id, size, number of bytes
+ * received, and the ranges received.<br><br>
+ *
+ * <ul>
+ * <li>POST with path (the directory's root path), name, size, and optionally md5 (of the
+ * whole file in hex) creates an upload and answers 201.</li>
+ * <li>PUT with id and offset writes the request body at the offset. A Content-Length is
+ * required and a Content-MD5 header (base64 or hex) is checked if it is sent. Chunks may
+ * be sent in any order and at the same time.</li>
+ * <li>GET with id tells what has been received so a client can resume.</li>
+ * <li>POST with id and action=finish finishes the upload and answers 201 with the root
+ * path of the new file.</li>
+ * <li>DELETE with id cancels the upload.</li>
+ * </ul>
+ *
+ * A request for an upload that does not exist, was finished, or timed out gets a 404. A
+ * request that cannot be done gets a 400 or 409 with the reason. Chunks are read at the
+ * user's upload bandwidth limit if there is one.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ResumableUploadServlet extends BaseServlet
+{
+    /**
+     * Handles the resumable upload request.
+     *
+     * @param HttpServletRequest The request.
+     * @param HttpServletResponse The response.
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void service(HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException
+    {
+        try
+        {
+            HttpSession session = request.getSession();
+            ExplorerHolder holder = (ExplorerHolder)session.getAttribute(Explorer.SESSION_NAME);
+            if (holder == null) throw new InvalidLoginException("You must be logged in to upload files");
+            Explorer explorer = holder.getExplorer();
+
+            String method = request.getMethod();
+            String id = request.getParameter("id");
+            if (id == null)
+            {
+                if ( !"POST".equals(method) )
+                {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "An upload id is required");
+                    return;
+                }
+                create(explorer, request, response);
+                return;
+            }
+
+            ResumableUpload upload = ResumableUpload.get(id, explorer);
+            if (upload == null)
+            {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no upload "+id);
+                return;
+            }
+            try
+            {
+                if ( "PUT".equals(method) )
+                {
+                    writeChunk(upload, explorer, request, response);
+                }
+                else if ( "POST".equals(method) && "finish".equals(request.getParameter("action")) )
+                {
+                    FileSystemObject obj = upload.finish(explorer);
+                    response.setStatus(HttpServletResponse.SC_CREATED);
+                    sendStatus(upload, "path="+obj.getRootPath(), response);
+                }
+                else if ( "DELETE".equals(method) )
+                {
+                    upload.cancel();
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                }
+                else if ( "GET".equals(method) || "HEAD".equals(method) )
+                {
+                    sendStatus(upload, null, response);
+                }
+                else
+                {
+                    response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                }
+            }
+            catch (NonFatalException nfe)
+            {
+                response.sendError( HttpServletResponse.SC_CONFLICT, getMessage(nfe) );
+            }
+        }
+        catch (InvalidLoginException ile)
+        {
+            request.setAttribute("err", ile);
+            gotoPage(getLoginPage(), request, response);
+        }
+        catch (Throwable t)
+        {
+            handleError(request, response, t);
+        }
+    }
+
+    /**
+     * Creates an upload from the request parameters.
+     *
+     * @param explorer The user's explorer.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException if an error occurs creating the upload.
+     */
+    private void create(Explorer explorer, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        try
+        {
+            long size = -1L;
+            try
+            {
+                if (request.getParameter("size") != null) size = Long.parseLong( request.getParameter("size") );
+            }
+            catch (NumberFormatException nfe) { }
+            ResumableUpload upload = ResumableUpload.create
+            (
+                explorer, request.getParameter("path"), request.getParameter("name"), size, request.getParameter("md5")
+            );
+            response.setStatus(HttpServletResponse.SC_CREATED);
+            sendStatus(upload, null, response);
+        }
+        catch (NonFatalException nfe)
+        {
+            response.sendError( HttpServletResponse.SC_BAD_REQUEST, getMessage(nfe) );
+        }
+    }
+
+    /**
+     * Writes the request body to the upload at the offset request parameter.
+     *
+     * @param upload The upload.
+     * @param explorer The user's explorer.
+     * @param request The request.
+     * @param response The response.
+     * @throws NonFatalException if the chunk does not fit or is corrupt.
+     * @throws IOException if an error occurs reading or writing the chunk.
+     */
+    private void writeChunk(ResumableUpload upload, Explorer explorer, HttpServletRequest request, HttpServletResponse response)
+    throws NonFatalException, IOException
+    {
+        long offset = -1L;
+        long length = -1L;
+        try
+        {
+            offset = Long.parseLong( request.getParameter("offset") );
+            length = Long.parseLong( request.getHeader("Content-Length") );
+        }
+        catch (NumberFormatException nfe) { }
+        if (length < 0)
+        {
+            response.sendError(HttpServletResponse.SC_LENGTH_REQUIRED);
+            return;
+        }
+        if (offset < 0)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The offset is required");
+            return;
+        }
+        byte[] md5 = null;
+        String header = request.getHeader("Content-MD5");
+        if (header != null)
+        {
+            md5 = decodeMd5( header.trim() );
+            if (md5 == null)
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Content-MD5");
+                return;
+            }
+        }
+        upload.write
+        (
+            offset, request.getInputStream(), length, md5,
+            Bandwidth.getThrottle( explorer.getAbsolutePath(), request.getSession().getId() )
+        );
+        sendStatus(upload, null, response);
+    }
+
+    /**
+     * Sends the state of the upload.
+     *
+     * @param upload The upload.
+     * @param extra Another line to send or null.
+     * @param response The response.
+     * @throws IOException if an error occurs writing.
+     */
+    private void sendStatus(ResumableUpload upload, String extra, HttpServletResponse response) throws IOException
+    {
+        StringBuffer body = new StringBuffer();
+        body.append("id=").append( upload.getId() ).append("\n");
+        body.append("size=").append( upload.getSize() ).append("\n");
+        body.append("received=").append( upload.getReceived() ).append("\n");
+        body.append("ranges=").append( upload.getRanges() ).append("\n");
+        if (extra != null) body.append(extra).append("\n");
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader( "Content-Length", String.valueOf(bytes.length) );
+        OutputStream out = response.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Returns the message of the exception without the leading dash used to mark messages
+     * that are safe to show.
+     *
+     * @param nfe The exception.
+     * @return String
+     */
+    private String getMessage(NonFatalException nfe)
+    {
+        String ret = nfe.getMessage();
+        return (ret != null && ret.startsWith("-") ? ret.substring(1) : ret);
+    }
+
+    /**
+     * Decodes an md5 given in hex or base64, or returns null if it is neither.
+     *
+     * @param value The value.
+     * @return byte[]
+     */
+    static byte[] decodeMd5(String value)
+    {
+        byte[] ret = new byte[16];
+        if (value.length() == 32)
+        {
+            for (int i=0; i<16; i++)
+            {
+                int high = Character.digit( value.charAt(i*2), 16 );
+                int low = Character.digit( value.charAt(i*2+1), 16 );
+                if (high < 0 || low < 0) return null;
+                ret[i] = (byte)( (high << 4) | low );
+            }
+            return ret;
+        }
+        if ( value.length() != 24 || !value.endsWith("==") ) return null;
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        long bits = 0L;
+        int count = 0;
+        int pos = 0;
+        for (int i=0; i<22; i++)
+        {
+            int v = alphabet.indexOf( value.charAt(i) );
+            if (v < 0) return null;
+            bits = (bits << 6) | v;
+            count += 6;
+            if (count >= 8)
+            {
+                count -= 8;
+                ret[pos++] = (byte)(bits >> count);
+                if (pos == 16) break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the login page.
+     *
+     * @return String
+     */
+    public String getLoginPage()
+    {
+        return "/login.jsp";
+    }
+
+    protected String getErrorPage()
+    {
+        return "/error_full.jsp";
+    }
+}
@@ -0,0 +1,133 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.util.InvalidLoginException;
+import com.zitego.filemanager.*;
+import com.zitego.filemanager.io.BufferPool;
+import java.io.*;
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+/**
+ * This servlet sends the thumbnail of an image for the explorer's thumbnails view. The image
+ * is found the same way ViewFileServlet finds a file (the "path" request parameter) and the
+ * thumbnail comes from the Thumbnails service. The "size" request parameter can be used to
+ * ask for a size other than the default.<br><br>
+ *
+ * Thumbnails are sent with an ETag, Last-Modified, and Cache-Control so that repeat views
+ * get a 304. The validators are those of the image with the thumbnail size added to the
+ * tag, so they are checked before the thumbnail is looked up and a repeat view never waits
+ * for one to be made. If the file is not an image a 404 is sent so the page can show the file's icon
+ * instead. If the thumbnail is still being made, or the service is too busy, a 503 with a
+ * Retry-After header is sent.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ThumbnailServlet extends ViewFileServlet
+{
+    /**
+     * Sends the thumbnail of the image given by the path request parameter.
+     *
+     * @param HttpServletRequest The request.
+     * @param HttpServletResponse The response.
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void service(HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException
+    {
+        try
+        {
+            ViewableFile file = getViewableFile(request);
+            if ( !(file instanceof FileSystemObject) || !Thumbnails.isThumbnailable(file.getFileType()) )
+            {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            Thumbnails thumbs = Thumbnails.getInstance();
+            int size = thumbs.getDefaultSize();
+            try
+            {
+                if (request.getParameter("size") != null) size = Integer.parseInt( request.getParameter("size") );
+            }
+            catch (NumberFormatException nfe) { }
+            size = thumbs.getSize(size);
+
+            java.io.File image = new java.io.File( ((FileSystemObject)file).getAbsolutePath() );
+            long lastModified = image.lastModified();
+            String etag = getThumbnailTag(image, size, lastModified);
+            response.setDateHeader("Last-Modified", lastModified);
+            response.setHeader("ETag", etag);
+            response.setHeader( "Cache-Control", getCacheControl(file.getFileType()) );
+            if ( isNotModified(request, etag, lastModified) )
+            {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            java.io.File thumb = thumbs.getThumbnail(image, size);
+            if (thumb == null)
+            {
+                response.setHeader("Retry-After", "1");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            sendThumbnail(thumb, request, response);
+        }
+        catch (InvalidLoginException ile)
+        {
+            request.setAttribute("err", ile);
+            gotoPage(getLoginPage(), request, response);
+        }
+        catch (Throwable t)
+        {
+            handleError(request, response, t);
+        }
+    }
+
+    /**
+     * Returns the entity tag of the thumbnail of the given size of the given image. It is
+     * the image's tag (see EntityTag) with the size added.
+     *
+     * @param image The image.
+     * @param size The thumbnail size.
+     * @param lastModified When the image was last modified.
+     * @return String
+     * @throws IOException if an error occurs tagging the image.
+     */
+    protected String getThumbnailTag(java.io.File image, int size, long lastModified) throws IOException
+    {
+        String tag = EntityTag.getEntityTag( image, image.length(), lastModified );
+        return tag.substring(0, tag.length()-1) + "-t" + size + "\"";
+    }
+
+    /**
+     * Sends the given thumbnail. The validators have already been set.
+     *
+     * @param thumb The thumbnail.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException if an error occurs sending the thumbnail.
+     */
+    protected void sendThumbnail(java.io.File thumb, HttpServletRequest request, HttpServletResponse response)
+    throws IOException
+    {
+        long length = thumb.length();
+        response.setContentType( thumb.getName().endsWith(".png") ? "image/png" : "image/jpeg" );
+        response.setHeader( "Content-Length", String.valueOf(length) );
+        if ( "HEAD".equals(request.getMethod()) ) return;
+
+        OutputStream out = response.getOutputStream();
+        InputStream in = new FileInputStream(thumb);
+        try
+        {
+            BufferPool.getDefault().copy(in, out);
+            out.flush();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
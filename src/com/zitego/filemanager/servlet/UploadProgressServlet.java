@@ -0,0 +1,99 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.web.servlet.BaseServlet;
+import com.zitego.filemanager.UploadProgress;
+import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.explorer.ExplorerHolder;
+import java.io.*;
+import java.util.Vector;
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+/**
+ * This servlet tells the progress of a user's uploads (see UploadProgress). It only reads
+ * counters, so it can be polled as often as a client likes. The response is text/plain with
+ * one name=value pair per line giving the id, bytes read, content length, item, percent
+ * done, rate in bytes per second, seconds left (-1 if not known), and whether the upload
+ * has finished. With an id parameter only that upload is sent (or a 404 if there is no
+ * such upload). Without one every upload the user has is sent with a blank line between
+ * each. An upload is given its id by passing upload_id in the query string of the upload
+ * request.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class UploadProgressServlet extends BaseServlet
+{
+    /**
+     * Sends the progress.
+     *
+     * @param HttpServletRequest The request.
+     * @param HttpServletResponse The response.
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void service(HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException
+    {
+        try
+        {
+            HttpSession session = request.getSession(false);
+            ExplorerHolder holder = (session != null ? (ExplorerHolder)session.getAttribute(Explorer.SESSION_NAME) : null);
+            if (holder == null)
+            {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            Explorer explorer = holder.getExplorer();
+
+            Vector uploads = null;
+            String id = request.getParameter("id");
+            if (id != null)
+            {
+                UploadProgress progress = UploadProgress.get(id, explorer);
+                if (progress == null)
+                {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no upload "+id);
+                    return;
+                }
+                uploads = new Vector();
+                uploads.add(progress);
+            }
+            else
+            {
+                uploads = UploadProgress.getAll(explorer);
+            }
+
+            StringBuffer body = new StringBuffer();
+            for (int i=0; i<uploads.size(); i++)
+            {
+                UploadProgress progress = (UploadProgress)uploads.get(i);
+                if (i > 0) body.append("\n");
+                body.append("id=").append( progress.getId() ).append("\n");
+                body.append("read=").append( progress.getBytesRead() ).append("\n");
+                body.append("length=").append( progress.getContentLength() ).append("\n");
+                body.append("item=").append( progress.getItem() ).append("\n");
+                body.append("percent=").append( progress.getPercent() ).append("\n");
+                body.append("rate=").append( progress.getRate() ).append("\n");
+                body.append("eta=").append( progress.getSecondsLeft() ).append("\n");
+                body.append("finished=").append( progress.isFinished() ).append("\n");
+            }
+            byte[] bytes = body.toString().getBytes("UTF-8");
+            response.setContentType("text/plain; charset=UTF-8");
+            response.setHeader("Cache-Control", "no-store");
+            response.setHeader( "Content-Length", String.valueOf(bytes.length) );
+            OutputStream out = response.getOutputStream();
+            out.write(bytes);
+            out.flush();
+        }
+        catch (Throwable t)
+        {
+            handleError(request, response, t);
+        }
+    }
+
+    protected String getErrorPage()
+    {
+        return "/error_full.jsp";
+    }
+}
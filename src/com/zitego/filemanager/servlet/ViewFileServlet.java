@@ -6,7 +6,19 @@ import com.zitego.util.NonFatalException;
 import com.zitego.filemanager.*;
 import com.zitego.filemanager.explorer.Explorer;
 import com.zitego.filemanager.explorer.ExplorerHolder;
+import com.zitego.filemanager.io.BufferPool;
+import com.zitego.filemanager.io.Bandwidth;
+import com.zitego.filemanager.io.CompressedCache;
+import com.zitego.filemanager.io.Throttle;
+import com.zitego.filemanager.io.ThrottledOutputStream;
+import com.zitego.filemanager.io.ZeroCopy;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
 
@@ -15,13 +27,56 @@ import javax.servlet.http.*;
  * directly to the client in bytes. It will attempt to determine the mimetype and
  * set that first so that the client's browser can handle it if possible. In
  * addition, it will set the disposition to inline so that it may be viewed in
- * the browser if possible.
+ * the browser if possible.<br><br>
+ *
+ * Files that are on disk are served with support for HTTP Range requests (RFC 7233). A
+ * single range is sent as a 206 with a Content-Range header and several ranges are sent as
+ * a multipart/byteranges response. Ranges are read with positional reads, so a download
+ * manager pulling several ranges of the same file at once never shares a file position.
+ * An If-Range that does not match the file's entity tag or last modified date causes the
+ * whole file to be sent instead.<br><br>
+ *
+ * Files on disk are also sent with an ETag (see EntityTag), Last-Modified, and a
+ * Cache-Control header built from the FileType's max age. A request with a matching
+ * If-None-Match, or an If-Modified-Since that is not older than the file, gets a 304 and
+ * no body. HEAD requests get the headers only. Cache-Control is private unless the System
+ * property cache_public is "1".<br><br>
+ *
+ * Text files are gzipped for clients that accept it, unless a range was asked for. Files
+ * that are requested often have a gzipped copy built in the background (see
+ * CompressedCache) which is then sent as is. Other files are compressed as they are sent.
+ * The gzipped response has its own entity tag.<br><br>
+ *
+ * The whole file and single ranges are sent without copying through the JVM where possible.
+ * If the container supports sendfile (Tomcat sets the org.apache.tomcat.sendfile.support
+ * request attribute) the file name and range are handed to it and nothing is written here.
+ * If the response output stream is itself a channel the bytes are sent to it with
+ * FileChannel.transferTo (see ZeroCopy). Anything else is copied the normal way.<br><br>
+ *
+ * When asynchronous downloads are turned on (see AsyncDownload) and the container does not
+ * do sendfile, the whole file and single ranges are written in the background so that a
+ * slow client does not hold on to a container thread.<br><br>
+ *
+ * When bandwidth limits are set (see Bandwidth) downloads are written through a
+ * ThrottledOutputStream limited by the global, user, and session limits. Throttled
+ * downloads are always written here rather than by sendfile or in the background.
  *
  * @author John Glorioso
  * @version $Id: ViewFileServlet.java,v 1.1.1.1 2008/02/20 15:05:39 jglorioso Exp $
  */
 public class ViewFileServlet extends BaseServlet
 {
+    /** The request attribute set by a container that supports sendfile. */
+    public static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    /** The request attribute for the file to send. */
+    public static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    /** The request attribute for the first byte to send. */
+    public static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    /** The request attribute for the byte after the last one to send. */
+    public static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    /** Used to make multipart boundaries. */
+    private static final Random BOUNDARY_RANDOM = new Random();
+
     /**
      * <p>Displays the file in bytes by making a call to getViewableFile passing the request object.
      * The file is then streamed to the client and a Content-Disposition header is set so that
@@ -31,6 +86,8 @@ public class ViewFileServlet extends BaseServlet
      * display any text/ mime type as text/plain in order to override a web browser's setting
      * to display it as the given mimetype. For example, use this to display an html file's actual
      * contents rather then to display it as an html page.</p>
+     * <p>If the viewable file is a FileSystemObject then it is sent with sendFile so that
+     * Range requests are honored.</p>
      *
      * @param HttpServletRequest The request.
      * @param HttpServletResponse The response.
@@ -49,11 +106,12 @@ public class ViewFileServlet extends BaseServlet
             String mime = file.getFileType().getMimeType();
             if (mime != null)
             {
-                if ( mime.startsWith("text/") && "1".equals(request.getParameter("override_text")) ) response.setContentType("text/plain");
-                else response.setContentType(mime);
+                if ( mime.startsWith("text/") && "1".equals(request.getParameter("override_text")) ) mime = "text/plain";
+                response.setContentType(mime);
             }
             response.addHeader( "Content-Disposition", "inline;filename="+file.getFileName() );
-            FileSystemObject.writeToOutputStream( file, response.getOutputStream() );
+            if (file instanceof FileSystemObject) sendFile( (FileSystemObject)file, mime, request, response );
+            else FileSystemObject.writeToOutputStream( file, getOutputStream(request, response) );
         }
         catch (InvalidLoginException ile)
         {
@@ -66,9 +124,389 @@ public class ViewFileServlet extends BaseServlet
         }
     }
 
+    /**
+     * Sends the given file to the client honoring any conditional, Range, and If-Range headers.
+     * The content type and disposition must already be set.
+     *
+     * @param file The file to send.
+     * @param mime The content type of the file or null if it is not known.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException if an error occurs sending the file.
+     */
+    protected void sendFile(FileSystemObject file, String mime, HttpServletRequest request, HttpServletResponse response)
+    throws IOException
+    {
+        java.io.File f = new java.io.File( file.getAbsolutePath() );
+        long length = f.length();
+        long lastModified = f.lastModified();
+        String etag = EntityTag.getEntityTag(f, length, lastModified);
+        FileType type = file.getFileType();
+        boolean gzip = false;
+        if ( type.isText() && CompressedCache.isEnabled() )
+        {
+            response.setHeader("Vary", "Accept-Encoding");
+            gzip = ( request.getHeader("Range") == null && acceptsGzip(request) && CompressedCache.getInstance().isCompressible(length) );
+            if (gzip) etag = etag.substring(0, etag.length()-1) + "-gz\"";
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("ETag", etag);
+        response.setHeader( "Cache-Control", getCacheControl(type) );
+
+        if ( isNotModified(request, etag, lastModified) )
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        else if (gzip)
+        {
+            sendCompressed(file, f, length, lastModified, request, response);
+            return;
+        }
+        else if ( "HEAD".equals(request.getMethod()) )
+        {
+            response.setHeader( "Content-Length", String.valueOf(length) );
+            return;
+        }
+
+        Vector ranges = getRanges(request, length, lastModified, etag);
+        if (ranges == null)
+        {
+            response.setHeader( "Content-Length", String.valueOf(length) );
+            if ( !transfer(f, 0L, length, request, response) ) FileSystemObject.writeToOutputStream( file, getOutputStream(request, response) );
+            return;
+        }
+        else if (ranges.size() == 0)
+        {
+            response.setHeader("Content-Range", "bytes */"+length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1)
+        {
+            ByteRange range = (ByteRange)ranges.get(0);
+            response.setHeader( "Content-Range", range.getContentRange(length) );
+            response.setHeader( "Content-Length", String.valueOf(range.getLength()) );
+            if ( transfer(f, range.getStart(), range.getLength(), request, response) ) return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            OutputStream out = getOutputStream(request, response);
+            if (ranges.size() == 1)
+            {
+                ByteRange range = (ByteRange)ranges.get(0);
+                BufferPool.getDefault().copy( raf.getChannel(), range.getStart(), range.getLength(), out );
+            }
+            else
+            {
+                sendRanges(raf.getChannel(), length, ranges, mime, response, out);
+            }
+            out.flush();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Sends the file gzipped. If there is a gzipped copy in the CompressedCache then it is
+     * sent with a Content-Length, otherwise the file is compressed as it is sent.
+     *
+     * @param file The file to send.
+     * @param f The file on disk.
+     * @param length The size of the file.
+     * @param lastModified When the file was last modified.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException if an error occurs sending the file.
+     */
+    protected void sendCompressed(FileSystemObject file, java.io.File f, long length, long lastModified,
+                                  HttpServletRequest request, HttpServletResponse response)
+    throws IOException
+    {
+        response.setHeader("Content-Encoding", "gzip");
+        boolean head = "HEAD".equals( request.getMethod() );
+        java.io.File gz = CompressedCache.getInstance().get(f, length, lastModified);
+        if (gz != null)
+        {
+            long gzLength = gz.length();
+            response.setHeader( "Content-Length", String.valueOf(gzLength) );
+            if ( head || transfer(gz, 0L, gzLength, request, response) ) return;
+            RandomAccessFile raf = new RandomAccessFile(gz, "r");
+            try
+            {
+                OutputStream out = getOutputStream(request, response);
+                BufferPool.getDefault().copy( raf.getChannel(), 0L, gzLength, out );
+                out.flush();
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        else if (!head)
+        {
+            FileSystemObject.writeToOutputStream
+            (
+                file, new GZIPOutputStream( getOutputStream(request, response), BufferPool.getDefault().getBufferSize() )
+            );
+        }
+    }
+
+    /**
+     * Returns whether the client accepts gzip content encoding. Any other encodings it
+     * accepts (br for example) are ignored since we can only make gzip.
+     *
+     * @param request The request.
+     * @return boolean
+     */
+    protected boolean acceptsGzip(HttpServletRequest request)
+    {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) return false;
+        StringTokenizer st = new StringTokenizer(header.toLowerCase(), ",");
+        while ( st.hasMoreTokens() )
+        {
+            String coding = st.nextToken().trim();
+            String q = null;
+            int index = coding.indexOf(";");
+            if (index > -1)
+            {
+                q = coding.substring(index+1).trim();
+                coding = coding.substring(0, index).trim();
+            }
+            if ( !"gzip".equals(coding) && !"x-gzip".equals(coding) && !"*".equals(coding) ) continue;
+            if ( q == null || !q.startsWith("q=") ) return true;
+            try
+            {
+                return ( Double.parseDouble(q.substring(2)) > 0 );
+            }
+            catch (NumberFormatException nfe)
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends count bytes of the file starting at the given position without copying them
+     * through the JVM or without holding the request thread, and returns true. Returns false
+     * if neither is possible and nothing was sent. If the container supports sendfile then it
+     * is asked to send the bytes. If asynchronous downloads are on then an AsyncDownload is
+     * started. If the response output stream is a channel then the bytes are transferred
+     * into it. Wrapping a plain stream in a channel is not done because transferTo just
+     * copies through a small buffer then. The Content-Length must already be set.
+     *
+     * @param f The file.
+     * @param start The first byte to send.
+     * @param count The number of bytes to send.
+     * @param request The request.
+     * @param response The response.
+     * @return boolean
+     * @throws IOException if an error occurs sending the file.
+     */
+    protected boolean transfer(java.io.File f, long start, long count, HttpServletRequest request, HttpServletResponse response)
+    throws IOException
+    {
+        if (getThrottle(request) != null) return false;
+        if ( ZeroCopy.isEnabled() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) )
+        {
+            request.setAttribute( SENDFILE_FILENAME, f.getCanonicalPath() );
+            request.setAttribute( SENDFILE_START, new Long(start) );
+            request.setAttribute( SENDFILE_END, new Long(start+count) );
+            return true;
+        }
+        else if ( AsyncDownload.start(f, start, count, request, response) )
+        {
+            return true;
+        }
+
+        OutputStream out = response.getOutputStream();
+        if ( !ZeroCopy.isEnabled() || !(out instanceof WritableByteChannel) ) return false;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            ZeroCopy.transfer( raf.getChannel(), start, count, (WritableByteChannel)out );
+            out.flush();
+        }
+        finally
+        {
+            raf.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the throttle for downloads in this request or null if downloads are not
+     * limited. The user is keyed by the home directory of the explorer in the session.
+     *
+     * @param request The request.
+     * @return Throttle
+     * @throws IOException if an error occurs getting the explorer.
+     */
+    protected Throttle getThrottle(HttpServletRequest request) throws IOException
+    {
+        if ( !Bandwidth.isLimited() ) return null;
+        HttpSession session = request.getSession(false);
+        if (session == null) return Bandwidth.getThrottle(null, null);
+        ExplorerHolder holder = (ExplorerHolder)session.getAttribute(Explorer.SESSION_NAME);
+        String user = (holder != null ? holder.getExplorer().getAbsolutePath() : null);
+        return Bandwidth.getThrottle( user, session.getId() );
+    }
+
+    /**
+     * Returns the output stream to write the file to. This is the response output stream,
+     * throttled if there are bandwidth limits.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @return OutputStream
+     * @throws IOException if an error occurs getting the stream.
+     */
+    protected OutputStream getOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        Throttle throttle = getThrottle(request);
+        OutputStream out = response.getOutputStream();
+        return (throttle != null ? new ThrottledOutputStream(out, throttle) : out);
+    }
+
+    /**
+     * Sends the given ranges of the file as a multipart/byteranges response. The part headers
+     * are built first so that the Content-Length of the whole response can be set.
+     *
+     * @param channel The file channel.
+     * @param length The length of the file.
+     * @param ranges The ranges to send.
+     * @param mime The content type of the file or null if it is not known.
+     * @param response The response.
+     * @param out The response output stream.
+     * @throws IOException if an error occurs sending the ranges.
+     */
+    private void sendRanges(FileChannel channel, long length, Vector ranges, String mime, HttpServletResponse response, OutputStream out)
+    throws IOException
+    {
+        String boundary = Long.toHexString( System.currentTimeMillis() ) + Long.toHexString( BOUNDARY_RANDOM.nextLong() );
+        int size = ranges.size();
+        byte[][] headers = new byte[size][];
+        long total = 0L;
+        for (int i=0; i<size; i++)
+        {
+            ByteRange range = (ByteRange)ranges.get(i);
+            StringBuffer header = new StringBuffer()
+                .append("\r\n--").append(boundary).append("\r\n");
+            if (mime != null) header.append("Content-Type: ").append(mime).append("\r\n");
+            header.append("Content-Range: ").append( range.getContentRange(length) ).append("\r\n\r\n");
+            headers[i] = header.toString().getBytes("ISO-8859-1");
+            total += headers[i].length + range.getLength();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        total += end.length;
+
+        response.setContentType("multipart/byteranges; boundary="+boundary);
+        response.setHeader( "Content-Length", String.valueOf(total) );
+        BufferPool pool = BufferPool.getDefault();
+        for (int i=0; i<size; i++)
+        {
+            ByteRange range = (ByteRange)ranges.get(i);
+            out.write(headers[i]);
+            pool.copy( channel, range.getStart(), range.getLength(), out );
+        }
+        out.write(end);
+    }
+
+    /**
+     * Returns the Cache-Control header value for files of the given type.
+     *
+     * @param type The file type.
+     * @return String
+     */
+    protected String getCacheControl(FileType type)
+    {
+        String scope = ( "1".equals(System.getProperty("cache_public")) ? "public" : "private" );
+        int maxAge = type.getMaxAge();
+        return scope + (maxAge >= 0 ? ", max-age="+maxAge : ", no-cache");
+    }
+
+    /**
+     * Returns whether the client's copy of the file is current. If there is an If-None-Match
+     * header then it is compared to the entity tag and If-Modified-Since is ignored. Otherwise
+     * the file is not modified if it is no newer than If-Modified-Since. Only GET and HEAD
+     * requests can be not modified.
+     *
+     * @param request The request.
+     * @param etag The entity tag of the file.
+     * @param lastModified When the file was last modified.
+     * @return boolean
+     */
+    protected boolean isNotModified(HttpServletRequest request, String etag, long lastModified)
+    {
+        String method = request.getMethod();
+        if ( !"GET".equals(method) && !"HEAD".equals(method) ) return false;
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return EntityTag.matches(ifNoneMatch, etag, false);
+
+        try
+        {
+            long since = request.getDateHeader("If-Modified-Since");
+            return (since != -1L && lastModified/1000 <= since/1000);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the byte ranges requested or null if the whole file should be sent. An empty
+     * Vector is returned if none of the ranges can be satisfied. Ranges are only returned for
+     * GET requests. If there is an If-Range header, the ranges are only returned if it is the
+     * entity tag of the file or a date that matches its last modified date.
+     *
+     * @param request The request.
+     * @param length The length of the file.
+     * @param lastModified When the file was last modified.
+     * @param etag The entity tag of the file.
+     * @return Vector
+     */
+    protected Vector getRanges(HttpServletRequest request, long length, long lastModified, String etag)
+    {
+        String header = request.getHeader("Range");
+        if ( header == null || !"GET".equals(request.getMethod()) ) return null;
+
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null)
+        {
+            ifRange = ifRange.trim();
+            if ( ifRange.startsWith("\"") || ifRange.startsWith("W/") )
+            {
+                return ( EntityTag.matches(ifRange, etag, true) ? ByteRange.parse(header, length) : null );
+            }
+            try
+            {
+                if ( request.getDateHeader("If-Range")/1000 != lastModified/1000 ) return null;
+            }
+            catch (IllegalArgumentException iae)
+            {
+                return null;
+            }
+        }
+        return ByteRange.parse(header, length);
+    }
+
     /**
      * Returns a ViewableFile by looking in the session for an Explorer object and retrieving
-     * the file specified by the request parameter "path".
+     * the file specified by the request parameter "path". The path is resolved directly
+     * against the user's home (see Explorer.resolveFile) rather than by searching the
+     * directory tree, so paths that leave the home, name a hidden object, or name one of
+     * the file manager's own files are treated as not existing.
      *
      * @param HttpServletRequest The request object.
      * @return ViewableFile
@@ -87,7 +525,7 @@ public class ViewFileServlet extends BaseServlet
         String path = request.getParameter("path");
         //Make sure they are not getting a directory
         if ( path != null && path.endsWith("/") ) throw new NonFatalException("-You cannot view a directory");
-        com.zitego.filemanager.File f = (path != null ? explorer.getFile(path) : null);
+        com.zitego.filemanager.File f = (path != null ? explorer.resolveFile(path) : null);
         if (f == null) throw new NonFatalException("-The file you selected does not exist.");
         return f;
     }
@@ -106,4 +544,4 @@ public class ViewFileServlet extends BaseServlet
     {
         return "/error_full.jsp";
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
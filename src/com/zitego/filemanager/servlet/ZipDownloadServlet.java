@@ -0,0 +1,242 @@
+package com.zitego.filemanager.servlet;
+
+import com.zitego.filemanager.util.SystemProperties;
+import com.zitego.util.InvalidLoginException;
+import com.zitego.util.NonFatalException;
+import com.zitego.filemanager.*;
+import com.zitego.filemanager.archive.ArchiveEntry;
+import com.zitego.filemanager.archive.ParallelZipWriter;
+import com.zitego.filemanager.archive.ZipWriter;
+import com.zitego.filemanager.explorer.Explorer;
+import com.zitego.filemanager.explorer.ExplorerHolder;
+import com.zitego.filemanager.io.ParallelDeflater;
+import com.zitego.filemanager.util.FileFilter;
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.Deflater;
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+/**
+ * This servlet downloads directories and selections of files as one zip archive. Each
+ * "path" request parameter is a root path in the user's explorer and directories are
+ * included with everything in them. The archive is written to the client as it is made, so
+ * no temporary file is created and the memory used does not depend on the size of the
+ * download (see ZipWriter).<br><br>
+ *
+ * Files whose FileType is already compressed (images, audio, video, archives) are stored
+ * rather than deflated again. When everything in the download is stored the exact length
+ * of the archive is known up front and a Content-Length is sent, so the browser can show
+ * progress. Otherwise the archive is sent chunked. The deflate level can be set with the
+ * System property zip_level. When there is more than one processor the files are deflated
+ * in parallel (see ParallelZipWriter).<br><br>
+ *
+ * Hidden objects, files reserved by the file manager, and symbolic links back to a
+ * directory already being archived are left out. Downloads are throttled the same way as
+ * ViewFileServlet.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ZipDownloadServlet extends ViewFileServlet
+{
+    /**
+     * Sends the zip archive of the paths given by the path request parameters.
+     *
+     * @param HttpServletRequest The request.
+     * @param HttpServletResponse The response.
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void service(HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException
+    {
+        try
+        {
+            HttpSession session = request.getSession();
+            ExplorerHolder holder = (ExplorerHolder)session.getAttribute(Explorer.SESSION_NAME);
+            if (holder == null) throw new InvalidLoginException("You must be logged in to download files");
+
+            Explorer explorer = holder.getExplorer();
+            String[] paths = request.getParameterValues("path");
+            if (paths == null || paths.length == 0) throw new NonFatalException("-You must select something to download.");
+            Vector entries = getArchiveEntries(explorer, paths);
+
+            String name = ( paths.length == 1 && !"/".equals(paths[0]) ? getTopName(entries) : "download" );
+            long length = ZipWriter.getLength(entries);
+            response.setContentType("application/zip");
+            response.addHeader( "Content-Disposition", getContentDisposition(name+".zip") );
+            if (length >= 0) response.setHeader( "Content-Length", String.valueOf(length) );
+            if ( "HEAD".equals(request.getMethod()) ) return;
+
+            OutputStream out = getOutputStream(request, response);
+            ZipWriter zip = ( length < 0 && ParallelDeflater.isEnabled() ? new ParallelZipWriter(out) : new ZipWriter(out) );
+            zip.setLevel( getLevel() );
+            int size = entries.size();
+            for (int i=0; i<size; i++)
+            {
+                zip.write( (ArchiveEntry)entries.get(i) );
+            }
+            zip.finish();
+        }
+        catch (InvalidLoginException ile)
+        {
+            request.setAttribute("err", ile);
+            gotoPage(getLoginPage(), request, response);
+        }
+        catch (Throwable t)
+        {
+            handleError(request, response, t);
+        }
+    }
+
+    /**
+     * Returns a Vector of ArchiveEntry objects for the given root paths. Each path is placed
+     * at the top of the archive under its own name. If two paths have the same name the later
+     * one gets a number added to it.
+     *
+     * @param explorer The user's explorer.
+     * @param paths The root paths.
+     * @return Vector
+     * @throws NonFatalException if a path does not exist.
+     * @throws IOException if an error occurs reading the file system.
+     */
+    protected Vector getArchiveEntries(Explorer explorer, String[] paths) throws NonFatalException, IOException
+    {
+        Vector ret = new Vector();
+        Hashtable names = new Hashtable();
+        for (int i=0; i<paths.length; i++)
+        {
+            FileSystemObject obj = explorer.resolve(paths[i]);
+            if (obj == null) throw new NonFatalException("-"+paths[i]+" does not exist.");
+
+            String name = ( "/".equals(obj.getRootPath()) ? "" : obj.getName() );
+            if ( name.length() > 0 && names.containsKey(name) )
+            {
+                int count = 2;
+                int dot = ( obj instanceof Directory ? -1 : name.lastIndexOf(".") );
+                String base = (dot > 0 ? name.substring(0, dot) : name);
+                String ext = (dot > 0 ? name.substring(dot) : "");
+                while ( names.containsKey(base+" ("+count+")"+ext) )
+                {
+                    count++;
+                }
+                name = base + " (" + count + ")" + ext;
+            }
+            names.put(name, name);
+            addEntries( ret, explorer, name, obj.getRootPath(), new java.io.File(obj.getAbsolutePath()), new HashSet() );
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the entry for the given file and, if it is a directory, everything in it. Nothing
+     * is added for the name "" (the home directory) other than its contents.
+     *
+     * @param entries The entries to add to.
+     * @param explorer The user's explorer.
+     * @param name The name in the archive.
+     * @param rootPath The root path of the file.
+     * @param f The file.
+     * @param parents The canonical paths of the directories being archived above this one.
+     * @throws IOException if an error occurs reading the file system.
+     */
+    private void addEntries(Vector entries, Explorer explorer, String name, String rootPath, java.io.File f, HashSet parents)
+    throws IOException
+    {
+        if ( !f.isDirectory() )
+        {
+            if ( f.isFile() ) entries.add( new ArchiveEntry(name, f, FileTypes.getFileTypeByName(name, false).isCompressed()) );
+            return;
+        }
+
+        //A link back to a directory we are inside of would never end
+        String canonical = f.getCanonicalPath();
+        if ( !parents.add(canonical) ) return;
+        if (name.length() > 0) entries.add( new ArchiveEntry(name, f, true) );
+
+        String[] children = f.list();
+        if (children != null)
+        {
+            Arrays.sort(children);
+            String prefix = (name.length() > 0 ? name + "/" : "");
+            String rootPrefix = (rootPath.endsWith("/") ? rootPath : rootPath + "/");
+            for (int i=0; i<children.length; i++)
+            {
+                if ( FileFilter.isReserved(children[i], "/".equals(rootPrefix)) || explorer.isHidden(rootPrefix+children[i]) ) continue;
+                addEntries( entries, explorer, prefix+children[i], rootPrefix+children[i], new java.io.File(f, children[i]), parents );
+            }
+        }
+        parents.remove(canonical);
+    }
+
+    /**
+     * Returns the name of the first entry without any trailing slash.
+     *
+     * @param entries The entries.
+     * @return String
+     */
+    private String getTopName(Vector entries)
+    {
+        if ( entries.isEmpty() ) return "download";
+        String name = ( (ArchiveEntry)entries.get(0) ).getName();
+        int index = name.indexOf("/");
+        return (index > -1 ? name.substring(0, index) : name);
+    }
+
+    /**
+     * Returns the Content-Disposition header for the given file name. The quoted filename
+     * is for clients that only read that and has everything but printable ascii, quotes and
+     * backslashes replaced with an underscore. The full name follows as filename* in UTF-8
+     * (see RFC 5987) so that a directory name can never end the header value early.
+     *
+     * @param name The file name.
+     * @return String
+     */
+    private static String getContentDisposition(String name)
+    {
+        StringBuffer plain = new StringBuffer();
+        StringBuffer encoded = new StringBuffer();
+        for (int i=0; i<name.length(); i++)
+        {
+            char c = name.charAt(i);
+            plain.append( (c < 0x20 || c > 0x7e || c == '"' || c == '\\' ? '_' : c) );
+        }
+        byte[] bytes = null;
+        try
+        {
+            bytes = name.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            //Every jvm has UTF-8
+            bytes = new byte[0];
+        }
+        for (int i=0; i<bytes.length; i++)
+        {
+            int b = bytes[i] & 0xff;
+            if ( (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || "!#$&+-.^_`|~".indexOf(b) > -1 )
+            {
+                encoded.append( (char)b );
+            }
+            else
+            {
+                encoded.append('%').append( "0123456789ABCDEF".charAt(b >> 4) ).append( "0123456789ABCDEF".charAt(b & 0xf) );
+            }
+        }
+        return "attachment;filename=\"" + plain + "\";filename*=UTF-8''" + encoded;
+    }
+
+    /**
+     * Returns the deflate level from the System property zip_level.
+     *
+     * @return int
+     */
+    private int getLevel()
+    {
+        return SystemProperties.getInt("zip_level", Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -41,8 +41,10 @@ public class DirectoryFilter extends FileFilter
 
     public boolean accept(File dir, String filename)
     {
+        //Never show the file manager's own files
+        if ( isReserved(filename, _homeDirectory) ) return false;
         File f = new File(dir.getPath()+"/"+filename);
         if ( f.isDirectory() && (includeHiddenFiles() || !f.isHidden()) ) return true;
         else return false;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
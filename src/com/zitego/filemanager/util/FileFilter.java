@@ -10,8 +10,18 @@ import java.io.File;
  */
 public abstract class FileFilter implements java.io.FilenameFilter
 {
+    /** The prefix given to files that are still being written such as copies in progress. */
+    public static final String PARTIAL_PREFIX = ".part-";
+    /** The name of the creation date file in the home directory (see CreationDateFile). */
+    public static final String CREATION_NAME = ".creation";
+    /** The name of the trash directory in the home directory (see Trash). */
+    public static final String TRASH_NAME = ".trash";
+    /** The name of the upload hash index in the home directory (see HashIndex). */
+    public static final String HASHES_NAME = ".hashes";
     /** Whether to include hidden files. Default is false. */
     protected boolean _includeHidden = true;
+    /** Whether the directory being filtered is the home directory. Default is true. */
+    protected boolean _homeDirectory = true;
 
     /**
      * Creates a new directory filter.
@@ -38,6 +48,34 @@ public abstract class FileFilter implements java.io.FilenameFilter
         _includeHidden = include;
     }
 
+    /**
+     * Sets whether the directory being filtered is the home directory.
+     *
+     * @param boolean Whether it is the home directory.
+     */
+    public void setHomeDirectory(boolean home)
+    {
+        _homeDirectory = home;
+    }
+
+    /**
+     * Returns whether the given file name is reserved by the file manager. Reserved files
+     * are never shown to the user. The creation date file, the trash and the upload hash
+     * index are only kept in the home directory, so a user's own file with one of those
+     * names anywhere else is not reserved. Partial files that are still being written are
+     * reserved in every directory, since they are written next to their targets (see
+     * PartialFile and ResumableUpload).
+     *
+     * @param String The file name.
+     * @param boolean Whether the file is in the home directory.
+     * @return boolean
+     */
+    public static boolean isReserved(String name, boolean home)
+    {
+        if ( name.startsWith(PARTIAL_PREFIX) ) return true;
+        return ( home && (name.equals(CREATION_NAME) || name.equals(TRASH_NAME) || name.equals(HASHES_NAME)) );
+    }
+
     /**
      * Returns whether or not to include the hidden files.
      *
@@ -47,4 +85,4 @@ public abstract class FileFilter implements java.io.FilenameFilter
     {
         return _includeHidden;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
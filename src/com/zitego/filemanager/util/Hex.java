@@ -0,0 +1,70 @@
+package com.zitego.filemanager.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class writes bytes as lower case hex, which is how digests and ids are named in
+ * file names, tags and indexes, and makes the md5 digests most of them come from.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class Hex
+{
+    private Hex() { }
+
+    /**
+     * Returns the given bytes in hex.
+     *
+     * @param bytes The bytes.
+     * @return String
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuffer ret = new StringBuffer(bytes.length*2);
+        for (int i=0; i<bytes.length; i++)
+        {
+            ret.append( Character.forDigit((bytes[i]>>4) & 0xf, 16) ).append( Character.forDigit(bytes[i] & 0xf, 16) );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Returns a new md5 digest.
+     *
+     * @return MessageDigest
+     */
+    public static MessageDigest createMd5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            //Every jvm has md5
+            throw new RuntimeException("MD5 is not available", nsae);
+        }
+    }
+
+    /**
+     * Returns the md5 of the given string's UTF-8 bytes in hex.
+     *
+     * @param s The string.
+     * @return String
+     */
+    public static String md5(String s)
+    {
+        try
+        {
+            return toHex( createMd5().digest(s.getBytes("UTF-8")) );
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            //Every jvm has UTF-8
+            throw new RuntimeException(uee);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.zitego.filemanager.util;
+
+/**
+ * This class reads the System properties the file manager is configured with. A property
+ * that is not set, or is not a number, gives the default.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public final class SystemProperties
+{
+    private SystemProperties() { }
+
+    /**
+     * Returns the given System property as a long or the default if it is not set or not a
+     * number.
+     *
+     * @param name The property name.
+     * @param def The default.
+     * @return long
+     */
+    public static long getLong(String name, long def)
+    {
+        try
+        {
+            String val = System.getProperty(name);
+            return (val != null ? Long.parseLong( val.trim() ) : def);
+        }
+        catch (NumberFormatException nfe)
+        {
+            return def;
+        }
+    }
+
+    /**
+     * Returns the given System property as an int or the default if it is not set or not a
+     * number.
+     *
+     * @param name The property name.
+     * @param def The default.
+     * @return int
+     */
+    public static int getInt(String name, int def)
+    {
+        try
+        {
+            String val = System.getProperty(name);
+            return (val != null ? Integer.parseInt( val.trim() ) : def);
+        }
+        catch (NumberFormatException nfe)
+        {
+            return def;
+        }
+    }
+}
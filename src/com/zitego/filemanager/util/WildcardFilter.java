@@ -86,6 +86,8 @@ public class WildcardFilter extends FileFilter
 
     public boolean accept(File dir, String filename)
     {
+        //Never show the file manager's own files
+        if ( isReserved(filename, _homeDirectory) ) return false;
         File f = new File(dir.getPath()+"/"+filename);
         boolean ret = false;
         //If this is a directory and we are including directories, return true
@@ -97,8 +99,6 @@ public class WildcardFilter extends FileFilter
         {
             _regexp.reset(filename);
             ret = _regexp.matches();
-            //Also have to make sure it is not the .creation file
-            ret = ( ret && !filename.equalsIgnoreCase(".creation") );
         }
         if (ret) ret = ( includeHiddenFiles() || !f.isHidden() );
 
@@ -192,4 +192,4 @@ public class WildcardFilter extends FileFilter
         if (caseSensitive) return Pattern.compile( regexp.toString() ).matcher("");
         else return Pattern.compile(regexp.toString(), Pattern.CASE_INSENSITIVE).matcher("");
     }
-}
\ No newline at end of file
+}
\ No newline at end of file